@@ -0,0 +1,89 @@
+//
+//  EncodeBenchmark.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.bench;
+
+import edu.berkeley.androidwave.wavelogger.core.SampleBlockBuffer;
+import edu.berkeley.androidwave.wavelogger.core.SampleQueue;
+import edu.berkeley.androidwave.wavelogger.export.InputBuffer;
+import edu.berkeley.androidwave.wavelogger.export.OutputBuffer;
+import edu.berkeley.androidwave.wavelogger.export.SampleBlockCodec;
+import edu.berkeley.androidwave.wavelogger.export.SamplePage;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * EncodeBenchmark
+ *
+ * Time to encode and decode one accelerometer block, for the block sizes
+ * the service accepts. Divide by blockSize for the per-sample cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+    
+    @Param({"50", "1000"})
+    public int accelRate;
+    
+    @Param({"64", "256", "1024"})
+    public int blockSize;
+    
+    private SampleBlockBuffer mBuffer;
+    private byte[] mEncoded;
+    private int mEncodedLength;
+    private InputBuffer mIn;
+    private SamplePage mDecoded;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticStream stream = new SyntheticStream(accelRate);
+        SampleQueue.Sample s = new SampleQueue.Sample();
+        mBuffer = new SampleBlockBuffer(blockSize, SyntheticStream.ACCEL_QUANTUM);
+        while (!mBuffer.isFull()) {
+            stream.next(s);
+            if (s.recipe == SyntheticStream.ACCEL_RECIPE) {
+                mBuffer.add(s.rcvdTime, s.sampleTime, s.values[0], s.values[1], s.values[2]);
+            }
+        }
+        
+        OutputBuffer out = mBuffer.encode();
+        mEncodedLength = out.length();
+        mEncoded = new byte[mEncodedLength];
+        System.arraycopy(out.bytes(), 0, mEncoded, 0, mEncodedLength);
+        mIn = new InputBuffer();
+        mDecoded = new SamplePage(blockSize, SampleQueue.VALUES_PER_SAMPLE);
+    }
+    
+    @Benchmark
+    public int encode() {
+        return mBuffer.encode().length();
+    }
+    
+    @Benchmark
+    public int decode() throws IOException {
+        mIn.wrap(mEncoded, 0, mEncodedLength);
+        return SampleBlockCodec.decode(mIn, mDecoded).count;
+    }
+}
@@ -0,0 +1,133 @@
+//
+//  ExportBenchmark.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.bench;
+
+import edu.berkeley.androidwave.wavelogger.core.SampleQueue;
+import edu.berkeley.androidwave.wavelogger.export.ColumnarFormat;
+import edu.berkeley.androidwave.wavelogger.export.CsvFormat;
+import edu.berkeley.androidwave.wavelogger.export.ExportPipeline;
+import edu.berkeley.androidwave.wavelogger.export.PageFormat;
+import edu.berkeley.androidwave.wavelogger.export.PageSource;
+import edu.berkeley.androidwave.wavelogger.export.SamplePage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ExportBenchmark
+ *
+ * Export throughput in rows per second, for an accelerometer table held in
+ * memory and exported through ExportPipeline to a temporary file. This
+ * covers formatting and file writes but not reading from SQLite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+    
+    private static final int ROWS = 200000;
+    private static final String[] COLUMNS = {"rcvd_time", "sample_time", "x", "y", "z"};
+    
+    @Param({"50", "1000"})
+    public int accelRate;
+    
+    @Param({"csv", "columnar"})
+    public String format;
+    
+    @Param({"1", "2"})
+    public int formatThreads;
+    
+    private SamplePage mRows;
+    private File mFile;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticStream stream = new SyntheticStream(accelRate);
+        SampleQueue.Sample s = new SampleQueue.Sample();
+        mRows = new SamplePage(ROWS, SampleQueue.VALUES_PER_SAMPLE);
+        while (!mRows.isFull()) {
+            stream.next(s);
+            if (s.recipe == SyntheticStream.ACCEL_RECIPE) {
+                int i = mRows.count++;
+                mRows.ids[i] = i + 1;
+                mRows.rcvdTimes[i] = s.rcvdTime;
+                mRows.sampleTimes[i] = s.sampleTime;
+                System.arraycopy(s.values, 0, mRows.values, i * mRows.width, mRows.width);
+            }
+        }
+        mFile = File.createTempFile("export", "." + format);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFile.delete();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long export() throws IOException, InterruptedException {
+        PageFormat pageFormat;
+        if (format.equals("csv")) {
+            pageFormat = new CsvFormat("rcvd_time, sample_time, x, y, z\n");
+        } else {
+            double q = SyntheticStream.ACCEL_QUANTUM;
+            pageFormat = new ColumnarFormat(COLUMNS, new double[] {q, q, q});
+        }
+        ExportPipeline pipeline = new ExportPipeline(formatThreads);
+        pipeline.addTable(new MemoryPageSource(mRows), mFile, pageFormat);
+        pipeline.run();
+        return mFile.length();
+    }
+    
+    /**
+     * Pages through the rows of one large in-memory page
+     */
+    private static class MemoryPageSource implements PageSource {
+        
+        private final SamplePage mRows;
+        private int mNext;
+        
+        MemoryPageSource(SamplePage rows) {
+            mRows = rows;
+        }
+        
+        public int width() {
+            return mRows.width;
+        }
+        
+        public void next(SamplePage page) {
+            int n = Math.min(page.capacity(), mRows.count - mNext);
+            int width = mRows.width;
+            System.arraycopy(mRows.ids, mNext, page.ids, 0, n);
+            System.arraycopy(mRows.rcvdTimes, mNext, page.rcvdTimes, 0, n);
+            System.arraycopy(mRows.sampleTimes, mNext, page.sampleTimes, 0, n);
+            System.arraycopy(mRows.values, mNext * width, page.values, 0, n * width);
+            page.count = n;
+            mNext += n;
+        }
+    }
+}
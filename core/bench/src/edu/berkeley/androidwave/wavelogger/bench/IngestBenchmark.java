@@ -0,0 +1,131 @@
+//
+//  IngestBenchmark.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.bench;
+
+import edu.berkeley.androidwave.wavelogger.core.IngestStats;
+import edu.berkeley.androidwave.wavelogger.core.RecipePlan;
+import edu.berkeley.androidwave.wavelogger.core.SampleQueue;
+import edu.berkeley.androidwave.wavelogger.core.SampleWriter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IngestBenchmark
+ *
+ * Per-sample cost of the path from a recipe callback to a committed block:
+ * queueing, dequeueing, block buffering and encoding, and ingest stats.
+ *
+ * perSample runs the whole path on one thread, the way SampleWriter would
+ * if it never waited. writer runs a real SampleWriter thread and measures
+ * how fast a producer can hand it samples with the BLOCK policy, including
+ * the lock handoff between the two.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark {
+    
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int BLOCK_SIZE = 256;
+    private static final int LOC_BATCH_SIZE = 64;
+    
+    @Param({"50", "200", "1000"})
+    public int accelRate;
+    
+    private SyntheticStream mStream;
+    private SampleQueue.Sample mIn;
+    private SampleQueue.Sample mOut;
+    
+    // perSample
+    private SampleQueue mQueue;
+    private MemorySampleStore mStore;
+    private IngestStats mStats;
+    
+    // writer
+    private SampleQueue mWriterQueue;
+    private SampleWriter mWriter;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        mStream = new SyntheticStream(accelRate);
+        mIn = new SampleQueue.Sample();
+        mOut = new SampleQueue.Sample();
+        
+        mQueue = new SampleQueue(QUEUE_CAPACITY, SampleQueue.OverflowPolicy.BLOCK, SyntheticStream.RECIPE_COUNT);
+        mStats = newStats(mQueue);
+        mStore = new MemorySampleStore(BLOCK_SIZE, LOC_BATCH_SIZE);
+        for (RecipePlan plan : SyntheticStream.plans()) {
+            mStore.registerRecipe(plan);
+        }
+        
+        mWriterQueue = new SampleQueue(QUEUE_CAPACITY, SampleQueue.OverflowPolicy.BLOCK, SyntheticStream.RECIPE_COUNT);
+        mWriter = new SampleWriter(mWriterQueue, new MemorySampleStore(BLOCK_SIZE, LOC_BATCH_SIZE),
+                                   newStats(mWriterQueue));
+        for (RecipePlan plan : SyntheticStream.plans()) {
+            mWriter.addRecipe(plan);
+        }
+        mWriter.start();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mWriter.shutdown();
+    }
+    
+    private static IngestStats newStats(SampleQueue queue) {
+        IngestStats stats = new IngestStats(new String[] {"Accelerometer", "Location"});
+        stats.setQueue(queue);
+        return stats;
+    }
+    
+    @Benchmark
+    public boolean perSample() throws InterruptedException {
+        SampleQueue.Sample s = mIn;
+        mStream.next(s);
+        mStats.received(s.recipe);
+        double[] v = s.values;
+        mQueue.put(s.recipe, s.rcvdTime, s.sampleTime, v[0], v[1], v[2]);
+        
+        mQueue.take(mOut, 0);
+        v = mOut.values;
+        long start = System.nanoTime();
+        boolean success;
+        if (mOut.recipe == SyntheticStream.ACCEL_RECIPE) {
+            success = mStore.insertAccelData(mOut.recipe, mOut.rcvdTime, mOut.sampleTime, v[0], v[1], v[2]);
+        } else {
+            success = mStore.insertLocData(mOut.recipe, mOut.rcvdTime, mOut.sampleTime, v[0], v[1], v[2]);
+        }
+        mStats.inserted(mOut.recipe, (System.nanoTime() - start) / 1000, success);
+        return success;
+    }
+    
+    @Benchmark
+    public boolean writer() {
+        SampleQueue.Sample s = mIn;
+        mStream.next(s);
+        double[] v = s.values;
+        return mWriterQueue.put(s.recipe, s.rcvdTime, s.sampleTime, v[0], v[1], v[2]);
+    }
+}
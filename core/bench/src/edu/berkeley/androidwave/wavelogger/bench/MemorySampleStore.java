@@ -0,0 +1,183 @@
+//
+//  MemorySampleStore.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.bench;
+
+import edu.berkeley.androidwave.wavelogger.core.RecipePlan;
+import edu.berkeley.androidwave.wavelogger.core.SampleBlockBuffer;
+import edu.berkeley.androidwave.wavelogger.core.SampleStore;
+import edu.berkeley.androidwave.wavelogger.core.SummaryPyramid;
+import edu.berkeley.androidwave.wavelogger.export.OutputBuffer;
+
+/**
+ * MemorySampleStore
+ *
+ * SampleStore doing the same buffering, block encoding and summarizing as
+ * DbHelper, but discarding the encoded bytes and closed summaries instead
+ * of writing them to SQLite, so that benchmarks measure the Java side of
+ * ingest only.
+ */
+public class MemorySampleStore implements SampleStore, SummaryPyramid.Listener {
+    
+    private static final long FLUSH_INTERVAL = 1000;
+    
+    private final int mBlockSize;
+    private final int mBatchSize;
+    
+    // accelerometer recipes are buffered in blocks, the others as batches
+    // of rcvd_times; both by recipe index
+    private SampleBlockBuffer[] mBlocks = new SampleBlockBuffer[0];
+    private long[][] mTimes = new long[0][];
+    private int[] mCounts = new int[0];
+    private SummaryPyramid[] mPyramids = new SummaryPyramid[0];
+    
+    private long mFirstBuffered;
+    private long mBytesEncoded;
+    private long mSummaries;
+    private CommitListener mCommitListener;
+    
+    public MemorySampleStore(int blockSize, int batchSize) {
+        mBlockSize = blockSize;
+        mBatchSize = batchSize;
+    }
+    
+    public synchronized void registerRecipe(RecipePlan plan) {
+        if (plan.index >= mTimes.length) {
+            SampleBlockBuffer[] blocks = new SampleBlockBuffer[plan.index + 1];
+            System.arraycopy(mBlocks, 0, blocks, 0, mBlocks.length);
+            long[][] times = new long[plan.index + 1][];
+            System.arraycopy(mTimes, 0, times, 0, mTimes.length);
+            int[] counts = new int[plan.index + 1];
+            System.arraycopy(mCounts, 0, counts, 0, mCounts.length);
+            SummaryPyramid[] pyramids = new SummaryPyramid[plan.index + 1];
+            System.arraycopy(mPyramids, 0, pyramids, 0, mPyramids.length);
+            mBlocks = blocks;
+            mTimes = times;
+            mCounts = counts;
+            mPyramids = pyramids;
+        }
+        if (plan.kind != RecipePlan.OTHER) {
+            mPyramids[plan.index] = new SummaryPyramid(plan.session, 3, this);
+        }
+        if (plan.kind == RecipePlan.ACCELEROMETER) {
+            mBlocks[plan.index] = new SampleBlockBuffer(mBlockSize, plan.quantum);
+        } else {
+            mTimes[plan.index] = new long[mBatchSize];
+        }
+    }
+    
+    public synchronized boolean insertAccelData(int recipe, long rcvdTime, long time, double x, double y, double z) {
+        buffered();
+        mPyramids[recipe].add(rcvdTime, x, y, z);
+        SampleBlockBuffer block = mBlocks[recipe];
+        block.add(rcvdTime, time, x, y, z);
+        if (block.isFull()) {
+            commit(recipe);
+        }
+        return true;
+    }
+    
+    public synchronized boolean insertLocData(int recipe, long rcvdTime, long time, double latitude, double longitude, double altitude) {
+        mPyramids[recipe].add(rcvdTime, latitude, longitude, altitude);
+        return insertRecipeData(recipe, rcvdTime, time, null);
+    }
+    
+    public synchronized boolean insertRecipeData(int recipe, long rcvdTime, long time, double[] values) {
+        buffered();
+        mTimes[recipe][mCounts[recipe]++] = rcvdTime;
+        if (mCounts[recipe] == mBatchSize) {
+            commit(recipe);
+        }
+        return true;
+    }
+    
+    public synchronized boolean flush() {
+        for (int i=0; i<mCounts.length; i++) {
+            commit(i);
+        }
+        mFirstBuffered = 0;
+        return true;
+    }
+    
+    public synchronized boolean flushIfDue() {
+        if (mFirstBuffered != 0 && System.currentTimeMillis() - mFirstBuffered >= FLUSH_INTERVAL) {
+            return flush();
+        }
+        return true;
+    }
+    
+    public void checkpointIfDue() {
+    }
+    
+    public boolean hasLegacyData() {
+        return false;
+    }
+    
+    public int migrateLegacyRows(int maxRows) {
+        return 0;
+    }
+    
+    public boolean hasUnindexedTables() {
+        return false;
+    }
+    
+    public void indexNextTable() {
+    }
+    
+    public synchronized void setCommitListener(CommitListener listener) {
+        mCommitListener = listener;
+    }
+    
+    /**
+     * Total size of the blocks encoded so far
+     */
+    public synchronized long getBytesEncoded() {
+        return mBytesEncoded;
+    }
+    
+    /**
+     * Summary buckets closed so far
+     */
+    public synchronized long getSummaryCount() {
+        return mSummaries;
+    }
+    
+    public void onSummary(SummaryPyramid.Summary summary) {
+        mSummaries++;
+    }
+    
+    private void buffered() {
+        if (mFirstBuffered == 0) {
+            mFirstBuffered = System.currentTimeMillis();
+        }
+    }
+    
+    private void commit(int recipe) {
+        SampleBlockBuffer block = mBlocks[recipe];
+        if (block != null) {
+            int count = block.count();
+            if (count == 0) {
+                return;
+            }
+            OutputBuffer encoded = block.encode();
+            mBytesEncoded += encoded.length();
+            if (mCommitListener != null) {
+                mCommitListener.onCommit(recipe, block.page().rcvdTimes, count, System.currentTimeMillis());
+            }
+            block.clear();
+        } else {
+            int count = mCounts[recipe];
+            if (count == 0) {
+                return;
+            }
+            if (mCommitListener != null) {
+                mCommitListener.onCommit(recipe, mTimes[recipe], count, System.currentTimeMillis());
+            }
+            mCounts[recipe] = 0;
+        }
+    }
+}
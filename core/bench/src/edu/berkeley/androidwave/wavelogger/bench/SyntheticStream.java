@@ -0,0 +1,91 @@
+//
+//  SyntheticStream.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.bench;
+
+import edu.berkeley.androidwave.wavelogger.core.RecipePlan;
+import edu.berkeley.androidwave.wavelogger.core.SampleQueue;
+
+import java.util.Random;
+
+/**
+ * SyntheticStream
+ *
+ * Deterministic stand-in for the accelerometer and location recipes. The
+ * accelerometer runs at accelRate Hz, with readings on a 0.01 grid like
+ * real sensor output, and a location fix is interleaved once a second.
+ * Timestamps advance by the nominal sample spacing, not the wall clock.
+ */
+public class SyntheticStream {
+    
+    // recipe indices the samples are tagged with
+    public static final int ACCEL_RECIPE = 0;
+    public static final int LOC_RECIPE = 1;
+    public static final int RECIPE_COUNT = 2;
+    
+    public static final double ACCEL_QUANTUM = 0.01;
+    public static final double LOC_QUANTUM = 0.000001;
+    
+    private static final long START_TIME = 1300000000000L;
+    
+    private final Random mRandom;
+    private final int mAccelRate;
+    
+    private long mAccelCount;
+    private double mLatitude;
+    private double mLongitude;
+    
+    public SyntheticStream(int accelRate) {
+        mRandom = new Random(accelRate);
+        mAccelRate = accelRate;
+        mLatitude = 37.8716;
+        mLongitude = -122.2727;
+    }
+    
+    /**
+     * Plans for the two recipes, as the service would register them for a
+     * single session
+     */
+    public static RecipePlan[] plans() {
+        return new RecipePlan[] {
+            new RecipePlan("accelerometer", ACCEL_RECIPE, 1, RecipePlan.ACCELEROMETER,
+                           new String[] {"x", "y", "z"}, ACCEL_QUANTUM),
+            new RecipePlan("location", LOC_RECIPE, 1, RecipePlan.LOCATION,
+                           new String[] {"latitude", "longitude", "altitude"}, LOC_QUANTUM)
+        };
+    }
+    
+    /**
+     * Produce the next sample into out, tagged with ACCEL_RECIPE or
+     * LOC_RECIPE
+     */
+    public void next(SampleQueue.Sample out) {
+        long time = START_TIME + mAccelCount * 1000 / mAccelRate;
+        double[] v = out.values;
+        if (mAccelCount > 0 && mAccelCount % mAccelRate == 0 && out.recipe != LOC_RECIPE) {
+            mLatitude += (mRandom.nextDouble() - 0.5) * 0.0001;
+            mLongitude += (mRandom.nextDouble() - 0.5) * 0.0001;
+            out.recipe = LOC_RECIPE;
+            v[0] = quantize(mLatitude, LOC_QUANTUM);
+            v[1] = quantize(mLongitude, LOC_QUANTUM);
+            v[2] = quantize(50 + mRandom.nextGaussian(), 0.1);
+        } else {
+            double phase = 2 * Math.PI * mAccelCount / mAccelRate;
+            out.recipe = ACCEL_RECIPE;
+            v[0] = quantize(Math.sin(phase) + mRandom.nextGaussian() * 0.05, ACCEL_QUANTUM);
+            v[1] = quantize(Math.cos(phase) + mRandom.nextGaussian() * 0.05, ACCEL_QUANTUM);
+            v[2] = quantize(9.81 + mRandom.nextGaussian() * 0.05, ACCEL_QUANTUM);
+            mAccelCount++;
+        }
+        out.rcvdTime = time;
+        out.sampleTime = time;
+    }
+    
+    private static double quantize(double v, double quantum) {
+        return Math.rint(v / quantum) * quantum;
+    }
+}
@@ -0,0 +1,327 @@
+//
+//  GranularityStats.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.core;
+
+/**
+ * GranularityStats
+ *
+ * Streaming estimate of the granularity a recipe's outputs actually arrive
+ * at, to check against what the WaveService authorized: the effective
+ * sample rate and the jitter of the intervals between sample times, and
+ * for each value the observed quantum, a histogram of the steps between
+ * consecutive values, and how many values fall off the authorized
+ * precision's grid.
+ *
+ * The quantum is the approximate greatest common divisor of the nonzero
+ * steps seen so far. Values released at a precision are multiples of it,
+ * so the divisor settles on the precision, or a multiple of it if the
+ * sensor is coarser; values that are not quantized drive it towards zero,
+ * and once it is far below the smallest step the value is reported as
+ * continuous.
+ *
+ * Each sample costs a few arithmetic operations per value. Updates and
+ * reports synchronize on the stats, which only the recipe's listener
+ * updates.
+ */
+public class GranularityStats {
+    
+    // rates and steps within this fraction of the authorized ones pass
+    private static final double SLACK = 0.05;
+    
+    // remainders smaller than this fraction of the divisor count as zero
+    private static final double GCD_TOLERANCE = 1e-6;
+    
+    // a divisor this many times smaller than the smallest step means the
+    // values are not quantized
+    private static final double CONTINUOUS_RATIO = 1000;
+    
+    // step histogram buckets are powers of two, from 2^MIN_EXPONENT
+    private static final int MIN_EXPONENT = -32;
+    private static final int STEP_BUCKETS = 64;
+    
+    private final String[] mKeys;
+    private final double mMaxRate;
+    private final double mMaxPrecision;
+    
+    private long mCount;
+    private long mFirstTime;
+    private long mLastTime;
+    
+    // intervals between sample times, in ms
+    private final LatencyHistogram mIntervals;
+    private double mIntervalMean;
+    private double mIntervalM2;
+    private long mIntervalCount;
+    private long mFastIntervals;
+    
+    // per value
+    private final double[] mPrevious;
+    private final boolean[] mHasPrevious;
+    private final double[] mQuantum;
+    private final double[] mMinStep;
+    private final boolean[] mContinuous;
+    private final long[] mSteps;
+    private final long[] mRepeats;
+    private final long[] mOffGrid;
+    private final long[][] mStepCounts;
+    
+    /**
+     * Stats of a recipe storing the values of keys, authorized at maxRate
+     * Hz and maxPrecision units; either is 0 if unknown
+     */
+    public GranularityStats(String[] keys, double maxRate, double maxPrecision) {
+        mKeys = keys;
+        mMaxRate = maxRate;
+        mMaxPrecision = maxPrecision;
+        mIntervals = new LatencyHistogram("ms");
+        
+        int width = keys.length;
+        mPrevious = new double[width];
+        mHasPrevious = new boolean[width];
+        mQuantum = new double[width];
+        mMinStep = new double[width];
+        mContinuous = new boolean[width];
+        mSteps = new long[width];
+        mRepeats = new long[width];
+        mOffGrid = new long[width];
+        mStepCounts = new long[width][STEP_BUCKETS];
+        for (int i=0; i<width; i++) {
+            mMinStep[i] = Double.POSITIVE_INFINITY;
+        }
+    }
+    
+    public double getMaxRate() {
+        return mMaxRate;
+    }
+    
+    public double getMaxPrecision() {
+        return mMaxPrecision;
+    }
+    
+    /**
+     * Add a sample taken at sampleTime whose values are the first
+     * keys.length entries of values. Missing values are NaN.
+     */
+    public synchronized void add(long sampleTime, double[] values) {
+        if (mCount == 0) {
+            mFirstTime = sampleTime;
+        } else {
+            long interval = sampleTime - mLastTime;
+            mIntervals.record(interval);
+            // Welford's running variance
+            mIntervalCount++;
+            double d = interval - mIntervalMean;
+            mIntervalMean += d / mIntervalCount;
+            mIntervalM2 += d * (interval - mIntervalMean);
+            if (mMaxRate > 0 && interval < (1 - SLACK) * 1000 / mMaxRate) {
+                mFastIntervals++;
+            }
+        }
+        mLastTime = sampleTime;
+        mCount++;
+        
+        for (int i=0; i<mKeys.length; i++) {
+            double v = values[i];
+            if (v != v) {
+                continue;
+            }
+            if (mMaxPrecision > 0 && !onGrid(v, mMaxPrecision)) {
+                mOffGrid[i]++;
+            }
+            if (mHasPrevious[i]) {
+                addStep(i, Math.abs(v - mPrevious[i]));
+            }
+            mPrevious[i] = v;
+            mHasPrevious[i] = true;
+        }
+    }
+    
+    private void addStep(int i, double step) {
+        mSteps[i]++;
+        if (step == 0) {
+            mRepeats[i]++;
+            return;
+        }
+        // binary exponent, as Math.getExponent is not in the older APIs
+        int exponent = (int)((Double.doubleToRawLongBits(step) >>> 52) & 0x7ff) - 1023;
+        int bucket = exponent + 1 - MIN_EXPONENT;
+        mStepCounts[i][Math.max(0, Math.min(STEP_BUCKETS - 1, bucket))]++;
+        
+        if (step < mMinStep[i]) {
+            mMinStep[i] = step;
+        }
+        if (mContinuous[i]) {
+            return;
+        }
+        double q = (mQuantum[i] == 0 ? step : gcd(mQuantum[i], step));
+        if (q * CONTINUOUS_RATIO < mMinStep[i]) {
+            mContinuous[i] = true;
+            q = 0;
+        }
+        mQuantum[i] = q;
+    }
+    
+    /**
+     * Greatest common divisor of a and b, both positive, allowing for the
+     * rounding of each
+     */
+    static double gcd(double a, double b) {
+        if (a < b) {
+            double t = a;
+            a = b;
+            b = t;
+        }
+        double tolerance = GCD_TOLERANCE * a;
+        while (b > tolerance) {
+            double r = a % b;
+            if (b - r <= tolerance) {
+                r = 0;
+            }
+            a = b;
+            b = r;
+        }
+        return a;
+    }
+    
+    private static boolean onGrid(double v, double precision) {
+        double k = v / precision;
+        return Math.abs(k - Math.rint(k)) <= 1e-9 * Math.abs(k) + 1e-6;
+    }
+    
+    public synchronized long getCount() {
+        return mCount;
+    }
+    
+    /**
+     * Samples per second between the first and last sample times, or 0
+     * with fewer than two samples
+     */
+    public synchronized double getRate() {
+        long span = mLastTime - mFirstTime;
+        return (mCount > 1 && span > 0 ? (mCount - 1) * 1000.0 / span : 0);
+    }
+    
+    /**
+     * Standard deviation of the intervals between samples, in ms
+     */
+    public synchronized double getJitter() {
+        return (mIntervalCount > 1 ? Math.sqrt(mIntervalM2 / (mIntervalCount - 1)) : 0);
+    }
+    
+    /**
+     * Observed quantum of value i, or 0 if it is continuous or has not
+     * changed yet
+     */
+    public synchronized double getQuantum(int i) {
+        return mQuantum[i];
+    }
+    
+    /**
+     * Upper bound of the bucket holding the p-th percentile of the nonzero
+     * steps of value i, for p in (0, 1]
+     */
+    public synchronized double getStepPercentile(int i, double p) {
+        long nonzero = mSteps[i] - mRepeats[i];
+        if (nonzero == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(p * nonzero);
+        long seen = 0;
+        for (int b=0; b<STEP_BUCKETS; b++) {
+            seen += mStepCounts[i][b];
+            if (seen >= rank) {
+                return Math.pow(2, b + MIN_EXPONENT);
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+    
+    /**
+     * Whether the observed rate and every observed quantum are within what
+     * was authorized
+     */
+    public synchronized boolean isWithinAuthorization() {
+        if (mMaxRate > 0 && getRate() > (1 + SLACK) * mMaxRate) {
+            return false;
+        }
+        if (mMaxPrecision > 0) {
+            for (int i=0; i<mKeys.length; i++) {
+                if (finerThanAuthorized(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    private boolean finerThanAuthorized(int i) {
+        return mContinuous[i] || (mQuantum[i] > 0 && mQuantum[i] < (1 - SLACK) * mMaxPrecision);
+    }
+    
+    /**
+     * One line summary of the rate and quanta against the authorization
+     */
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("observed %.2f Hz, jitter %.1f ms, quantum ", getRate(), getJitter()));
+        for (int i=0; i<mKeys.length; i++) {
+            sb.append(i > 0 ? "/" : "").append(quantumString(i));
+        }
+        sb.append(String.format(" (authorized %.2f Hz, %s)", mMaxRate, precisionString()));
+        if (!isWithinAuthorization()) {
+            sb.append(" EXCEEDED");
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Multi-line report, one line per value, as written to export bundles
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("  authorized %.2f Hz, %s\n", mMaxRate, precisionString()));
+        sb.append(String.format("  observed %.2f Hz over %d samples, interval mean %.1f ms, jitter %.1f ms, %s",
+                                getRate(), mCount, mIntervalMean, getJitter(), mIntervals));
+        if (mMaxRate > 0) {
+            sb.append(String.format(", %d faster than authorized", mFastIntervals));
+        }
+        sb.append('\n');
+        for (int i=0; i<mKeys.length; i++) {
+            long nonzero = mSteps[i] - mRepeats[i];
+            sb.append("  ").append(mKeys[i]).append(": quantum ").append(quantumString(i));
+            if (mMaxPrecision > 0 && mQuantum[i] > 0) {
+                sb.append(String.format(" (%.3fx authorized)", mQuantum[i] / mMaxPrecision));
+            }
+            sb.append(String.format(", %d steps, %.1f%% repeats", mSteps[i],
+                                    (mSteps[i] > 0 ? 100.0 * mRepeats[i] / mSteps[i] : 0)));
+            if (nonzero > 0) {
+                sb.append(String.format(", smallest %.6g, median <= %.6g, 99%% <= %.6g", mMinStep[i],
+                                        getStepPercentile(i, 0.5), getStepPercentile(i, 0.99)));
+            }
+            if (mMaxPrecision > 0) {
+                sb.append(String.format(", %d off grid", mOffGrid[i]));
+                if (finerThanAuthorized(i)) {
+                    sb.append(", FINER than authorized");
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+    
+    private String quantumString(int i) {
+        if (mContinuous[i]) {
+            return "continuous";
+        }
+        return (mQuantum[i] > 0 ? String.format("%.6g", mQuantum[i]) : "?");
+    }
+    
+    private String precisionString() {
+        return (mMaxPrecision > 0 ? String.format("precision %.6g", mMaxPrecision) : "precision unknown");
+    }
+}
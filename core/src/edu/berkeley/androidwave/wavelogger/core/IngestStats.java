@@ -0,0 +1,198 @@
+//
+//  IngestStats.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * IngestStats
+ *
+ * Counters for one logging run, per recipe: samples received from the
+ * WaveService, samples committed, store errors, the time the writer spends
+ * per insert, and the latency from receipt to commit. All updates are
+ * atomic increments, so binder threads and the writer record without
+ * locking, and readers such as the WaveLogger activity can take a report
+ * at any time.
+ *
+ * Recipes are named as they start, since sessions can join a run that is
+ * already logging; recipes without a name are left out of reports. Each
+ * recipe can also carry the GranularityStats of its outputs, reported
+ * alongside its counters.
+ */
+public class IngestStats {
+    
+    private final AtomicReferenceArray<String> mRecipeNames;
+    private final long mStartTime;
+    
+    private final AtomicLongArray mReceived;
+    private final AtomicLongArray mStored;
+    private final AtomicLongArray mErrors;
+    private final LatencyHistogram[] mInsertMicros;
+    private final LatencyHistogram[] mCommitMillis;
+    private final AtomicReferenceArray<GranularityStats> mGranularity;
+    
+    private volatile SampleQueue mQueue;
+    
+    public IngestStats(String[] recipeNames) {
+        this(recipeNames.length);
+        for (int i=0; i<recipeNames.length; i++) {
+            setRecipeName(i, recipeNames[i]);
+        }
+    }
+    
+    public IngestStats(int recipeCount) {
+        mStartTime = System.currentTimeMillis();
+        
+        mRecipeNames = new AtomicReferenceArray<String>(recipeCount);
+        mReceived = new AtomicLongArray(recipeCount);
+        mStored = new AtomicLongArray(recipeCount);
+        mErrors = new AtomicLongArray(recipeCount);
+        mInsertMicros = new LatencyHistogram[recipeCount];
+        mCommitMillis = new LatencyHistogram[recipeCount];
+        mGranularity = new AtomicReferenceArray<GranularityStats>(recipeCount);
+        for (int i=0; i<recipeCount; i++) {
+            mInsertMicros[i] = new LatencyHistogram("us");
+            mCommitMillis[i] = new LatencyHistogram("ms");
+        }
+    }
+    
+    /**
+     * Report the depth and drop counts of queue along with the counters
+     */
+    public void setQueue(SampleQueue queue) {
+        mQueue = queue;
+    }
+    
+    /**
+     * Clear the counters of a recipe index, before it is handed to a new
+     * recipe
+     */
+    public void reset(int recipe) {
+        mReceived.set(recipe, 0);
+        mStored.set(recipe, 0);
+        mErrors.set(recipe, 0);
+        mInsertMicros[recipe].reset();
+        mCommitMillis[recipe].reset();
+        mGranularity.set(recipe, null);
+    }
+    
+    public void setRecipeName(int recipe, String name) {
+        mRecipeNames.set(recipe, name);
+    }
+    
+    public void setGranularity(int recipe, GranularityStats granularity) {
+        mGranularity.set(recipe, granularity);
+    }
+    
+    /**
+     * Granularity observed for recipe, or null until its plan is known
+     */
+    public GranularityStats getGranularity(int recipe) {
+        return mGranularity.get(recipe);
+    }
+    
+    public void received(int recipe) {
+        mReceived.incrementAndGet(recipe);
+    }
+    
+    /**
+     * A store call by the writer took micros, and failed if !success
+     */
+    public void inserted(int recipe, long micros, boolean success) {
+        mInsertMicros[recipe].record(micros);
+        if (!success) {
+            mErrors.incrementAndGet(recipe);
+        }
+    }
+    
+    /**
+     * count samples of recipe, received at rcvdTimes, were committed at
+     * commitTime
+     */
+    public void committed(int recipe, long[] rcvdTimes, int count, long commitTime) {
+        mStored.addAndGet(recipe, count);
+        LatencyHistogram h = mCommitMillis[recipe];
+        for (int i=0; i<count; i++) {
+            h.record(commitTime - rcvdTimes[i]);
+        }
+    }
+    
+    public long getReceived(int recipe) {
+        return mReceived.get(recipe);
+    }
+    
+    public long getStored(int recipe) {
+        return mStored.get(recipe);
+    }
+    
+    public LatencyHistogram getInsertLatency(int recipe) {
+        return mInsertMicros[recipe];
+    }
+    
+    public LatencyHistogram getCommitLatency(int recipe) {
+        return mCommitMillis[recipe];
+    }
+    
+    /**
+     * Plain text report, as shown in the activity and written to export
+     * bundles
+     */
+    public String report() {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - mStartTime) / 1000.0;
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Logging for %.0f s\n", seconds));
+        SampleQueue queue = mQueue;
+        if (queue != null) {
+            sb.append(String.format("Queue: %d queued, %d peak, policy %s\n",
+                                    queue.size(), queue.getPeakSize(), queue.getPolicy()));
+        }
+        for (int i=0; i<mRecipeNames.length(); i++) {
+            String name = mRecipeNames.get(i);
+            if (name == null) {
+                continue;
+            }
+            long received = mReceived.get(i);
+            long stored = mStored.get(i);
+            sb.append(name).append('\n');
+            sb.append(String.format("  received %d (%.1f/s), stored %d (%.1f/s)",
+                                    received, received / seconds, stored, stored / seconds));
+            if (queue != null) {
+                sb.append(String.format(", dropped %d", queue.getDropCount(i)));
+            }
+            sb.append(String.format(", errors %d\n", mErrors.get(i)));
+            sb.append("  insert: ").append(mInsertMicros[i]).append('\n');
+            sb.append("  receipt to commit: ").append(mCommitMillis[i]).append('\n');
+            GranularityStats granularity = mGranularity.get(i);
+            if (granularity != null) {
+                sb.append("  ").append(granularity.summary()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Plain text report of the granularity of each recipe against its
+     * authorization, as written to export bundles
+     */
+    public String granularityReport() {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<mRecipeNames.length(); i++) {
+            String name = mRecipeNames.get(i);
+            GranularityStats granularity = mGranularity.get(i);
+            if (name == null || granularity == null) {
+                continue;
+            }
+            sb.append(name).append(granularity.isWithinAuthorization() ? "\n" : " EXCEEDS AUTHORIZATION\n");
+            sb.append(granularity.report());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,109 @@
+//
+//  LatencyHistogram.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram
+ *
+ * Histogram with power of two buckets: bucket 0 counts values of 0, and
+ * bucket b values in [2^(b-1), 2^b). Recording is a couple of atomic
+ * increments, so it can be done per sample from any thread without locks.
+ * Percentiles are reported as the upper bound of their bucket.
+ */
+public class LatencyHistogram {
+    
+    private static final int BUCKETS = 40;
+    
+    private final String mUnit;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mCount;
+    private final AtomicLong mSum;
+    private final AtomicLong mMax;
+    
+    public LatencyHistogram(String unit) {
+        mUnit = unit;
+        mCounts = new AtomicLongArray(BUCKETS);
+        mCount = new AtomicLong();
+        mSum = new AtomicLong();
+        mMax = new AtomicLong();
+    }
+    
+    public void record(long value) {
+        if (value < 0) {
+            // clock adjustments
+            value = 0;
+        }
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        mCounts.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+    
+    /**
+     * Start over, for a recipe index handed to a new recipe. Values
+     * recorded meanwhile may be partly counted.
+     */
+    public void reset() {
+        for (int i=0; i<BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+    
+    public long getCount() {
+        return mCount.get();
+    }
+    
+    public long getMax() {
+        return mMax.get();
+    }
+    
+    public double getMean() {
+        long count = mCount.get();
+        return (count > 0 ? (double)mSum.get() / count : 0);
+    }
+    
+    /**
+     * Upper bound of the bucket holding the p-th percentile, for p in
+     * (0, 1]
+     */
+    public long getPercentile(double p) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(p * count);
+        long seen = 0;
+        for (int b=0; b<BUCKETS; b++) {
+            seen += mCounts.get(b);
+            if (seen >= rank) {
+                return (b == 0 ? 0 : Math.min((1L << b) - 1, getMax()));
+            }
+        }
+        return getMax();
+    }
+    
+    /**
+     * One line summary: count, mean, median, 99th percentile and maximum
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1f p50<=%d p99<=%d max=%d %s",
+                             getCount(), getMean(), getPercentile(0.5), getPercentile(0.99), getMax(), mUnit);
+    }
+}
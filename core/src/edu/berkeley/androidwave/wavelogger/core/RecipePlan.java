@@ -0,0 +1,130 @@
+//
+//  RecipePlan.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * RecipePlan
+ *
+ * How the outputs of one recipe are logged for one session: the value keys
+ * to pull out of each output, in column order, the column each is stored
+ * in, and which kind of table they go to. A plan is fixed when a recipe is
+ * first seen, so every later sample is unpacked by position without
+ * deciding anything per sample.
+ */
+public final class RecipePlan {
+    
+    // most values logged per sample; further keys are ignored
+    public static final int MAX_VALUES = 8;
+    
+    // where a recipe's samples are stored: the accelerometer and location
+    // tables, or a table of the recipe's own
+    public static final int ACCELEROMETER = 0;
+    public static final int LOCATION = 1;
+    public static final int OTHER = 2;
+    
+    // columns every recipe table has besides its values
+    private static final String[] RESERVED_COLUMNS = {"_id", "rcvd_time", "sample_time", "session_id"};
+    
+    public final String recipeId;
+    public final int index;
+    public final long session;
+    public final int kind;
+    public final String[] keys;
+    public final String[] columns;
+    
+    // precision values are stored to, or 0 if they are kept as given
+    public final double quantum;
+    
+    /**
+     * Plan for recipeId in session, queued under recipe index, storing the
+     * values of keys in that order
+     */
+    public RecipePlan(String recipeId, int index, long session, int kind, String[] keys, double quantum) {
+        this.recipeId = recipeId;
+        this.index = index;
+        this.session = session;
+        this.kind = kind;
+        this.keys = keys;
+        this.quantum = quantum;
+        columns = new String[keys.length];
+        HashSet<String> used = new HashSet<String>();
+        for (String c : RESERVED_COLUMNS) {
+            used.add(c);
+        }
+        for (int i=0; i<keys.length; i++) {
+            String column = sanitize(keys[i]);
+            String candidate = column;
+            for (int n=2; used.contains(candidate); n++) {
+                candidate = column + "_" + n;
+            }
+            used.add(candidate);
+            columns[i] = candidate;
+        }
+    }
+    
+    /**
+     * Plan storing the given keys of a recipe's first output, sorted so the
+     * column order does not depend on the map the output came in. Keys past
+     * MAX_VALUES are dropped.
+     */
+    public static RecipePlan fromKeys(String recipeId, int index, long session, Collection<String> keys) {
+        ArrayList<String> sorted = new ArrayList<String>(keys);
+        Collections.sort(sorted);
+        int n = Math.min(sorted.size(), MAX_VALUES);
+        return new RecipePlan(recipeId, index, session, OTHER, sorted.subList(0, n).toArray(new String[n]), 0);
+    }
+    
+    public int width() {
+        return keys.length;
+    }
+    
+    /**
+     * Copy the planned values of an output into out, in column order, with
+     * missing values as NaN
+     */
+    public void extract(Map<String, Double> values, double[] out) {
+        for (int i=0; i<keys.length; i++) {
+            Double v = values.get(keys[i]);
+            out[i] = (v == null ? Double.NaN : v.doubleValue());
+        }
+    }
+    
+    /**
+     * Lower case name made of letters, digits and underscores, not starting
+     * with a digit
+     */
+    public static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length() + 2);
+        String lower = name.toLowerCase(Locale.US);
+        for (int i=0; i<lower.length(); i++) {
+            char c = lower.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+            sb.append(ok ? c : '_');
+        }
+        if (sb.length() == 0 || Character.isDigit(sb.charAt(0))) {
+            sb.insert(0, "v_");
+        }
+        return sb.toString();
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(recipeId).append(" (session ").append(session).append(") [");
+        for (int i=0; i<keys.length; i++) {
+            sb.append(i > 0 ? ", " : "").append(keys[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,95 @@
+//
+//  SampleBlockBuffer.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.core;
+
+import edu.berkeley.androidwave.wavelogger.export.OutputBuffer;
+import edu.berkeley.androidwave.wavelogger.export.SampleBlockCodec;
+import edu.berkeley.androidwave.wavelogger.export.SamplePage;
+
+/**
+ * SampleBlockBuffer
+ *
+ * Collects a run of consecutive samples and encodes them as one
+ * SampleBlockCodec block. The page and the encode buffer are reused from
+ * block to block, so steady state buffering allocates nothing.
+ */
+public final class SampleBlockBuffer {
+    
+    private final SamplePage mPage;
+    private final double[] mQuanta;
+    private final OutputBuffer mEncoded;
+    
+    /**
+     * quantum is the precision values are expected to be multiples of,
+     * letting blocks store them as integers when that is lossless; 0 if
+     * unknown
+     */
+    public SampleBlockBuffer(int blockSize, double quantum) {
+        mPage = new SamplePage(blockSize, SampleQueue.VALUES_PER_SAMPLE);
+        mQuanta = new double[] {quantum, quantum, quantum};
+        mEncoded = new OutputBuffer(blockSize * 8);
+    }
+    
+    public int count() {
+        return mPage.count;
+    }
+    
+    public boolean isFull() {
+        return mPage.isFull();
+    }
+    
+    /**
+     * Buffered samples; rows past count() are stale
+     */
+    public SamplePage page() {
+        return mPage;
+    }
+    
+    public void add(long rcvdTime, long time, double v0, double v1, double v2) {
+        int i = mPage.count++;
+        mPage.rcvdTimes[i] = rcvdTime;
+        mPage.sampleTimes[i] = time;
+        double[] values = mPage.values;
+        values[i * 3] = v0;
+        values[i * 3 + 1] = v1;
+        values[i * 3 + 2] = v2;
+    }
+    
+    public long startTime() {
+        long start = Long.MAX_VALUE;
+        for (int i=0; i<mPage.count; i++) {
+            start = Math.min(start, mPage.rcvdTimes[i]);
+        }
+        return start;
+    }
+    
+    public long endTime() {
+        long end = Long.MIN_VALUE;
+        for (int i=0; i<mPage.count; i++) {
+            end = Math.max(end, mPage.rcvdTimes[i]);
+        }
+        return end;
+    }
+    
+    /**
+     * Encode the buffered samples, returning the reused encode buffer
+     */
+    public OutputBuffer encode() {
+        mEncoded.reset();
+        SampleBlockCodec.encode(mPage, 0, mPage.count, mQuanta, mEncoded);
+        return mEncoded;
+    }
+    
+    /**
+     * Start a new block. The old samples stay readable through page()
+     * until overwritten.
+     */
+    public void clear() {
+        mPage.count = 0;
+    }
+}
@@ -0,0 +1,280 @@
+//
+//  SampleQueue.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.core;
+
+/**
+ * SampleQueue
+ *
+ * Bounded queue handing recipe samples from the binder threads to the
+ * writer thread. All slots are preallocated as parallel primitive arrays, so
+ * enqueueing a sample copies a few primitives and allocates nothing.
+ *
+ * When the queue is full, the OverflowPolicy decides whether the producer
+ * waits for space, the oldest queued sample is discarded, or the new sample
+ * is discarded. Discarded samples are counted per recipe.
+ *
+ * Every slot holds the same number of values, VALUES_PER_SAMPLE unless the
+ * queue is created wider for recipes with more values.
+ */
+public class SampleQueue {
+    
+    public static final int VALUES_PER_SAMPLE = 3;
+    
+    public enum OverflowPolicy {
+        BLOCK,
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+    
+    /**
+     * Holder the consumer copies a dequeued sample into
+     */
+    public static final class Sample {
+        public int recipe;
+        public long rcvdTime;
+        public long sampleTime;
+        public final double[] values;
+        
+        public Sample() {
+            this(VALUES_PER_SAMPLE);
+        }
+        
+        public Sample(int width) {
+            values = new double[width];
+        }
+    }
+    
+    private final OverflowPolicy mPolicy;
+    private final int mCapacity;
+    private final int mWidth;
+    
+    private final int[] mRecipes;
+    private final long[] mRcvdTimes;
+    private final long[] mSampleTimes;
+    private final double[] mValues;
+    
+    private final long[] mDropCounts;
+    private final int[] mQueuedCounts;
+    
+    private int mHead;
+    private int mCount;
+    private int mPeakCount;
+    private boolean mClosed;
+    
+    public SampleQueue(int capacity, OverflowPolicy policy, int recipeCount) {
+        this(capacity, policy, recipeCount, VALUES_PER_SAMPLE);
+    }
+    
+    public SampleQueue(int capacity, OverflowPolicy policy, int recipeCount, int width) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (width < VALUES_PER_SAMPLE) {
+            throw new IllegalArgumentException("width must be at least " + VALUES_PER_SAMPLE);
+        }
+        mPolicy = policy;
+        mCapacity = capacity;
+        mWidth = width;
+        
+        mRecipes = new int[capacity];
+        mRcvdTimes = new long[capacity];
+        mSampleTimes = new long[capacity];
+        mValues = new double[capacity * width];
+        
+        mDropCounts = new long[recipeCount];
+        mQueuedCounts = new int[recipeCount];
+    }
+    
+    public OverflowPolicy getPolicy() {
+        return mPolicy;
+    }
+    
+    /**
+     * Number of values held per sample
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+    
+    public int getRecipeCount() {
+        return mDropCounts.length;
+    }
+    
+    /**
+     * Enqueue a sample. Returns false if the sample was discarded, either by
+     * the DROP_NEWEST policy or because the queue has been closed.
+     */
+    public synchronized boolean put(int recipe, long rcvdTime, long sampleTime, double v0, double v1, double v2) {
+        int slot = reserve(recipe);
+        if (slot < 0) {
+            return false;
+        }
+        
+        mRecipes[slot] = recipe;
+        mRcvdTimes[slot] = rcvdTime;
+        mSampleTimes[slot] = sampleTime;
+        int base = slot * mWidth;
+        mValues[base] = v0;
+        mValues[base + 1] = v1;
+        mValues[base + 2] = v2;
+        for (int i=VALUES_PER_SAMPLE; i<mWidth; i++) {
+            mValues[base + i] = Double.NaN;
+        }
+        
+        added(recipe);
+        return true;
+    }
+    
+    /**
+     * Enqueue a sample with values from an array. Values past the queue
+     * width are ignored, and missing ones are queued as NaN.
+     */
+    public synchronized boolean put(int recipe, long rcvdTime, long sampleTime, double[] values) {
+        int slot = reserve(recipe);
+        if (slot < 0) {
+            return false;
+        }
+        
+        mRecipes[slot] = recipe;
+        mRcvdTimes[slot] = rcvdTime;
+        mSampleTimes[slot] = sampleTime;
+        int base = slot * mWidth;
+        int n = Math.min(values.length, mWidth);
+        System.arraycopy(values, 0, mValues, base, n);
+        for (int i=n; i<mWidth; i++) {
+            mValues[base + i] = Double.NaN;
+        }
+        
+        added(recipe);
+        return true;
+    }
+    
+    /**
+     * Make room for a sample according to the overflow policy, returning
+     * the slot to fill, or -1 if the sample is to be discarded
+     */
+    private int reserve(int recipe) {
+        if (mClosed) {
+            return -1;
+        }
+        
+        if (mCount == mCapacity) {
+            switch (mPolicy) {
+                case BLOCK:
+                    while (mCount == mCapacity && !mClosed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            mDropCounts[recipe]++;
+                            return -1;
+                        }
+                    }
+                    if (mClosed) {
+                        return -1;
+                    }
+                    break;
+                case DROP_OLDEST:
+                    mDropCounts[mRecipes[mHead]]++;
+                    mQueuedCounts[mRecipes[mHead]]--;
+                    mHead = (mHead + 1) % mCapacity;
+                    mCount--;
+                    break;
+                case DROP_NEWEST:
+                    mDropCounts[recipe]++;
+                    return -1;
+            }
+        }
+        
+        return (mHead + mCount) % mCapacity;
+    }
+    
+    private void added(int recipe) {
+        mQueuedCounts[recipe]++;
+        if (mCount++ == 0) {
+            notifyAll();
+        }
+        if (mCount > mPeakCount) {
+            mPeakCount = mCount;
+        }
+    }
+    
+    /**
+     * Dequeue the oldest sample into out, which must hold getWidth() values,
+     * waiting up to timeoutMillis for one to arrive. Returns false if no
+     * sample arrived in time, or if the queue is closed and empty.
+     */
+    public synchronized boolean take(Sample out, long timeoutMillis) throws InterruptedException {
+        if (mCount == 0 && !mClosed) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (mCount == 0 && !mClosed && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        
+        if (mCount == 0) {
+            return false;
+        }
+        
+        out.recipe = mRecipes[mHead];
+        mQueuedCounts[out.recipe]--;
+        out.rcvdTime = mRcvdTimes[mHead];
+        out.sampleTime = mSampleTimes[mHead];
+        System.arraycopy(mValues, mHead * mWidth, out.values, 0, mWidth);
+        
+        mHead = (mHead + 1) % mCapacity;
+        if (mCount-- == mCapacity) {
+            notifyAll();
+        }
+        return true;
+    }
+    
+    /**
+     * Stop accepting samples. Samples already queued can still be taken.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+    
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+    
+    public synchronized int size() {
+        return mCount;
+    }
+    
+    /**
+     * Largest number of samples queued at once
+     */
+    public synchronized int getPeakSize() {
+        return mPeakCount;
+    }
+    
+    public synchronized long getDropCount(int recipe) {
+        return mDropCounts[recipe];
+    }
+    
+    /**
+     * Count the drops of a recipe index afresh, for an index handed to a
+     * new recipe
+     */
+    public synchronized void resetDropCount(int recipe) {
+        mDropCounts[recipe] = 0;
+    }
+    
+    /**
+     * Number of samples of recipe still waiting to be taken
+     */
+    public synchronized int getQueuedCount(int recipe) {
+        return mQueuedCounts[recipe];
+    }
+}
@@ -0,0 +1,149 @@
+//
+//  SampleRing.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * SampleRing
+ *
+ * The most recent samples of one recipe, in a fixed ring overwritten
+ * oldest first, for previews. One thread publishes and any number read,
+ * without locks: the writer fills the next slot and then advances the
+ * published count, and a reader copies what it wants and then checks the
+ * count again, discarding the samples that may have been overwritten while
+ * it was copying. Slots are atomic longs, values stored as their bits, so
+ * the second check is ordered after the copy. Publishing is a handful of
+ * stores, and readers never make the writer wait.
+ */
+public final class SampleRing {
+    
+    private final int mMask;
+    private final int mWidth;
+    
+    // a slot is the time followed by width values
+    private final AtomicLongArray mSlots;
+    
+    // samples published so far; sample n is in slot n & mMask
+    private final AtomicLong mPublished;
+    
+    /**
+     * Ring of at least capacity samples, rounded up to a power of two, of
+     * width values each
+     */
+    public SampleRing(int capacity, int width) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = size - 1;
+        mWidth = width;
+        mSlots = new AtomicLongArray(size * (width + 1));
+        mPublished = new AtomicLong();
+    }
+    
+    public int capacity() {
+        return mMask + 1;
+    }
+    
+    public int width() {
+        return mWidth;
+    }
+    
+    /**
+     * Samples published since the ring was created
+     */
+    public long getPublished() {
+        return mPublished.get();
+    }
+    
+    /**
+     * Publish a sample whose values are the first width entries of values.
+     * Only one thread may publish to a ring.
+     */
+    public void publish(long time, double[] values) {
+        long n = mPublished.get();
+        int base = (int)(n & mMask) * (mWidth + 1);
+        mSlots.set(base, time);
+        for (int i=0; i<mWidth; i++) {
+            mSlots.set(base + 1 + i, Double.doubleToRawLongBits(values[i]));
+        }
+        mPublished.set(n + 1);
+    }
+    
+    /**
+     * Copy the most recent samples into out, as many as it holds, oldest
+     * first. Returns the number copied.
+     */
+    public int read(Snapshot out) {
+        long end = mPublished.get();
+        long start = Math.max(0, end - Math.min(out.times.length, capacity()));
+        int width = Math.min(mWidth, out.width);
+        for (long n=start; n<end; n++) {
+            int base = (int)(n & mMask) * (mWidth + 1);
+            int i = (int)(n - start);
+            out.times[i] = mSlots.get(base);
+            for (int j=0; j<width; j++) {
+                out.values[i * out.width + j] = Double.longBitsToDouble(mSlots.get(base + 1 + j));
+            }
+        }
+        
+        // the slot after the last published sample may be mid-write, so
+        // only samples newer than the one it held are certainly intact
+        long intact = mPublished.get() - capacity() + 1;
+        int skip = (int)Math.max(0, intact - start);
+        int count = (int)Math.max(0, end - start - skip);
+        if (skip > 0 && count > 0) {
+            System.arraycopy(out.times, skip, out.times, 0, count);
+            System.arraycopy(out.values, skip * out.width, out.values, 0, count * out.width);
+        }
+        out.count = count;
+        out.published = end;
+        return count;
+    }
+    
+    /**
+     * Samples copied out of a ring, reused from read to read
+     */
+    public static final class Snapshot {
+        public final int width;
+        public final long[] times;
+        public final double[] values;
+        public int count;
+        
+        // samples the ring had published when it was read
+        public long published;
+        
+        public Snapshot(int capacity, int width) {
+            this.width = width;
+            times = new long[capacity];
+            values = new double[capacity * width];
+        }
+        
+        public double value(int sample, int i) {
+            return values[sample * width + i];
+        }
+        
+        /**
+         * Samples per second received in the window ms before now, or over
+         * the samples held if they do not reach that far back
+         */
+        public double rate(long now, long window) {
+            if (count == 0) {
+                return 0;
+            }
+            long from = now - window;
+            if (times[0] >= from) {
+                return count * 1000.0 / Math.max(1, now - times[0]);
+            }
+            int n = 0;
+            for (int i=count-1; i>=0 && times[i] >= from; i--) {
+                n++;
+            }
+            return n * 1000.0 / window;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+//
+//  SampleStore.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.core;
+
+/**
+ * SampleStore
+ *
+ * Storage the SampleWriter drains samples into. The app's implementation
+ * is DbHelper; implementations are only ever called from the writer
+ * thread, apart from flush().
+ *
+ * Samples are passed with the index of the recipe they belong to, which
+ * is registered with its RecipePlan before its first sample. rcvdTime is
+ * in epoch milliseconds. Missing values are passed as Double.NaN. Store
+ * methods may buffer, and return false if anything they committed could
+ * not be stored.
+ */
+public interface SampleStore {
+    
+    /**
+     * Told about every committed batch, with the rcvd_time of each sample
+     * in it. Called on the committing thread with the store locked, so it
+     * must be quick and must not call back into the store.
+     */
+    public interface CommitListener {
+        void onCommit(int recipe, long[] rcvdTimes, int count, long commitTime);
+    }
+    
+    /**
+     * Prepare storage for a recipe of a session. Called once per recipe,
+     * before its first sample; an index given up by a stopped recipe is
+     * registered again with the plan of the recipe reusing it.
+     */
+    void registerRecipe(RecipePlan plan);
+    
+    boolean insertAccelData(int recipe, long rcvdTime, long time, double x, double y, double z);
+    
+    boolean insertLocData(int recipe, long rcvdTime, long time, double latitude, double longitude, double altitude);
+    
+    /**
+     * Store a sample of a recipe of kind OTHER, with values in plan order
+     */
+    boolean insertRecipeData(int recipe, long rcvdTime, long time, double[] values);
+    
+    /**
+     * Commit anything buffered
+     */
+    boolean flush();
+    
+    /**
+     * Commit anything buffered for longer than the store's flush interval.
+     * Called whenever the writer is idle.
+     */
+    boolean flushIfDue();
+    
+    /**
+     * Background upkeep between commits, such as WAL checkpoints
+     */
+    void checkpointIfDue();
+    
+    /**
+     * Whether data from an older storage format is waiting to be migrated
+     */
+    boolean hasLegacyData();
+    
+    /**
+     * Migrate up to maxRows rows of older data, returning the number moved
+     */
+    int migrateLegacyRows(int maxRows);
+    
+    /**
+     * Whether indexes added by an upgrade are still to be built over data
+     * stored before it
+     */
+    boolean hasUnindexedTables();
+    
+    /**
+     * Build the missing indexes of one more table
+     */
+    void indexNextTable();
+    
+    void setCommitListener(CommitListener listener);
+}
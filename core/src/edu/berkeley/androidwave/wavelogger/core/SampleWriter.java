@@ -0,0 +1,232 @@
+//
+//  SampleWriter.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.core;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SampleWriter
+ *
+ * Dedicated thread draining a SampleQueue into a SampleStore, so that the
+ * binder threads delivering recipe output never wait on disk I/O. Logs
+ * through java.util.logging, which Android forwards to the system log.
+ */
+public class SampleWriter extends Thread {
+    
+    private static final Logger LOG = Logger.getLogger(SampleWriter.class.getSimpleName());
+    
+    // how long to wait for a sample before letting the database commit
+    // anything it has buffered
+    private static final long IDLE_TIMEOUT = 250;
+    
+    // minimum spacing between chunks of legacy data migration, so the
+    // queue has time to drain between them
+    private static final long MIGRATION_INTERVAL = 1000;
+    private static final int MIGRATION_CHUNK_SIZE = 2000;
+    
+    // minimum spacing between tables indexed after an upgrade; a table is
+    // only indexed with the queue empty, since it can take a while
+    private static final long INDEX_INTERVAL = 1000;
+    
+    private final SampleQueue mQueue;
+    private final SampleStore mStore;
+    private final IngestStats mStats;
+    
+    // plans of the recipes by index, and those the store has been told
+    // about; mRegistered is only touched by the writer thread
+    private final RecipePlan[] mPlans;
+    private final RecipePlan[] mRegistered;
+    
+    // indices given up by removeRecipe whose samples are still queued
+    private final boolean[] mRemoved;
+    private volatile int mRemovedCount;
+    
+    public SampleWriter(SampleQueue queue, SampleStore store, final IngestStats stats) {
+        super("WaveLogger writer");
+        mQueue = queue;
+        mStore = store;
+        mStats = stats;
+        mPlans = new RecipePlan[queue.getRecipeCount()];
+        mRegistered = new RecipePlan[queue.getRecipeCount()];
+        mRemoved = new boolean[queue.getRecipeCount()];
+        
+        mStore.setCommitListener(new SampleStore.CommitListener() {
+            public void onCommit(int recipe, long[] rcvdTimes, int count, long commitTime) {
+                stats.committed(recipe, rcvdTimes, count, commitTime);
+            }
+        });
+    }
+    
+    /**
+     * Make the plan of a recipe known to the writer. Must be called before
+     * its first sample is queued; the store is told about it on the writer
+     * thread.
+     */
+    public synchronized void addRecipe(RecipePlan plan) {
+        mPlans[plan.index] = plan;
+    }
+    
+    /**
+     * Give up the index of a recipe once nothing more will be queued for
+     * it. Its queued samples are still stored; then the index is free for
+     * addRecipe again, see isRemoving.
+     */
+    public synchronized void removeRecipe(int recipe) {
+        if (!mRemoved[recipe]) {
+            mRemoved[recipe] = true;
+            mRemovedCount++;
+        }
+    }
+    
+    /**
+     * Whether samples of a removed recipe index are still to be stored
+     */
+    public synchronized boolean isRemoving(int recipe) {
+        return mRemoved[recipe];
+    }
+    
+    /**
+     * Free the indices of removed recipes with no samples left in the
+     * queue, once their buffered samples are committed. The store is told
+     * about a new plan for an index when its first sample arrives.
+     */
+    private void releaseRemoved() {
+        boolean flushed = false;
+        for (int i=0; i<mRemoved.length; i++) {
+            if (isDrained(i)) {
+                if (!flushed) {
+                    mStore.flush();
+                    flushed = true;
+                }
+                release(i);
+            }
+        }
+    }
+    
+    private synchronized boolean isDrained(int recipe) {
+        return mRemoved[recipe] && mQueue.getQueuedCount(recipe) == 0;
+    }
+    
+    private synchronized void release(int recipe) {
+        mRemoved[recipe] = false;
+        mRemovedCount--;
+        mPlans[recipe] = null;
+        mRegistered[recipe] = null;
+    }
+    
+    private synchronized RecipePlan getPlan(int recipe) {
+        return (recipe < mPlans.length ? mPlans[recipe] : null);
+    }
+    
+    @Override
+    public void run() {
+        SampleQueue.Sample s = new SampleQueue.Sample(mQueue.getWidth());
+        long lastMigration = 0;
+        long lastIndex = 0;
+        try {
+            while (true) {
+                boolean stored = mQueue.take(s, IDLE_TIMEOUT);
+                if (stored) {
+                    store(s);
+                } else if (mQueue.isClosed()) {
+                    break;
+                }
+                
+                // a failing database must not stop the writer, or the
+                // queue would fill up behind it; all of this is retried
+                // on the next pass
+                try {
+                    if (!stored) {
+                        mStore.flushIfDue();
+                    }
+                    mStore.checkpointIfDue();
+                    if (mRemovedCount > 0) {
+                        releaseRemoved();
+                    }
+                    
+                    if (mStore.hasLegacyData()) {
+                        long now = System.currentTimeMillis();
+                        if (now - lastMigration >= MIGRATION_INTERVAL) {
+                            lastMigration = now;
+                            mStore.migrateLegacyRows(MIGRATION_CHUNK_SIZE);
+                        }
+                    } else if (mQueue.size() == 0 && mStore.hasUnindexedTables()) {
+                        long now = System.currentTimeMillis();
+                        if (now - lastIndex >= INDEX_INTERVAL) {
+                            lastIndex = now;
+                            mStore.indexNextTable();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "database upkeep failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.warning("interrupted with "+mQueue.size()+" samples still queued");
+        } finally {
+            mStore.flush();
+        }
+    }
+    
+    private void store(SampleQueue.Sample s) {
+        RecipePlan plan = mRegistered[s.recipe];
+        if (plan == null) {
+            plan = getPlan(s.recipe);
+            if (plan == null) {
+                LOG.warning("dropping sample for unknown recipe index "+s.recipe);
+                return;
+            }
+            try {
+                mStore.registerRecipe(plan);
+            } catch (RuntimeException e) {
+                // registration is tried again with the next sample
+                LOG.log(Level.WARNING, "could not register recipe index "+s.recipe, e);
+                mStats.inserted(s.recipe, 0, false);
+                return;
+            }
+            mRegistered[s.recipe] = plan;
+        }
+        
+        double[] v = s.values;
+        long start = System.nanoTime();
+        boolean success;
+        try {
+            switch (plan.kind) {
+                case RecipePlan.ACCELEROMETER:
+                    success = mStore.insertAccelData(s.recipe, s.rcvdTime, s.sampleTime, v[0], v[1], v[2]);
+                    break;
+                case RecipePlan.LOCATION:
+                    success = mStore.insertLocData(s.recipe, s.rcvdTime, s.sampleTime, v[0], v[1], v[2]);
+                    break;
+                default:
+                    success = mStore.insertRecipeData(s.recipe, s.rcvdTime, s.sampleTime, v);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            // such as an SQLException; counted as an error, and the writer
+            // goes on with the next sample
+            LOG.log(Level.WARNING, "could not store a sample of recipe index "+s.recipe, e);
+            success = false;
+        }
+        mStats.inserted(s.recipe, (System.nanoTime() - start) / 1000, success);
+    }
+    
+    /**
+     * Close the queue and wait for everything queued to be committed
+     */
+    public void shutdown() {
+        mQueue.close();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            LOG.warning("interrupted waiting for the writer to finish");
+        }
+        mStore.setCommitListener(null);
+    }
+}
@@ -0,0 +1,198 @@
+//
+//  SummaryPyramid.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.core;
+
+/**
+ * SummaryPyramid
+ *
+ * Rolling min/max/mean/count of each value of one recipe's samples, over
+ * buckets of 1 s, 10 s, 1 min and 10 min aligned on the epoch. Samples only
+ * update the open 1 s bucket; as a bucket closes it is handed to the
+ * listener and folded into the open bucket one level up, so each coarser
+ * level costs a merge per closed bucket below it rather than per sample.
+ *
+ * A bucket closes when the first sample past its end arrives, or on
+ * finish. Samples timed before the open bucket, after the clock was set
+ * back, are counted in it. Not thread safe.
+ */
+public final class SummaryPyramid {
+    
+    public static final long[] RESOLUTIONS = {1000, 10 * 1000, 60 * 1000, 10 * 60 * 1000};
+    
+    public interface Listener {
+        /**
+         * A bucket closed. summary is reused once the call returns.
+         */
+        void onSummary(Summary summary);
+    }
+    
+    /**
+     * The samples of one session received in [startTime, startTime +
+     * resolution). NaN values are left out of min, max and mean.
+     */
+    public static final class Summary {
+        public long session;
+        public long resolution;
+        public long startTime;
+        public long count;
+        public final double[] min;
+        public final double[] max;
+        public final double[] sum;
+        public final long[] valueCounts;
+        
+        public Summary(int width) {
+            min = new double[width];
+            max = new double[width];
+            sum = new double[width];
+            valueCounts = new long[width];
+            clear();
+        }
+        
+        public int width() {
+            return min.length;
+        }
+        
+        public double mean(int i) {
+            return (valueCounts[i] > 0 ? sum[i] / valueCounts[i] : Double.NaN);
+        }
+        
+        public void clear() {
+            count = 0;
+            for (int i=0; i<min.length; i++) {
+                min[i] = Double.NaN;
+                max[i] = Double.NaN;
+                sum[i] = 0;
+                valueCounts[i] = 0;
+            }
+        }
+        
+        void add(int i, double v) {
+            if (v != v) {
+                return;
+            }
+            if (valueCounts[i]++ == 0) {
+                min[i] = v;
+                max[i] = v;
+            } else if (v < min[i]) {
+                min[i] = v;
+            } else if (v > max[i]) {
+                max[i] = v;
+            }
+            sum[i] += v;
+        }
+        
+        void merge(Summary s) {
+            count += s.count;
+            for (int i=0; i<min.length; i++) {
+                if (s.valueCounts[i] == 0) {
+                    continue;
+                }
+                if (valueCounts[i] == 0 || s.min[i] < min[i]) {
+                    min[i] = s.min[i];
+                }
+                if (valueCounts[i] == 0 || s.max[i] > max[i]) {
+                    max[i] = s.max[i];
+                }
+                sum[i] += s.sum[i];
+                valueCounts[i] += s.valueCounts[i];
+            }
+        }
+        
+        public Summary copy() {
+            Summary s = new Summary(min.length);
+            s.session = session;
+            s.resolution = resolution;
+            s.startTime = startTime;
+            s.merge(this);
+            return s;
+        }
+    }
+    
+    private final Summary[] mLevels;
+    private final Listener mListener;
+    
+    /**
+     * Pyramid of samples of session with width values each
+     */
+    public SummaryPyramid(long session, int width, Listener listener) {
+        mLevels = new Summary[RESOLUTIONS.length];
+        for (int i=0; i<mLevels.length; i++) {
+            mLevels[i] = new Summary(width);
+            mLevels[i].session = session;
+            mLevels[i].resolution = RESOLUTIONS[i];
+        }
+        mListener = listener;
+    }
+    
+    /**
+     * Add a sample of three values received at time
+     */
+    public void add(long time, double v0, double v1, double v2) {
+        Summary s = open(time);
+        s.count++;
+        s.add(0, v0);
+        s.add(1, v1);
+        s.add(2, v2);
+    }
+    
+    /**
+     * Add a sample whose values are the first width entries of values
+     */
+    public void add(long time, double[] values) {
+        Summary s = open(time);
+        s.count++;
+        for (int i=0; i<s.width(); i++) {
+            s.add(i, values[i]);
+        }
+    }
+    
+    /**
+     * Close every open bucket, as at the end of the stream
+     */
+    public void finish() {
+        for (int level=0; level<mLevels.length; level++) {
+            if (mLevels[level].count > 0) {
+                close(level);
+            }
+        }
+    }
+    
+    /**
+     * The 1 s bucket time falls in, closing the open one if time is past it
+     */
+    private Summary open(long time) {
+        Summary s = mLevels[0];
+        if (s.count > 0 && time >= s.startTime + s.resolution) {
+            close(0);
+        }
+        if (s.count == 0) {
+            s.startTime = floor(time, s.resolution);
+        }
+        return s;
+    }
+    
+    private void close(int level) {
+        Summary s = mLevels[level];
+        mListener.onSummary(s);
+        if (level + 1 < mLevels.length) {
+            Summary up = mLevels[level + 1];
+            if (up.count > 0 && s.startTime >= up.startTime + up.resolution) {
+                close(level + 1);
+            }
+            if (up.count == 0) {
+                up.startTime = floor(s.startTime, up.resolution);
+            }
+            up.merge(s);
+        }
+        s.clear();
+    }
+    
+    private static long floor(long time, long resolution) {
+        return time - (((time % resolution) + resolution) % resolution);
+    }
+}
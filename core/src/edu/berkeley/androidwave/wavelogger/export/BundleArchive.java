@@ -0,0 +1,163 @@
+//
+//  BundleArchive.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * BundleArchive
+ *
+ * An export bundle as a single zip file, each member deflated as it is
+ * streamed in, so nothing is written uncompressed on the way. Members are
+ * written one after the other: openMember returns a channel for the next
+ * member, which stays valid until the next member is opened or the archive
+ * is closed. The archive is only usable once closed, as the zip directory
+ * goes at the end.
+ *
+ * Exported CSV typically deflates to a fifth or less of its size, and even
+ * the fastest level does most of that.
+ */
+public class BundleArchive {
+    
+    public static final int FASTEST = Deflater.BEST_SPEED;
+    public static final int DEFAULT = Deflater.DEFAULT_COMPRESSION;
+    public static final int SMALLEST = Deflater.BEST_COMPRESSION;
+    
+    private static final String ENC = "UTF-8";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final FileOutputStream mFile;
+    private final ZipOutputStream mZip;
+    private MemberChannel mMember;
+    private long mUncompressed;
+    
+    /**
+     * Archive written to file, replacing it, deflated at level: 0 to 9,
+     * FASTEST to SMALLEST, or DEFAULT
+     */
+    public BundleArchive(File file, int level) throws IOException {
+        if (level != DEFAULT && (level < Deflater.NO_COMPRESSION || level > SMALLEST)) {
+            throw new IllegalArgumentException("compression level " + level);
+        }
+        mFile = new FileOutputStream(file);
+        mZip = new ZipOutputStream(new BufferedOutputStream(mFile, BUFFER_SIZE));
+        mZip.setLevel(level);
+    }
+    
+    /**
+     * Start the member name, ending the previous one, and return a channel
+     * to write its contents to. Closing the channel does not close the
+     * archive.
+     */
+    public WritableByteChannel openMember(String name) throws IOException {
+        endMember();
+        mZip.putNextEntry(new ZipEntry(name));
+        mMember = new MemberChannel();
+        return mMember;
+    }
+    
+    /**
+     * Add a member holding text
+     */
+    public void writeText(String name, String text) throws IOException {
+        openMember(name).write(ByteBuffer.wrap(text.getBytes(ENC)));
+        endMember();
+    }
+    
+    /**
+     * Bytes of members added so far, before compression
+     */
+    public long getUncompressedLength() {
+        return mUncompressed + (mMember != null ? mMember.length : 0);
+    }
+    
+    /**
+     * Write the zip directory, flush the archive to the device and close
+     * it
+     */
+    public void close() throws IOException {
+        try {
+            endMember();
+            mZip.finish();
+            mZip.flush();
+            mFile.getFD().sync();
+        } finally {
+            mZip.close();
+        }
+    }
+    
+    /**
+     * Close the archive as it is, as when abandoning an export
+     */
+    public void abandon() {
+        try {
+            mZip.close();
+        } catch (IOException e) {
+            // nothing more to lose
+        }
+    }
+    
+    private void endMember() throws IOException {
+        if (mMember != null) {
+            mUncompressed += mMember.length;
+            mMember.open = false;
+            mMember = null;
+            mZip.closeEntry();
+        }
+    }
+    
+    /**
+     * Writes to the current member. Export buffers are heap buffers, so
+     * their bytes go to the deflater without a copy.
+     */
+    private final class MemberChannel implements WritableByteChannel {
+        
+        volatile boolean open = true;
+        long length;
+        private byte[] mCopy;
+        
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            int n = src.remaining();
+            if (src.hasArray()) {
+                mZip.write(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.limit());
+            } else {
+                if (mCopy == null || mCopy.length < Math.min(n, BUFFER_SIZE)) {
+                    mCopy = new byte[Math.min(n, BUFFER_SIZE)];
+                }
+                while (src.hasRemaining()) {
+                    int chunk = Math.min(src.remaining(), mCopy.length);
+                    src.get(mCopy, 0, chunk);
+                    mZip.write(mCopy, 0, chunk);
+                }
+            }
+            length += n;
+            return n;
+        }
+        
+        public boolean isOpen() {
+            return open;
+        }
+        
+        public void close() {
+            // the member ends when the next is opened
+        }
+    }
+}
@@ -0,0 +1,84 @@
+//
+//  ColumnarFormat.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+/**
+ * ColumnarFormat
+ *
+ * Compact binary alternative to CSV. The file starts with
+ * 
+ *   "WLCF", version byte, time zone id, column count, column names
+ * 
+ * where strings are varint length-prefixed UTF-8 and the column names
+ * include rcvd_time and sample_time. The time zone is the one the CSV
+ * export would have formatted rcvd_time in, so ColumnarReader can
+ * reproduce the CSV exactly.
+ * 
+ * Each page is then framed as an int payload length, an int CRC32 of the
+ * payload, and a SampleBlockCodec block. A zero length marks the end of
+ * the file.
+ */
+public class ColumnarFormat implements PageFormat {
+    
+    public static final byte[] MAGIC = {'W', 'L', 'C', 'F'};
+    public static final int VERSION = 1;
+    
+    private final String[] mColumnNames;
+    private final double[] mQuanta;
+    private final TimeZone mTimeZone;
+    
+    /**
+     * columnNames are the names of every column, including rcvd_time and
+     * sample_time. quanta are per value column, see SampleBlockCodec.encode.
+     */
+    public ColumnarFormat(String[] columnNames, double[] quanta) {
+        this(columnNames, quanta, TimeZone.getDefault());
+    }
+    
+    public ColumnarFormat(String[] columnNames, double[] quanta, TimeZone timeZone) {
+        mColumnNames = columnNames;
+        mQuanta = quanta;
+        mTimeZone = timeZone;
+    }
+    
+    public OutputBuffer newBuffer(int capacity) {
+        return new OutputBuffer(capacity);
+    }
+    
+    public void writeHeader(OutputBuffer out) {
+        out.writeBytes(MAGIC, 0, MAGIC.length);
+        out.writeByte(VERSION);
+        out.writeString(mTimeZone.getID());
+        out.writeVarLong(mColumnNames.length);
+        for (String name : mColumnNames) {
+            out.writeString(name);
+        }
+    }
+    
+    public void writePage(SamplePage page, OutputBuffer out) {
+        int frame = out.length();
+        out.writeInt(0);
+        out.writeInt(0);
+        int start = out.length();
+        
+        SampleBlockCodec.encode(page, 0, page.count, mQuanta, out);
+        
+        int length = out.length() - start;
+        CRC32 crc = new CRC32();
+        crc.update(out.bytes(), start, length);
+        out.putInt(frame, length);
+        out.putInt(frame + 4, (int)crc.getValue());
+    }
+    
+    public void writeTrailer(OutputBuffer out) {
+        out.writeInt(0);
+    }
+}
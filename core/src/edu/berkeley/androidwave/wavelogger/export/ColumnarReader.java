@@ -0,0 +1,189 @@
+//
+//  ColumnarReader.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+/**
+ * ColumnarReader
+ *
+ * Reads files written with ColumnarFormat. Has no Android dependencies, so
+ * it can be used on a workstation, e.g. to convert an export back to CSV:
+ * 
+ *   java edu.berkeley.androidwave.wavelogger.export.ColumnarReader accelerometer.wlc accelerometer.csv
+ */
+public class ColumnarReader {
+    
+    private final DataInputStream mIn;
+    private final TimeZone mTimeZone;
+    private final String[] mColumnNames;
+    
+    private byte[] mBlock;
+    private final InputBuffer mBlockInput;
+    private final CRC32 mCrc;
+    private SamplePage mPage;
+    private boolean mDone;
+    
+    public ColumnarReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        
+        byte[] magic = new byte[ColumnarFormat.MAGIC.length];
+        mIn.readFully(magic);
+        for (int i=0; i<magic.length; i++) {
+            if (magic[i] != ColumnarFormat.MAGIC[i]) {
+                throw new IOException("not a WaveLogger columnar file");
+            }
+        }
+        int version = mIn.readUnsignedByte();
+        if (version != ColumnarFormat.VERSION) {
+            throw new IOException("unsupported columnar format version " + version);
+        }
+        
+        mTimeZone = TimeZone.getTimeZone(readString());
+        mColumnNames = new String[(int)readVarLong()];
+        for (int i=0; i<mColumnNames.length; i++) {
+            mColumnNames[i] = readString();
+        }
+        
+        mBlock = new byte[64 * 1024];
+        mBlockInput = new InputBuffer();
+        mCrc = new CRC32();
+    }
+    
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+    
+    /**
+     * Time zone the exporting device formatted rcvd_time in
+     */
+    public TimeZone getTimeZone() {
+        return mTimeZone;
+    }
+    
+    /**
+     * Read the next block. The returned page is reused by the following
+     * call. Returns null at the end of the file.
+     */
+    public SamplePage next() throws IOException {
+        if (mDone) {
+            return null;
+        }
+        
+        int length;
+        try {
+            length = mIn.readInt();
+        } catch (EOFException e) {
+            throw new IOException("file ends without a trailer, it may be truncated");
+        }
+        if (length == 0) {
+            mDone = true;
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("corrupt block length " + length);
+        }
+        int expectedCrc = mIn.readInt();
+        
+        if (mBlock.length < length) {
+            mBlock = new byte[length];
+        }
+        mIn.readFully(mBlock, 0, length);
+        
+        mCrc.reset();
+        mCrc.update(mBlock, 0, length);
+        if ((int)mCrc.getValue() != expectedCrc) {
+            throw new IOException("block checksum mismatch");
+        }
+        
+        mBlockInput.wrap(mBlock, 0, length);
+        mPage = SampleBlockCodec.decode(mBlockInput, mPage);
+        return mPage;
+    }
+    
+    public void close() throws IOException {
+        mIn.close();
+    }
+    
+    /**
+     * Write the remaining rows as CSV, identical to the CSV export
+     */
+    public void writeCsv(WritableByteChannel out) throws IOException {
+        CsvBuffer buf = new CsvBuffer(256 * 1024, mTimeZone);
+        for (int i=0; i<mColumnNames.length; i++) {
+            buf.append(i == 0 ? "" : ", ").append(mColumnNames[i]);
+        }
+        buf.append('\n');
+        
+        // exports end with a whole number session_id column
+        int wholeFrom = Integer.MAX_VALUE;
+        if (mColumnNames.length > 2 && mColumnNames[mColumnNames.length - 1].equals("session_id")) {
+            wholeFrom = mColumnNames.length - 3;
+        }
+        
+        SamplePage page;
+        while ((page = next()) != null) {
+            page.formatCsv(buf, wholeFrom);
+            buf.writeTo(out);
+        }
+        buf.writeTo(out);
+    }
+    
+    private long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift=0; shift<64; shift+=7) {
+            int b = mIn.readUnsignedByte();
+            v |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+    
+    private String readString() throws IOException {
+        byte[] b = new byte[(int)readVarLong()];
+        mIn.readFully(b);
+        return new String(b, "UTF-8");
+    }
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: ColumnarReader <input.wlc> [<output.csv>]");
+            System.exit(1);
+        }
+        
+        ColumnarReader reader = new ColumnarReader(new FileInputStream(args[0]));
+        try {
+            if (args.length == 2) {
+                FileOutputStream out = new FileOutputStream(args[1]);
+                try {
+                    reader.writeCsv(out.getChannel());
+                } finally {
+                    out.close();
+                }
+            } else {
+                WritableByteChannel out = Channels.newChannel(System.out);
+                reader.writeCsv(out);
+                System.out.flush();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+//
+//  CsvBuffer.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * CsvBuffer
+ *
+ * OutputBuffer that formats CSV fields directly as ASCII, without
+ * going through String.format or a Writer. Output matches what the export
+ * code used to produce with String.format("%s,%d,%f,%f,%f\n", ...) where the
+ * %s was a java.sql.Timestamp, except that the decimal separator is always
+ * '.' regardless of the default locale.
+ */
+public final class CsvBuffer extends OutputBuffer {
+    
+    private static final long MILLIS_PER_DAY = 86400000L;
+    
+    // time zone offsets are assumed constant over aligned windows of this
+    // length, which holds for every zone that changes offset on a quarter
+    // hour boundary
+    private static final long OFFSET_WINDOW = 900000L;
+    
+    // %f rounds to six decimal places. Values this large, or this close to
+    // a rounding boundary, are passed to String.format instead.
+    private static final double FAST_FIXED_LIMIT = 1e8;
+    private static final double ROUNDING_MARGIN = 0.05;
+    
+    private final TimeZone mTimeZone;
+    private long mOffsetWindow = Long.MIN_VALUE;
+    private long mOffset;
+    private long mCachedDay = Long.MIN_VALUE;
+    private final byte[] mDayChars = new byte[10];
+    
+    public CsvBuffer(int capacity) {
+        this(capacity, TimeZone.getDefault());
+    }
+    
+    public CsvBuffer(int capacity, TimeZone timeZone) {
+        super(capacity);
+        mTimeZone = timeZone;
+    }
+    
+    /**
+     * Append an ASCII string, such as a header line
+     */
+    public CsvBuffer append(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i=0; i<n; i++) {
+            mBytes[mLength++] = (byte)s.charAt(i);
+        }
+        return this;
+    }
+    
+    public CsvBuffer append(char c) {
+        ensure(1);
+        mBytes[mLength++] = (byte)c;
+        return this;
+    }
+    
+    /**
+     * Append v as %d would format it
+     */
+    public CsvBuffer appendLong(long v) {
+        ensure(20);
+        if (v == Long.MIN_VALUE) {
+            return append(Long.toString(v));
+        }
+        if (v < 0) {
+            mBytes[mLength++] = '-';
+            v = -v;
+        }
+        int start = mLength;
+        do {
+            mBytes[mLength++] = (byte)('0' + (int)(v % 10));
+            v /= 10;
+        } while (v > 0);
+        reverse(start, mLength - 1);
+        return this;
+    }
+    
+    /**
+     * Append v as %f would format it, i.e. rounded to six decimal places
+     */
+    public CsvBuffer appendFixed(double v) {
+        boolean negative = (v < 0 || (v == 0 && 1 / v < 0));
+        double abs = Math.abs(v);
+        
+        if (!(abs < FAST_FIXED_LIMIT)) {
+            // also catches NaN
+            return append(String.format(Locale.US, "%f", v));
+        }
+        
+        double scaled = abs * 1e6;
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5) < ROUNDING_MARGIN) {
+            return append(String.format(Locale.US, "%f", v));
+        }
+        
+        long rounded = (long)floor + (fraction > 0.5 ? 1 : 0);
+        if (negative) {
+            append('-');
+        }
+        appendLong(rounded / 1000000);
+        ensure(7);
+        mBytes[mLength++] = '.';
+        int micros = (int)(rounded % 1000000);
+        for (int div=100000; div>0; div/=10) {
+            mBytes[mLength++] = (byte)('0' + (micros / div) % 10);
+        }
+        return this;
+    }
+    
+    /**
+     * Append epoch milliseconds as java.sql.Timestamp.toString() would
+     * format them in this buffer's time zone, i.e. yyyy-mm-dd hh:mm:ss.f
+     * with trailing zeros of the fraction removed
+     */
+    public CsvBuffer appendTimestamp(long millis) {
+        long window = floorDiv(millis, OFFSET_WINDOW);
+        if (window != mOffsetWindow) {
+            mOffset = mTimeZone.getOffset(millis);
+            mOffsetWindow = window;
+        }
+        long local = millis + mOffset;
+        long day = floorDiv(local, MILLIS_PER_DAY);
+        int millisOfDay = (int)(local - day * MILLIS_PER_DAY);
+        
+        if (day != mCachedDay) {
+            formatDay(day);
+            mCachedDay = day;
+        }
+        
+        ensure(23);
+        System.arraycopy(mDayChars, 0, mBytes, mLength, mDayChars.length);
+        mLength += mDayChars.length;
+        
+        mBytes[mLength++] = ' ';
+        int seconds = millisOfDay / 1000;
+        appendTwoDigits(seconds / 3600);
+        mBytes[mLength++] = ':';
+        appendTwoDigits((seconds / 60) % 60);
+        mBytes[mLength++] = ':';
+        appendTwoDigits(seconds % 60);
+        mBytes[mLength++] = '.';
+        
+        int fraction = millisOfDay % 1000;
+        if (fraction == 0) {
+            mBytes[mLength++] = '0';
+        } else {
+            mBytes[mLength++] = (byte)('0' + fraction / 100);
+            if (fraction % 100 != 0) {
+                mBytes[mLength++] = (byte)('0' + (fraction / 10) % 10);
+                if (fraction % 10 != 0) {
+                    mBytes[mLength++] = (byte)('0' + fraction % 10);
+                }
+            }
+        }
+        return this;
+    }
+    
+    private void appendTwoDigits(int v) {
+        mBytes[mLength++] = (byte)('0' + v / 10);
+        mBytes[mLength++] = (byte)('0' + v % 10);
+    }
+    
+    private void reverse(int from, int to) {
+        while (from < to) {
+            byte b = mBytes[from];
+            mBytes[from++] = mBytes[to];
+            mBytes[to--] = b;
+        }
+    }
+    
+    /**
+     * Civil date of a day number relative to 1970-01-01, into mDayChars
+     */
+    private void formatDay(long day) {
+        // see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+        long z = day + 719468;
+        long era = floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int d = (int)(doy - (153 * mp + 2) / 5 + 1);
+        int m = (int)(mp < 10 ? mp + 3 : mp - 9);
+        int y = (int)(yoe + era * 400 + (m <= 2 ? 1 : 0));
+        
+        mDayChars[0] = (byte)('0' + (y / 1000) % 10);
+        mDayChars[1] = (byte)('0' + (y / 100) % 10);
+        mDayChars[2] = (byte)('0' + (y / 10) % 10);
+        mDayChars[3] = (byte)('0' + y % 10);
+        mDayChars[4] = '-';
+        mDayChars[5] = (byte)('0' + m / 10);
+        mDayChars[6] = (byte)('0' + m % 10);
+        mDayChars[7] = '-';
+        mDayChars[8] = (byte)('0' + d / 10);
+        mDayChars[9] = (byte)('0' + d % 10);
+    }
+    
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        if ((a % b != 0) && ((a < 0) != (b < 0))) {
+            q--;
+        }
+        return q;
+    }
+}
@@ -0,0 +1,46 @@
+//
+//  CsvFormat.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+/**
+ * CsvFormat
+ *
+ * A header line followed by one rcvd_time,sample_time,v0,v1,... line per
+ * row, see SamplePage.formatCsv. Value columns from wholeFrom on, such as
+ * ids, are written as whole numbers.
+ */
+public class CsvFormat implements PageFormat {
+    
+    private final String mHeader;
+    private final int mWholeFrom;
+    
+    public CsvFormat(String header) {
+        this(header, Integer.MAX_VALUE);
+    }
+    
+    public CsvFormat(String header, int wholeFrom) {
+        mHeader = header;
+        mWholeFrom = wholeFrom;
+    }
+    
+    public OutputBuffer newBuffer(int capacity) {
+        return new CsvBuffer(capacity);
+    }
+    
+    public void writeHeader(OutputBuffer out) {
+        ((CsvBuffer)out).append(mHeader);
+    }
+    
+    public void writePage(SamplePage page, OutputBuffer out) {
+        page.formatCsv((CsvBuffer)out, mWholeFrom);
+    }
+    
+    public void writeTrailer(OutputBuffer out) {
+        // nothing
+    }
+}
@@ -0,0 +1,501 @@
+//
+//  ExportPipeline.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * ExportPipeline
+ *
+ * Exports several tables concurrently. Each table gets a reader thread
+ * pulling pages from its PageSource, and each output file of that table a
+ * writer thread, while formatting runs on a small shared pool. A table may
+ * have several outputs in different formats, in which case each page is
+ * read once and formatted once per output. Formatted pages are written
+ * strictly in the order they were read.
+ *
+ * Pages and format buffers are recycled, and each table has at most
+ * PAGES_IN_FLIGHT pages between its reader and its writers.
+ *
+ * Once every output of a table has written a page, the table has reached a
+ * checkpoint: the last id of that page and the length of each output file.
+ * An export stopped partway can be resumed from a checkpoint by reading
+ * the table from that id and adding each output with its length, which
+ * cuts off anything written after the checkpoint and appends to the rest.
+ *
+ * An output may also be a channel the caller keeps open, such as a member
+ * of a BundleArchive. Such outputs are written from the start and cannot
+ * be resumed, and their checkpoint lengths are the bytes written so far.
+ */
+public class ExportPipeline {
+    
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    
+    private static final int PAGES_IN_FLIGHT = 4;
+    
+    // a table's reader is never more than 3 * PAGES_IN_FLIGHT + 1 pages
+    // ahead of its slowest writer, so the ids and lengths of this many of
+    // the latest pages are kept for checkpoints
+    private static final int CHECKPOINT_PAGES = 4 * PAGES_IN_FLIGHT;
+    
+    // rough formatted size of a row, used to size format buffers
+    private static final int BYTES_PER_ROW = 64;
+    
+    // marks the end of a table's pages in an output's pending queue
+    private static final Future<OutputBuffer> END = new FutureTask<OutputBuffer>(new Callable<OutputBuffer>() {
+        public OutputBuffer call() {
+            return null;
+        }
+    });
+    
+    private final int mPageSize;
+    private final int mFormatThreads;
+    private final ArrayList<TableJob> mJobs;
+    
+    private ExecutorService mFormatPool;
+    private volatile IOException mFailure;
+    private CheckpointListener mCheckpointListener;
+    
+    public interface CheckpointListener {
+        /**
+         * Every output of source has been written up to and including the
+         * row with lastId, and its files are lengths bytes long, in the
+         * order the outputs were added. complete is set once the files are
+         * finished, in which case lastId is -1 if no rows were read. Called
+         * from the writer threads.
+         */
+        void checkpoint(PageSource source, long lastId, long[] lengths, boolean complete);
+    }
+    
+    public ExportPipeline(int formatThreads) {
+        this(formatThreads, DEFAULT_PAGE_SIZE);
+    }
+    
+    public ExportPipeline(int formatThreads, int pageSize) {
+        mFormatThreads = Math.max(1, formatThreads);
+        mPageSize = pageSize;
+        mJobs = new ArrayList<TableJob>();
+    }
+    
+    /**
+     * Queue a table for export to a CSV file starting with header
+     */
+    public void addCsvTable(PageSource source, File file, String header) {
+        addTable(source, file, new CsvFormat(header));
+    }
+    
+    /**
+     * Queue a table for export to file in the given format. Adding the same
+     * source again adds another output for the same read pass.
+     */
+    public void addTable(PageSource source, File file, PageFormat format) {
+        addTable(source, file, format, 0);
+    }
+    
+    /**
+     * Queue a table for export to file, resuming from a checkpoint at which
+     * file was resumeLength bytes long, or writing it afresh if that is 0.
+     * source must start after the checkpoint's last id.
+     */
+    public void addTable(PageSource source, File file, PageFormat format, long resumeLength) {
+        TableJob job = job(source);
+        job.outputs.add(new Output(job, file, null, file.getName(), format, resumeLength));
+    }
+    
+    /**
+     * Queue a table for export in the given format to out, named name in
+     * thread names and errors. out is written to from a writer thread and
+     * is left open.
+     */
+    public void addTable(PageSource source, WritableByteChannel out, String name, PageFormat format) {
+        TableJob job = job(source);
+        job.outputs.add(new Output(job, null, out, name, format, 0));
+    }
+    
+    private TableJob job(PageSource source) {
+        for (TableJob job : mJobs) {
+            if (job.source == source) {
+                return job;
+            }
+        }
+        TableJob job = new TableJob(source);
+        mJobs.add(job);
+        return job;
+    }
+    
+    public void setCheckpointListener(CheckpointListener listener) {
+        mCheckpointListener = listener;
+    }
+    
+    /**
+     * Export every table, returning once all files are complete. Throws the
+     * first error encountered by any table, after all threads have stopped.
+     * If the calling thread is interrupted, the export is stopped and
+     * InterruptedException thrown, also only once its threads are done.
+     */
+    public void run() throws IOException, InterruptedException {
+        mFormatPool = Executors.newFixedThreadPool(mFormatThreads);
+        try {
+            for (TableJob job : mJobs) {
+                job.start();
+            }
+            try {
+                for (TableJob job : mJobs) {
+                    job.join();
+                }
+            } catch (InterruptedException e) {
+                fail(new IOException("export interrupted"));
+                for (TableJob job : mJobs) {
+                    job.interrupt();
+                }
+                mFormatPool.shutdownNow();
+                // a reader may be in the middle of a page, and its source
+                // must not be closed under it
+                for (TableJob job : mJobs) {
+                    job.joinUninterruptibly();
+                }
+                throw e;
+            }
+        } finally {
+            mFormatPool.shutdown();
+        }
+        
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+    
+    private synchronized void fail(IOException e) {
+        if (mFailure == null) {
+            mFailure = e;
+        }
+    }
+    
+    /**
+     * A page plus the number of outputs that have yet to format it
+     */
+    private static class PageRef {
+        final SamplePage page;
+        int pendingFormats;
+        
+        PageRef(SamplePage page) {
+            this.page = page;
+        }
+    }
+    
+    private class TableJob {
+        
+        final PageSource source;
+        final ArrayList<Output> outputs;
+        final BlockingQueue<PageRef> freePages;
+        
+        // last id of each of the latest pages read, by page number
+        final long[] lastIds = new long[CHECKPOINT_PAGES];
+        long pagesRead;
+        long checkpointedPages;
+        
+        Thread reader;
+        
+        TableJob(PageSource source) {
+            this.source = source;
+            outputs = new ArrayList<Output>();
+            freePages = new ArrayBlockingQueue<PageRef>(PAGES_IN_FLIGHT);
+            for (int i=0; i<PAGES_IN_FLIGHT; i++) {
+                freePages.add(new PageRef(new SamplePage(mPageSize, source.width())));
+            }
+        }
+        
+        void start() {
+            for (Output output : outputs) {
+                output.start();
+            }
+            reader = new Thread(new Runnable() {
+                public void run() {
+                    read();
+                }
+            }, "Export reader " + outputs.get(0).name);
+            reader.start();
+        }
+        
+        void join() throws InterruptedException {
+            reader.join();
+            for (Output output : outputs) {
+                output.writer.join();
+            }
+        }
+        
+        void joinUninterruptibly() {
+            while (true) {
+                try {
+                    join();
+                    return;
+                } catch (InterruptedException e) {
+                    // keep waiting
+                }
+            }
+        }
+        
+        void interrupt() {
+            reader.interrupt();
+            for (Output output : outputs) {
+                output.writer.interrupt();
+            }
+        }
+        
+        void read() {
+            try {
+                while (mFailure == null) {
+                    PageRef ref = freePages.take();
+                    source.next(ref.page);
+                    if (ref.page.count == 0) {
+                        break;
+                    }
+                    synchronized (this) {
+                        lastIds[(int)(pagesRead++ % CHECKPOINT_PAGES)] = ref.page.ids[ref.page.count - 1];
+                    }
+                    ref.pendingFormats = outputs.size();
+                    for (Output output : outputs) {
+                        // buffers go out in page order, as a format task
+                        // waiting for one could otherwise be starved by
+                        // later pages that its writer never reaches
+                        OutputBuffer buf = output.freeBuffers.take();
+                        output.pending.put(mFormatPool.submit(new FormatTask(this, output, ref, buf)));
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (InterruptedException e) {
+                fail(new IOException("export interrupted"));
+            } finally {
+                for (Output output : outputs) {
+                    try {
+                        output.pending.put(END);
+                    } catch (InterruptedException e) {
+                        // the writer was interrupted too, so it is not waiting
+                        output.pending.offer(END);
+                    }
+                }
+            }
+        }
+        
+        /**
+         * output has written pages pages, and its file is now length bytes
+         * long
+         */
+        synchronized void written(Output output, long pages, long length) {
+            output.lengths[(int)((pages - 1) % CHECKPOINT_PAGES)] = length;
+            output.pagesWritten = pages;
+            long common = pages;
+            for (Output o : outputs) {
+                common = Math.min(common, o.pagesWritten);
+            }
+            if (common > checkpointedPages && mCheckpointListener != null && mFailure == null) {
+                checkpointedPages = common;
+                int slot = (int)((common - 1) % CHECKPOINT_PAGES);
+                long[] lengths = new long[outputs.size()];
+                for (int i=0; i<lengths.length; i++) {
+                    lengths[i] = outputs.get(i).lengths[slot];
+                }
+                mCheckpointListener.checkpoint(source, lastIds[slot], lengths, false);
+            }
+        }
+        
+        /**
+         * output has written its trailer, and its file is length bytes long
+         */
+        synchronized void finished(Output output, long length) {
+            output.finalLength = length;
+            long[] lengths = new long[outputs.size()];
+            for (int i=0; i<lengths.length; i++) {
+                lengths[i] = outputs.get(i).finalLength;
+                if (lengths[i] < 0) {
+                    return;
+                }
+            }
+            if (mCheckpointListener != null && mFailure == null) {
+                long lastId = (pagesRead > 0 ? lastIds[(int)((pagesRead - 1) % CHECKPOINT_PAGES)] : -1);
+                mCheckpointListener.checkpoint(source, lastId, lengths, true);
+            }
+        }
+        
+        void formatted(PageRef ref) throws InterruptedException {
+            boolean free;
+            synchronized (ref) {
+                free = (--ref.pendingFormats == 0);
+            }
+            if (free) {
+                ref.page.count = 0;
+                freePages.put(ref);
+            }
+        }
+    }
+    
+    private class Output {
+        
+        final TableJob job;
+        final File file;
+        final WritableByteChannel channel;
+        final String name;
+        final PageFormat format;
+        final long resumeLength;
+        
+        // file lengths after each of the latest pages, by page number,
+        // guarded by the job
+        final long[] lengths = new long[CHECKPOINT_PAGES];
+        long pagesWritten;
+        long finalLength = -1;
+        
+        // buffers outnumber pages, since a page is recycled as soon as it
+        // is formatted but its buffer only once it is written
+        final BlockingQueue<OutputBuffer> freeBuffers;
+        final BlockingQueue<Future<OutputBuffer>> pending;
+        
+        Thread writer;
+        
+        Output(TableJob job, File file, WritableByteChannel channel, String name, PageFormat format,
+               long resumeLength) {
+            this.job = job;
+            this.file = file;
+            this.channel = channel;
+            this.name = name;
+            this.format = format;
+            this.resumeLength = resumeLength;
+            freeBuffers = new ArrayBlockingQueue<OutputBuffer>(2 * PAGES_IN_FLIGHT);
+            pending = new ArrayBlockingQueue<Future<OutputBuffer>>(2 * PAGES_IN_FLIGHT + 1);
+            for (int i=0; i<2*PAGES_IN_FLIGHT; i++) {
+                freeBuffers.add(format.newBuffer(mPageSize * BYTES_PER_ROW));
+            }
+        }
+        
+        void start() {
+            writer = new Thread(new Runnable() {
+                public void run() {
+                    write();
+                }
+            }, "Export writer " + name);
+            writer.start();
+        }
+        
+        void write() {
+            RandomAccessFile out = null;
+            try {
+                WritableByteChannel ch = channel;
+                if (ch == null) {
+                    out = new RandomAccessFile(file, "rw");
+                    if (out.length() < resumeLength) {
+                        throw new IOException(name + " is shorter than its checkpoint");
+                    }
+                    out.setLength(resumeLength);
+                    FileChannel fc = out.getChannel();
+                    fc.position(resumeLength);
+                    ch = fc;
+                }
+                long length = resumeLength;
+                
+                OutputBuffer edge = format.newBuffer(1024);
+                if (resumeLength == 0) {
+                    format.writeHeader(edge);
+                    length += edge.length();
+                    edge.writeTo(ch);
+                }
+                
+                long pages = 0;
+                while (true) {
+                    Future<OutputBuffer> f = pending.take();
+                    if (f == END) {
+                        break;
+                    }
+                    OutputBuffer buf = f.get();
+                    if (mFailure == null) {
+                        length += buf.length();
+                        buf.writeTo(ch);
+                        job.written(this, ++pages, length);
+                    } else {
+                        // keep draining so the reader never blocks
+                        buf.reset();
+                    }
+                    freeBuffers.put(buf);
+                }
+                
+                format.writeTrailer(edge);
+                length += edge.length();
+                edge.writeTo(ch);
+                if (mFailure == null) {
+                    job.finished(this, length);
+                }
+            } catch (IOException e) {
+                fail(e);
+                drain();
+            } catch (ExecutionException e) {
+                fail(new IOException("formatting " + name + " failed: " + e.getCause()));
+                drain();
+            } catch (InterruptedException e) {
+                fail(new IOException("export of " + name + " interrupted"));
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            }
+        }
+        
+        private void drain() {
+            try {
+                Future<OutputBuffer> f;
+                while ((f = pending.take()) != END) {
+                    try {
+                        OutputBuffer buf = f.get();
+                        buf.reset();
+                        freeBuffers.put(buf);
+                    } catch (ExecutionException e) {
+                        // already failed
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private static class FormatTask implements Callable<OutputBuffer> {
+        
+        private final TableJob mJob;
+        private final Output mOutput;
+        private final PageRef mRef;
+        private final OutputBuffer mBuffer;
+        
+        FormatTask(TableJob job, Output output, PageRef ref, OutputBuffer buffer) {
+            mJob = job;
+            mOutput = output;
+            mRef = ref;
+            mBuffer = buffer;
+        }
+        
+        public OutputBuffer call() throws InterruptedException {
+            mOutput.format.writePage(mRef.page, mBuffer);
+            mJob.formatted(mRef);
+            return mBuffer;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+//
+//  InputBuffer.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.IOException;
+
+/**
+ * InputBuffer
+ *
+ * Reads back what OutputBuffer writes, from a byte array
+ */
+public class InputBuffer {
+    
+    private byte[] mBytes;
+    private int mPosition;
+    private int mLimit;
+    
+    public InputBuffer() {
+        this(new byte[0], 0, 0);
+    }
+    
+    public InputBuffer(byte[] bytes, int offset, int length) {
+        wrap(bytes, offset, length);
+    }
+    
+    public void wrap(byte[] bytes, int offset, int length) {
+        mBytes = bytes;
+        mPosition = offset;
+        mLimit = offset + length;
+    }
+    
+    public int remaining() {
+        return mLimit - mPosition;
+    }
+    
+    private void require(int n) throws IOException {
+        if (mLimit - mPosition < n) {
+            throw new IOException("truncated block");
+        }
+    }
+    
+    public int readByte() throws IOException {
+        require(1);
+        return mBytes[mPosition++] & 0xff;
+    }
+    
+    public void readBytes(byte[] b, int off, int len) throws IOException {
+        require(len);
+        System.arraycopy(mBytes, mPosition, b, off, len);
+        mPosition += len;
+    }
+    
+    public int readInt() throws IOException {
+        require(4);
+        int v = ((mBytes[mPosition] & 0xff) << 24)
+                | ((mBytes[mPosition + 1] & 0xff) << 16)
+                | ((mBytes[mPosition + 2] & 0xff) << 8)
+                | (mBytes[mPosition + 3] & 0xff);
+        mPosition += 4;
+        return v;
+    }
+    
+    public long readLong() throws IOException {
+        require(8);
+        long v = 0;
+        for (int i=0; i<8; i++) {
+            v = (v << 8) | (mBytes[mPosition++] & 0xff);
+        }
+        return v;
+    }
+    
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+    
+    public long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift=0; shift<64; shift+=7) {
+            int b = readByte();
+            v |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+    
+    public long readSignedVarLong() throws IOException {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+    
+    public String readString() throws IOException {
+        int n = (int)readVarLong();
+        require(n);
+        String s = new String(mBytes, mPosition, n, "UTF-8");
+        mPosition += n;
+        return s;
+    }
+}
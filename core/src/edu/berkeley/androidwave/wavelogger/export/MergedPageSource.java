@@ -0,0 +1,103 @@
+//
+//  MergedPageSource.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.IOException;
+
+/**
+ * MergedPageSource
+ *
+ * PageSource interleaving the rows of several sources of the same width in
+ * id order. Each source must return its rows in increasing id order, and
+ * no id may appear in more than one source.
+ */
+public class MergedPageSource implements PageSource {
+    
+    private final Input[] mInputs;
+    private final int mWidth;
+    
+    public MergedPageSource(PageSource... sources) {
+        mWidth = sources[0].width();
+        mInputs = new Input[sources.length];
+        for (int i=0; i<sources.length; i++) {
+            if (sources[i].width() != mWidth) {
+                throw new IllegalArgumentException("sources differ in width");
+            }
+            mInputs[i] = new Input(sources[i]);
+        }
+    }
+    
+    public int width() {
+        return mWidth;
+    }
+    
+    public void next(SamplePage page) throws IOException {
+        page.count = 0;
+        while (!page.isFull()) {
+            Input first = null;
+            for (Input input : mInputs) {
+                if (input.fill(page.capacity())
+                        && (first == null || input.id() < first.id())) {
+                    first = input;
+                }
+            }
+            if (first == null) {
+                break;
+            }
+            first.copyTo(page);
+        }
+    }
+    
+    /**
+     * A source plus its current page and read position
+     */
+    private class Input {
+        
+        final PageSource source;
+        SamplePage page;
+        int position;
+        boolean exhausted;
+        
+        Input(PageSource source) {
+            this.source = source;
+        }
+        
+        /**
+         * Make sure a row is available, reading a page if needed. Returns
+         * false once the source is exhausted.
+         */
+        boolean fill(int capacity) throws IOException {
+            if (page != null && position < page.count) {
+                return true;
+            }
+            if (exhausted) {
+                return false;
+            }
+            if (page == null) {
+                page = new SamplePage(capacity, mWidth);
+            }
+            source.next(page);
+            position = 0;
+            exhausted = (page.count == 0);
+            return !exhausted;
+        }
+        
+        long id() {
+            return page.ids[position];
+        }
+        
+        void copyTo(SamplePage out) {
+            int i = out.count++;
+            out.ids[i] = page.ids[position];
+            out.rcvdTimes[i] = page.rcvdTimes[position];
+            out.sampleTimes[i] = page.sampleTimes[position];
+            System.arraycopy(page.values, position * mWidth, out.values, i * mWidth, mWidth);
+            position++;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+//
+//  OutputBuffer.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * OutputBuffer
+ *
+ * Reusable, growable byte buffer that export formats encode into before the
+ * bytes are written out in one go. Multi-byte values are big-endian.
+ */
+public class OutputBuffer {
+    
+    protected byte[] mBytes;
+    protected int mLength;
+    
+    public OutputBuffer(int capacity) {
+        mBytes = new byte[Math.max(capacity, 16)];
+    }
+    
+    public int length() {
+        return mLength;
+    }
+    
+    public void reset() {
+        mLength = 0;
+    }
+    
+    /**
+     * Backing array, valid up to length()
+     */
+    public byte[] bytes() {
+        return mBytes;
+    }
+    
+    protected void ensure(int extra) {
+        if (mLength + extra > mBytes.length) {
+            byte[] grown = new byte[Math.max(mBytes.length * 2, mLength + extra)];
+            System.arraycopy(mBytes, 0, grown, 0, mLength);
+            mBytes = grown;
+        }
+    }
+    
+    public OutputBuffer writeByte(int b) {
+        ensure(1);
+        mBytes[mLength++] = (byte)b;
+        return this;
+    }
+    
+    public OutputBuffer writeBytes(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, mBytes, mLength, len);
+        mLength += len;
+        return this;
+    }
+    
+    public OutputBuffer writeInt(int v) {
+        ensure(4);
+        putInt(mLength, v);
+        mLength += 4;
+        return this;
+    }
+    
+    /**
+     * Overwrite four bytes at position, e.g. a length reserved earlier
+     */
+    public void putInt(int position, int v) {
+        mBytes[position] = (byte)(v >>> 24);
+        mBytes[position + 1] = (byte)(v >>> 16);
+        mBytes[position + 2] = (byte)(v >>> 8);
+        mBytes[position + 3] = (byte)v;
+    }
+    
+    public OutputBuffer writeLong(long v) {
+        ensure(8);
+        for (int shift=56; shift>=0; shift-=8) {
+            mBytes[mLength++] = (byte)(v >>> shift);
+        }
+        return this;
+    }
+    
+    public OutputBuffer writeDouble(double v) {
+        return writeLong(Double.doubleToRawLongBits(v));
+    }
+    
+    /**
+     * Unsigned LEB128 varint
+     */
+    public OutputBuffer writeVarLong(long v) {
+        ensure(10);
+        while ((v & ~0x7fL) != 0) {
+            mBytes[mLength++] = (byte)((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        mBytes[mLength++] = (byte)v;
+        return this;
+    }
+    
+    /**
+     * Zigzag encoded signed varint, so small negative values stay short
+     */
+    public OutputBuffer writeSignedVarLong(long v) {
+        return writeVarLong((v << 1) ^ (v >> 63));
+    }
+    
+    /**
+     * Length-prefixed UTF-8 string
+     */
+    public OutputBuffer writeString(String s) {
+        byte[] b;
+        try {
+            b = s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        writeVarLong(b.length);
+        return writeBytes(b, 0, b.length);
+    }
+    
+    /**
+     * Write the buffered bytes to ch and reset the buffer
+     */
+    public void writeTo(WritableByteChannel ch) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(mBytes, 0, mLength);
+        while (bb.hasRemaining()) {
+            ch.write(bb);
+        }
+        mLength = 0;
+    }
+}
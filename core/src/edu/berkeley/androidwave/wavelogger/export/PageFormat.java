@@ -0,0 +1,29 @@
+//
+//  PageFormat.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+/**
+ * PageFormat
+ *
+ * File format used by ExportPipeline. writePage is called concurrently from
+ * the format pool, each call with its own buffer, so implementations must
+ * not keep per-page state.
+ */
+public interface PageFormat {
+    
+    /**
+     * Buffer type writePage expects
+     */
+    OutputBuffer newBuffer(int capacity);
+    
+    void writeHeader(OutputBuffer out);
+    
+    void writePage(SamplePage page, OutputBuffer out);
+    
+    void writeTrailer(OutputBuffer out);
+}
@@ -0,0 +1,29 @@
+//
+//  PageSource.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.IOException;
+
+/**
+ * PageSource
+ *
+ * Forward-only reader of a data table, one page of rows at a time
+ */
+public interface PageSource {
+    
+    /**
+     * Number of values per row
+     */
+    int width();
+    
+    /**
+     * Fill page with the next rows, in _id order. Leaves page.count at 0
+     * once the source is exhausted.
+     */
+    void next(SamplePage page) throws IOException;
+}
@@ -0,0 +1,107 @@
+//
+//  ResamplingPageSource.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * ResamplingPageSource
+ *
+ * Thins out the samples of another source, per session: of each session
+ * it keeps one sample in every, counting from the session's first sample
+ * read, and of those at most one per period ms of rcvd_time, the first in
+ * each interval aligned to a multiple of period. Samples are kept whole
+ * rather than averaged, so their values stay on the grid they were logged
+ * at. The session is read from a value column, and the source's pages are
+ * refilled until full, so a heavily thinned export still writes full
+ * pages.
+ *
+ * Only a count and the last interval kept are remembered per session, so
+ * a read restarted midway counts from where it restarts.
+ */
+public class ResamplingPageSource implements PageSource {
+    
+    private final PageSource mSource;
+    private final long mEvery;
+    private final long mPeriod;
+    private final int mSessionColumn;
+    
+    // by session: samples seen, and the interval last kept or
+    // Long.MIN_VALUE
+    private final HashMap<Long, long[]> mSessions;
+    
+    private SamplePage mPage;
+    private int mPosition;
+    private boolean mExhausted;
+    
+    /**
+     * Keep one sample in every, and at most one per period ms if period is
+     * not 0, of each session of source, reading the session from value
+     * column sessionColumn
+     */
+    public ResamplingPageSource(PageSource source, long every, long period, int sessionColumn) {
+        if (every < 1 || period < 0) {
+            throw new IllegalArgumentException("every " + every + ", period " + period);
+        }
+        mSource = source;
+        mEvery = every;
+        mPeriod = period;
+        mSessionColumn = sessionColumn;
+        mSessions = new HashMap<Long, long[]>();
+    }
+    
+    public int width() {
+        return mSource.width();
+    }
+    
+    public void next(SamplePage page) throws IOException {
+        page.count = 0;
+        int width = page.width;
+        while (!page.isFull()) {
+            if (mPage == null || mPosition >= mPage.count) {
+                if (mExhausted) {
+                    return;
+                }
+                if (mPage == null) {
+                    mPage = new SamplePage(page.capacity(), width);
+                }
+                mSource.next(mPage);
+                mPosition = 0;
+                mExhausted = (mPage.count == 0);
+                continue;
+            }
+            int p = mPosition++;
+            Long session = Long.valueOf((long)mPage.value(p, mSessionColumn));
+            long[] state = mSessions.get(session);
+            if (state == null) {
+                state = new long[] {0, Long.MIN_VALUE};
+                mSessions.put(session, state);
+            }
+            if (state[0]++ % mEvery != 0) {
+                continue;
+            }
+            long time = mPage.rcvdTimes[p];
+            if (mPeriod > 0) {
+                long interval = time / mPeriod - (time % mPeriod < 0 ? 1 : 0);
+                // only the interval last kept is skipped, so resampling
+                // starts over after the clock is set back
+                if (state[1] == interval) {
+                    continue;
+                }
+                state[1] = interval;
+            }
+            
+            int i = page.count++;
+            page.ids[i] = mPage.ids[p];
+            page.rcvdTimes[i] = time;
+            page.sampleTimes[i] = mPage.sampleTimes[p];
+            System.arraycopy(mPage.values, p * width, page.values, i * width, width);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+//
+//  SampleBlockCodec.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.IOException;
+
+/**
+ * SampleBlockCodec
+ *
+ * Column-oriented encoding of a run of rows. A block holds the row count
+ * and width, then rcvd_time and sample_time as zigzag varint deltas, then
+ * each value column either as raw doubles or, when every value in the
+ * column is an exact multiple of the column's quantum, as zigzag varint
+ * deltas of those multiples. Quantization is only used when it is lossless,
+ * so decoding always reproduces the original doubles bit for bit.
+ */
+public final class SampleBlockCodec {
+    
+    public static final int RAW = 0;
+    public static final int QUANTIZED = 1;
+    
+    // multiples beyond 2^52 can no longer be reproduced exactly
+    private static final double MAX_MULTIPLE = 4503599627370496.0;
+    
+    private SampleBlockCodec() {
+    }
+    
+    /**
+     * Encode rows [from, from + count) of page. quanta holds the quantum to
+     * try for each value column, 0 meaning raw; it may be null or shorter
+     * than the page width.
+     */
+    public static void encode(SamplePage page, int from, int count, double[] quanta, OutputBuffer out) {
+        out.writeVarLong(count);
+        out.writeVarLong(page.width);
+        
+        writeDeltas(page.rcvdTimes, from, count, out);
+        writeDeltas(page.sampleTimes, from, count, out);
+        
+        int width = page.width;
+        double[] values = page.values;
+        for (int col=0; col<width; col++) {
+            double quantum = (quanta != null && col < quanta.length ? quanta[col] : 0);
+            if (quantum > 0 && isQuantizable(page, from, count, col, quantum)) {
+                out.writeByte(QUANTIZED);
+                out.writeDouble(quantum);
+                long previous = 0;
+                for (int i=from; i<from+count; i++) {
+                    long multiple = (long)Math.rint(values[i * width + col] / quantum);
+                    out.writeSignedVarLong(multiple - previous);
+                    previous = multiple;
+                }
+            } else {
+                out.writeByte(RAW);
+                for (int i=from; i<from+count; i++) {
+                    out.writeDouble(values[i * width + col]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Decode a block into reuse if it is large enough and of the right
+     * width, otherwise into a new page. Ids are not stored, so they are
+     * left as 0.
+     */
+    public static SamplePage decode(InputBuffer in, SamplePage reuse) throws IOException {
+        int count = (int)in.readVarLong();
+        int width = (int)in.readVarLong();
+        
+        SamplePage page = reuse;
+        if (page == null || page.width != width || page.capacity() < count) {
+            page = new SamplePage(count, width);
+        }
+        
+        readDeltas(page.rcvdTimes, count, in);
+        readDeltas(page.sampleTimes, count, in);
+        
+        double[] values = page.values;
+        for (int col=0; col<width; col++) {
+            int encoding = in.readByte();
+            if (encoding == QUANTIZED) {
+                double quantum = in.readDouble();
+                long multiple = 0;
+                for (int i=0; i<count; i++) {
+                    multiple += in.readSignedVarLong();
+                    values[i * width + col] = multiple * quantum;
+                }
+            } else if (encoding == RAW) {
+                for (int i=0; i<count; i++) {
+                    values[i * width + col] = in.readDouble();
+                }
+            } else {
+                throw new IOException("unknown column encoding " + encoding);
+            }
+        }
+        
+        for (int i=0; i<count; i++) {
+            page.ids[i] = 0;
+        }
+        page.count = count;
+        return page;
+    }
+    
+    private static boolean isQuantizable(SamplePage page, int from, int count, int col, double quantum) {
+        int width = page.width;
+        double[] values = page.values;
+        for (int i=from; i<from+count; i++) {
+            double v = values[i * width + col];
+            double multiple = Math.rint(v / quantum);
+            if (!(Math.abs(multiple) < MAX_MULTIPLE)
+                    || Double.doubleToLongBits(((long)multiple) * quantum) != Double.doubleToLongBits(v)) {
+                // also rejects NaN, and -0.0 whose sign would be lost
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static void writeDeltas(long[] column, int from, int count, OutputBuffer out) {
+        long previous = 0;
+        for (int i=from; i<from+count; i++) {
+            out.writeSignedVarLong(column[i] - previous);
+            previous = column[i];
+        }
+    }
+    
+    private static void readDeltas(long[] column, int count, InputBuffer in) throws IOException {
+        long previous = 0;
+        for (int i=0; i<count; i++) {
+            previous += in.readSignedVarLong();
+            column[i] = previous;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+//
+//  SamplePage.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+/**
+ * SamplePage
+ *
+ * A run of consecutive rows from one data table, held as parallel primitive
+ * arrays so pages can be recycled between reads. Each row has an id, a
+ * received time, a sample time and width values.
+ */
+public final class SamplePage {
+    
+    public final int width;
+    public final long[] ids;
+    public final long[] rcvdTimes;
+    public final long[] sampleTimes;
+    public final double[] values;
+    public int count;
+    
+    public SamplePage(int capacity, int width) {
+        this.width = width;
+        ids = new long[capacity];
+        rcvdTimes = new long[capacity];
+        sampleTimes = new long[capacity];
+        values = new double[capacity * width];
+    }
+    
+    public int capacity() {
+        return ids.length;
+    }
+    
+    public boolean isFull() {
+        return count == ids.length;
+    }
+    
+    public double value(int row, int column) {
+        return values[row * width + column];
+    }
+    
+    /**
+     * Format every row as rcvd_time,sample_time,v0,v1,... lines
+     */
+    public void formatCsv(CsvBuffer out) {
+        formatCsv(out, width);
+    }
+    
+    /**
+     * Format every row as rcvd_time,sample_time,v0,v1,... lines, with the
+     * values of columns wholeFrom and up as whole numbers
+     */
+    public void formatCsv(CsvBuffer out, int wholeFrom) {
+        int fixed = Math.min(wholeFrom, width);
+        for (int i=0; i<count; i++) {
+            out.appendTimestamp(rcvdTimes[i]).append(',').appendLong(sampleTimes[i]);
+            int base = i * width;
+            for (int j=0; j<fixed; j++) {
+                out.append(',').appendFixed(values[base + j]);
+            }
+            for (int j=fixed; j<width; j++) {
+                out.append(',').appendLong((long)values[base + j]);
+            }
+            out.append('\n');
+        }
+    }
+}
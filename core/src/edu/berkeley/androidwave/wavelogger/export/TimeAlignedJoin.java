@@ -0,0 +1,375 @@
+//
+//  TimeAlignedJoin.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * TimeAlignedJoin
+ *
+ * Pairs each sample of stream a with the sample of stream b nearest to it
+ * in sample_time, if that is within tolerance ms, as when comparing two
+ * logs of one sensor taken at different granularities. Both sources must
+ * return their rows in sample_time order; rows that go back in time are
+ * skipped and counted. The join is a single forward merge holding one
+ * page of each stream and one b row, so memory does not grow with the
+ * length of the logs.
+ *
+ * Each pair is written as a_time, b_time, offset, the compared values of
+ * a and then those of b, and the differences b - a are summarized per
+ * value: mean, mean absolute and RMS error and the largest error, with
+ * how far apart paired samples were and how many found no partner.
+ *
+ * Two columnar exports, e.g. from two WaveLogger installs, can be joined
+ * on a workstation:
+ *
+ *   java edu.berkeley.androidwave.wavelogger.export.TimeAlignedJoin a.wlc b.wlc 20 aligned.csv [sessionA sessionB]
+ */
+public class TimeAlignedJoin {
+    
+    public static final int PAGE_SIZE = 1024;
+    
+    private final PageSource mA;
+    private final PageSource mB;
+    private final int mColumns;
+    private final long mTolerance;
+    private final String[] mNames;
+    
+    private long mCountA;
+    private long mSkippedA;
+    private long mPairs;
+    private long mPairedB;
+    private long mSumOffset;
+    private long mMaxOffset;
+    
+    // per compared value, over pairs where both are present
+    private final long[] mErrorCounts;
+    private final double[] mErrorSums;
+    private final double[] mAbsErrorSums;
+    private final double[] mSquaredErrorSums;
+    private final double[] mMaxErrors;
+    
+    private Cursor mCursor;
+    
+    /**
+     * Join comparing the first columns values of a and b, named names for
+     * the header and report
+     */
+    public TimeAlignedJoin(PageSource a, PageSource b, String[] names, long tolerance) {
+        mA = a;
+        mB = b;
+        mNames = names;
+        mColumns = names.length;
+        if (mColumns > a.width() || mColumns > b.width()) {
+            throw new IllegalArgumentException("sources have fewer than " + mColumns + " values");
+        }
+        mTolerance = tolerance;
+        mErrorCounts = new long[mColumns];
+        mErrorSums = new double[mColumns];
+        mAbsErrorSums = new double[mColumns];
+        mSquaredErrorSums = new double[mColumns];
+        mMaxErrors = new double[mColumns];
+    }
+    
+    /**
+     * Read both streams to the end, writing the pairs to out as CSV, or
+     * only gathering the statistics if out is null
+     */
+    public void run(WritableByteChannel out) throws IOException {
+        CsvBuffer csv = new CsvBuffer(64 * 1024);
+        csv.append("a_time, b_time, offset");
+        for (String side : new String[] {"a_", "b_"}) {
+            for (String name : mNames) {
+                csv.append(", ").append(side).append(name);
+            }
+        }
+        csv.append('\n');
+        
+        SamplePage page = new SamplePage(PAGE_SIZE, mA.width());
+        Cursor b = new Cursor(mB, mColumns);
+        mCursor = b;
+        long last = Long.MIN_VALUE;
+        while (true) {
+            mA.next(page);
+            if (page.count == 0) {
+                break;
+            }
+            for (int i=0; i<page.count; i++) {
+                long time = page.sampleTimes[i];
+                mCountA++;
+                if (time < last) {
+                    mSkippedA++;
+                    continue;
+                }
+                last = time;
+                
+                b.advanceTo(time);
+                boolean current = b.fill();
+                long before = (b.hasPrevious ? time - b.previousTime : Long.MAX_VALUE);
+                long after = (current ? b.time() - time : Long.MAX_VALUE);
+                if (Math.min(before, after) > mTolerance) {
+                    continue;
+                }
+                // ties go to the earlier sample
+                boolean usePrevious = (before <= after);
+                long bTime = (usePrevious ? b.previousTime : b.time());
+                pair(page, i, b, usePrevious, bTime - time);
+                
+                if (out != null) {
+                    csv.appendLong(time).append(',').appendLong(bTime).append(',').appendLong(bTime - time);
+                    for (int j=0; j<mColumns; j++) {
+                        appendValue(csv.append(','), page.value(i, j));
+                    }
+                    for (int j=0; j<mColumns; j++) {
+                        appendValue(csv.append(','), b.value(usePrevious, j));
+                    }
+                    csv.append('\n');
+                    if (csv.length() >= 60 * 1024) {
+                        csv.writeTo(out);
+                    }
+                }
+            }
+        }
+        if (out != null) {
+            csv.writeTo(out);
+        }
+        
+        // count the rest of b
+        b.advanceTo(Long.MAX_VALUE);
+    }
+    
+    private void pair(SamplePage page, int row, Cursor b, boolean usePrevious, long offset) {
+        mPairs++;
+        long sequence = (usePrevious ? b.previousSequence : b.sequence);
+        if (sequence != b.lastPaired) {
+            mPairedB++;
+            b.lastPaired = sequence;
+        }
+        long distance = Math.abs(offset);
+        mSumOffset += distance;
+        mMaxOffset = Math.max(mMaxOffset, distance);
+        for (int j=0; j<mColumns; j++) {
+            double error = b.value(usePrevious, j) - page.value(row, j);
+            if (error != error) {
+                continue;
+            }
+            mErrorCounts[j]++;
+            mErrorSums[j] += error;
+            mAbsErrorSums[j] += Math.abs(error);
+            mSquaredErrorSums[j] += error * error;
+            mMaxErrors[j] = Math.max(mMaxErrors[j], Math.abs(error));
+        }
+    }
+    
+    private static void appendValue(CsvBuffer csv, double v) {
+        // missing values are left empty
+        if (v == v) {
+            csv.appendFixed(v);
+        }
+    }
+    
+    public long getPairCount() {
+        return mPairs;
+    }
+    
+    /**
+     * RMS of b - a for value column, over the pairs where both are present
+     */
+    public double getRmsError(int column) {
+        long n = mErrorCounts[column];
+        return (n > 0 ? Math.sqrt(mSquaredErrorSums[column] / n) : 0);
+    }
+    
+    /**
+     * Plain text summary of the last run
+     */
+    public String report() {
+        long countB = (mCursor != null ? mCursor.count : 0);
+        long skippedB = (mCursor != null ? mCursor.skipped : 0);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Tolerance %d ms\n", mTolerance));
+        sb.append(String.format("a: %d samples, %d paired, %d unpaired, %d out of order\n",
+                                mCountA, mPairs, mCountA - mSkippedA - mPairs, mSkippedA));
+        sb.append(String.format("b: %d samples, %d paired, %d unpaired, %d out of order\n",
+                                countB, mPairedB, countB - skippedB - mPairedB, skippedB));
+        sb.append(String.format("offset: mean %.1f ms, max %d ms\n",
+                                (mPairs > 0 ? (double)mSumOffset / mPairs : 0), mMaxOffset));
+        for (int j=0; j<mColumns; j++) {
+            long n = mErrorCounts[j];
+            sb.append(String.format("%s: %d compared, error mean %.6g, mean abs %.6g, rms %.6g, max %.6g\n",
+                                    mNames[j], n, (n > 0 ? mErrorSums[j] / n : 0),
+                                    (n > 0 ? mAbsErrorSums[j] / n : 0), getRmsError(j), mMaxErrors[j]));
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Read position in stream b, keeping a copy of the last row at or
+     * before the current a sample once the page it came from is reused
+     */
+    private static final class Cursor {
+        
+        final PageSource source;
+        final SamplePage page;
+        int position;
+        boolean exhausted;
+        
+        // rows taken so far, and those skipped as out of order
+        long count;
+        long skipped;
+        long lastTime = Long.MIN_VALUE;
+        
+        // the current row is the sequence-th row taken
+        long sequence;
+        long lastPaired = -1;
+        
+        boolean hasPrevious;
+        long previousTime;
+        long previousSequence;
+        final double[] previousValues;
+        
+        Cursor(PageSource source, int columns) {
+            this.source = source;
+            page = new SamplePage(PAGE_SIZE, source.width());
+            previousValues = new double[columns];
+        }
+        
+        /**
+         * Make sure the current row is available, skipping rows out of
+         * order. Returns false once the source is exhausted.
+         */
+        boolean fill() throws IOException {
+            while (true) {
+                if (position < page.count) {
+                    if (page.sampleTimes[position] >= lastTime) {
+                        return true;
+                    }
+                    count++;
+                    skipped++;
+                    position++;
+                    continue;
+                }
+                if (exhausted) {
+                    return false;
+                }
+                source.next(page);
+                position = 0;
+                exhausted = (page.count == 0);
+            }
+        }
+        
+        long time() {
+            return page.sampleTimes[position];
+        }
+        
+        double value(boolean previous, int column) {
+            return (previous ? previousValues[column] : page.value(position, column));
+        }
+        
+        /**
+         * Take every row at or before time, keeping the last
+         */
+        void advanceTo(long time) throws IOException {
+            while (fill() && time() <= time) {
+                hasPrevious = true;
+                previousTime = time();
+                previousSequence = sequence;
+                for (int j=0; j<previousValues.length; j++) {
+                    previousValues[j] = page.value(position, j);
+                }
+                lastTime = previousTime;
+                sequence++;
+                count++;
+                position++;
+            }
+        }
+    }
+    
+    /**
+     * Rows of a columnar export, or of one session of it
+     */
+    private static final class ColumnarPageSource implements PageSource {
+        
+        private final ColumnarReader mReader;
+        private final int mWidth;
+        private final long mSession;
+        private SamplePage mPage;
+        private int mPosition;
+        
+        ColumnarPageSource(ColumnarReader reader, long session) {
+            mReader = reader;
+            mWidth = reader.getColumnNames().length - 2;
+            mSession = session;
+        }
+        
+        public int width() {
+            return mWidth;
+        }
+        
+        public void next(SamplePage page) throws IOException {
+            page.count = 0;
+            while (!page.isFull()) {
+                if (mPage == null || mPosition >= mPage.count) {
+                    mPage = mReader.next();
+                    mPosition = 0;
+                    if (mPage == null) {
+                        return;
+                    }
+                    continue;
+                }
+                // session_id is the last value of an export
+                if (mSession < 0 || (long)mPage.value(mPosition, mWidth - 1) == mSession) {
+                    int i = page.count++;
+                    page.ids[i] = mPage.ids[mPosition];
+                    page.rcvdTimes[i] = mPage.rcvdTimes[mPosition];
+                    page.sampleTimes[i] = mPage.sampleTimes[mPosition];
+                    System.arraycopy(mPage.values, mPosition * mWidth, page.values, i * mWidth, mWidth);
+                }
+                mPosition++;
+            }
+        }
+    }
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 && args.length != 4 && args.length != 6) {
+            System.err.println("usage: TimeAlignedJoin <a.wlc> <b.wlc> <tolerance ms> [<aligned.csv> [<session a> <session b>]]");
+            System.exit(1);
+        }
+        long sessionA = (args.length == 6 ? Long.parseLong(args[4]) : -1);
+        long sessionB = (args.length == 6 ? Long.parseLong(args[5]) : -1);
+        
+        ColumnarReader a = new ColumnarReader(new FileInputStream(args[0]));
+        ColumnarReader b = new ColumnarReader(new FileInputStream(args[1]));
+        FileOutputStream out = null;
+        try {
+            // compare the values both have, leaving out session_id
+            String[] columns = a.getColumnNames();
+            int n = Math.min(columns.length, b.getColumnNames().length) - 3;
+            String[] names = new String[n];
+            System.arraycopy(columns, 2, names, 0, n);
+            
+            TimeAlignedJoin join = new TimeAlignedJoin(new ColumnarPageSource(a, sessionA),
+                                                       new ColumnarPageSource(b, sessionB),
+                                                       names, Long.parseLong(args[2]));
+            if (args.length > 3) {
+                out = new FileOutputStream(args[3]);
+            }
+            join.run(out != null ? out.getChannel() : null);
+            System.out.print(join.report());
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+            a.close();
+            b.close();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+//
+//  TrackTiler.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * TrackTiler
+ *
+ * Splits location fixes, in the order they were logged, into a track per
+ * session cut into tiles of tileDuration ms of rcvd_time, and writes every
+ * tile simplified with Douglas-Peucker at each of TOLERANCES. Each
+ * tolerance has a file of its own, track_<level>.csv, of time,lat,lon
+ * lines, with the tiles one after the other; index.json gives the bounds
+ * and time span of every tile and the byte range of each of its levels,
+ * so a viewer reads only the tiles in view at the detail it needs. A tile
+ * starts with the last fix of the tile before it, so tiles join up.
+ *
+ * Only the tile being filled is held in memory, per session.
+ */
+public class TrackTiler {
+    
+    public static final long DEFAULT_TILE_DURATION = 60 * 60 * 1000L;
+    
+    // most a simplified track strays from the fixes, finest level first,
+    // in meters
+    public static final double[] TOLERANCES = {1, 5, 25, 125, 625};
+    
+    public static final String INDEX_FILE = "index.json";
+    
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final String ENC = "UTF-8";
+    
+    private final File mDir;
+    private final long mTileDuration;
+    private final FileOutputStream[] mFiles;
+    private final FileChannel[] mChannels;
+    private final long[] mOffsets;
+    private final CsvBuffer mBuffer;
+    
+    // tile entries of the index, as JSON objects
+    private final StringBuilder mTiles;
+    private int mTileCount;
+    
+    // track of each session, in the order sessions first appear
+    private final HashMap<Long, Track> mTracks;
+    private final ArrayList<Track> mTrackOrder;
+    
+    // Douglas-Peucker state, reused from tile to tile
+    private boolean[] mKeep;
+    private int[] mStack;
+    
+    /**
+     * Tiler writing to dir, which must exist
+     */
+    public TrackTiler(File dir, long tileDuration) throws IOException {
+        mDir = dir;
+        mTileDuration = tileDuration;
+        mFiles = new FileOutputStream[TOLERANCES.length];
+        mChannels = new FileChannel[TOLERANCES.length];
+        mOffsets = new long[TOLERANCES.length];
+        mBuffer = new CsvBuffer(64 * 1024);
+        mTiles = new StringBuilder();
+        mTracks = new HashMap<Long, Track>();
+        mTrackOrder = new ArrayList<Track>();
+        mKeep = new boolean[0];
+        mStack = new int[0];
+        try {
+            for (int level=0; level<TOLERANCES.length; level++) {
+                mFiles[level] = new FileOutputStream(new File(dir, levelFile(level)));
+                mChannels[level] = mFiles[level].getChannel();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    public static String levelFile(int level) {
+        return "track_" + level + ".csv";
+    }
+    
+    /**
+     * Add the fixes of a page of location rows, whose values hold the
+     * latitude, longitude and session id in the given columns. Rows
+     * without a position are skipped.
+     */
+    public void addPage(SamplePage page, int latColumn, int lonColumn, int sessionColumn) throws IOException {
+        for (int i=0; i<page.count; i++) {
+            add(page.rcvdTimes[i], page.value(i, latColumn), page.value(i, lonColumn),
+                (long)page.value(i, sessionColumn));
+        }
+    }
+    
+    public void add(long time, double latitude, double longitude, long session) throws IOException {
+        if (latitude != latitude || longitude != longitude) {
+            return;
+        }
+        Track track = mTracks.get(session);
+        if (track == null) {
+            track = new Track(session);
+            mTracks.put(session, track);
+            mTrackOrder.add(track);
+        }
+        
+        long tile = time - (((time % mTileDuration) + mTileDuration) % mTileDuration);
+        if (track.count == 0) {
+            track.tileStart = tile;
+        } else if (tile > track.tileStart) {
+            // a fix timed before the tile, after the clock was set back,
+            // stays in it
+            writeTile(track);
+            track.tileStart = tile;
+        }
+        track.add(time, latitude, longitude);
+    }
+    
+    /**
+     * Write the last tile of every track and the index, and close the files
+     */
+    public void finish() throws IOException {
+        try {
+            for (Track track : mTrackOrder) {
+                // a lone fix carried over from the previous tile is in it
+                if (track.count > 1 || (track.count == 1 && !track.carried)) {
+                    writeTile(track);
+                }
+            }
+            writeIndex();
+        } finally {
+            close();
+        }
+    }
+    
+    /**
+     * Close the files, as when abandoning an export
+     */
+    public void close() {
+        for (int level=0; level<mFiles.length; level++) {
+            if (mFiles[level] != null) {
+                try {
+                    mFiles[level].close();
+                } catch (IOException e) {
+                    // nothing more to lose
+                }
+                mFiles[level] = null;
+            }
+        }
+    }
+    
+    private void writeTile(Track track) throws IOException {
+        int n = track.count;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (int i=0; i<n; i++) {
+            minLat = Math.min(minLat, track.lats[i]);
+            maxLat = Math.max(maxLat, track.lats[i]);
+            minLon = Math.min(minLon, track.lons[i]);
+            maxLon = Math.max(maxLon, track.lons[i]);
+        }
+        
+        StringBuilder ranges = new StringBuilder();
+        for (int level=0; level<TOLERANCES.length; level++) {
+            simplify(track, TOLERANCES[level]);
+            for (int i=0; i<n; i++) {
+                if (mKeep[i]) {
+                    mBuffer.appendLong(track.times[i]).append(',').appendFixed(track.lats[i])
+                           .append(',').appendFixed(track.lons[i]).append('\n');
+                }
+            }
+            int length = mBuffer.length();
+            ranges.append(level > 0 ? ", " : "").append('[').append(mOffsets[level]).append(", ")
+                  .append(length).append(']');
+            mOffsets[level] += length;
+            mBuffer.writeTo(mChannels[level]);
+        }
+        
+        mTiles.append(mTileCount++ > 0 ? ",\n" : "\n")
+              .append("    {\"session\": ").append(track.session)
+              .append(", \"start\": ").append(track.tileStart)
+              .append(", \"first_time\": ").append(track.times[0])
+              .append(", \"last_time\": ").append(track.times[n - 1])
+              .append(", \"bounds\": [").append(minLat).append(", ").append(minLon).append(", ")
+              .append(maxLat).append(", ").append(maxLon).append(']')
+              .append(", \"ranges\": [").append(ranges).append("]}");
+        
+        track.carryLast();
+    }
+    
+    private void writeIndex() throws IOException {
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"tile_duration\": ").append(mTileDuration).append(",\n");
+        sb.append("  \"tolerances\": [");
+        for (int level=0; level<TOLERANCES.length; level++) {
+            sb.append(level > 0 ? ", " : "").append(TOLERANCES[level]);
+        }
+        sb.append("],\n  \"files\": [");
+        for (int level=0; level<TOLERANCES.length; level++) {
+            sb.append(level > 0 ? ", " : "").append('"').append(levelFile(level)).append('"');
+        }
+        sb.append("],\n  \"tiles\": [").append(mTiles).append("\n  ]\n}\n");
+        
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(mDir, INDEX_FILE)), ENC);
+        try {
+            out.write(sb.toString());
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Mark the fixes of track kept at tolerance in mKeep. Distances are
+     * measured on a plane tangent at the tile's first fix, which is
+     * accurate to well under a percent across a tile.
+     */
+    private void simplify(Track track, double tolerance) {
+        int n = track.count;
+        if (mKeep.length < n) {
+            mKeep = new boolean[track.lats.length];
+            mStack = new int[2 * track.lats.length];
+        }
+        for (int i=0; i<n; i++) {
+            mKeep[i] = false;
+        }
+        mKeep[0] = true;
+        mKeep[n - 1] = true;
+        
+        double kx = METERS_PER_DEGREE * Math.cos(Math.toRadians(track.lats[0]));
+        double ky = METERS_PER_DEGREE;
+        int top = 0;
+        mStack[top++] = 0;
+        mStack[top++] = n - 1;
+        while (top > 0) {
+            int b = mStack[--top];
+            int a = mStack[--top];
+            double ax = track.lons[a] * kx;
+            double ay = track.lats[a] * ky;
+            double dx = track.lons[b] * kx - ax;
+            double dy = track.lats[b] * ky - ay;
+            double length2 = dx * dx + dy * dy;
+            
+            int farthest = -1;
+            double max = tolerance * tolerance;
+            for (int i=a+1; i<b; i++) {
+                double px = track.lons[i] * kx - ax;
+                double py = track.lats[i] * ky - ay;
+                // distance to the segment, or to a when a and b coincide
+                double t = (length2 > 0 ? Math.max(0, Math.min(1, (px * dx + py * dy) / length2)) : 0);
+                double ex = px - t * dx;
+                double ey = py - t * dy;
+                double d2 = ex * ex + ey * ey;
+                if (d2 > max) {
+                    max = d2;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0) {
+                mKeep[farthest] = true;
+                mStack[top++] = a;
+                mStack[top++] = farthest;
+                mStack[top++] = farthest;
+                mStack[top++] = b;
+            }
+        }
+    }
+    
+    /**
+     * Fixes of the tile of one session being filled
+     */
+    private static final class Track {
+        final long session;
+        long tileStart;
+        long[] times;
+        double[] lats;
+        double[] lons;
+        int count;
+        
+        // whether the first fix is the last of the previous tile
+        boolean carried;
+        
+        Track(long session) {
+            this.session = session;
+            times = new long[256];
+            lats = new double[256];
+            lons = new double[256];
+        }
+        
+        void add(long time, double latitude, double longitude) {
+            if (count == times.length) {
+                long[] t = new long[2 * count];
+                double[] la = new double[2 * count];
+                double[] lo = new double[2 * count];
+                System.arraycopy(times, 0, t, 0, count);
+                System.arraycopy(lats, 0, la, 0, count);
+                System.arraycopy(lons, 0, lo, 0, count);
+                times = t;
+                lats = la;
+                lons = lo;
+            }
+            times[count] = time;
+            lats[count] = latitude;
+            lons[count] = longitude;
+            count++;
+        }
+        
+        /**
+         * Start the next tile with the last fix of this one
+         */
+        void carryLast() {
+            times[0] = times[count - 1];
+            lats[0] = lats[count - 1];
+            lons[0] = lons[count - 1];
+            count = 1;
+            carried = true;
+        }
+    }
+}
@@ -8,7 +8,25 @@
 
 package edu.berkeley.androidwave.wavelogger;
 
-import android.content.ContentValues;
+import edu.berkeley.androidwave.wavelogger.core.RecipePlan;
+import edu.berkeley.androidwave.wavelogger.core.SampleBlockBuffer;
+import edu.berkeley.androidwave.wavelogger.core.SampleStore;
+import edu.berkeley.androidwave.wavelogger.core.SummaryPyramid;
+import edu.berkeley.androidwave.wavelogger.export.BundleArchive;
+import edu.berkeley.androidwave.wavelogger.export.ColumnarFormat;
+import edu.berkeley.androidwave.wavelogger.export.CsvFormat;
+import edu.berkeley.androidwave.wavelogger.export.ExportPipeline;
+import edu.berkeley.androidwave.wavelogger.export.InputBuffer;
+import edu.berkeley.androidwave.wavelogger.export.MergedPageSource;
+import edu.berkeley.androidwave.wavelogger.export.OutputBuffer;
+import edu.berkeley.androidwave.wavelogger.export.PageFormat;
+import edu.berkeley.androidwave.wavelogger.export.PageSource;
+import edu.berkeley.androidwave.wavelogger.export.ResamplingPageSource;
+import edu.berkeley.androidwave.wavelogger.export.SampleBlockCodec;
+import edu.berkeley.androidwave.wavelogger.export.SamplePage;
+import edu.berkeley.androidwave.wavelogger.export.TimeAlignedJoin;
+import edu.berkeley.androidwave.wavelogger.export.TrackTiler;
+
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.*;
@@ -16,26 +34,147 @@ import android.database.SQLException;
 import android.os.Environment;
 import android.util.Log;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.sql.Timestamp;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
-import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class DbHelper {
+public class DbHelper implements SampleStore {
     
     private static final String TAG = "DbHelper";
     
-    private static final String CSV_ENC = "UTF-8";
-    
     protected static final String DATABASE_NAME = "wave_logger.db";
-    protected static final int DATABASE_VERSION = 1;
+    protected static final int DATABASE_VERSION = 8;
     protected static final String ACCEL_DATA_TABLE_NAME = "accel_data";
+    protected static final String ACCEL_BLOCKS_TABLE_NAME = "accel_blocks";
     protected static final String LOC_DATA_TABLE_NAME = "location_data";
+    protected static final String ACCEL_SUMMARY_TABLE_NAME = "accel_summary";
+    protected static final String LOC_SUMMARY_TABLE_NAME = "location_summary";
+    protected static final String EXPORT_WATERMARKS_TABLE_NAME = "export_watermarks";
+    protected static final String PARTITIONS_TABLE_NAME = "partitions";
+    protected static final String RECIPES_TABLE_NAME = "recipes";
+    protected static final String SESSIONS_TABLE_NAME = "sessions";
+    
+    // recipes other than the accelerometer and location ones are logged to
+    // a table of their own in the main database, named with this prefix
+    protected static final String RECIPE_TABLE_PREFIX = "recipe_";
+    
+    // samples are written to partition files named with this prefix, each
+    // covering DEFAULT_PARTITION_INTERVAL unless set by setPartitioning
+    protected static final String PARTITION_FILE_PREFIX = "wave_logger_";
+    public static final long DEFAULT_PARTITION_INTERVAL = 24 * 60 * 60 * 1000L;
+    
+    // retention caps are checked at most this often while logging
+    protected static final long RETENTION_CHECK_INTERVAL = 60 * 1000L;
+    
+    // in WAL mode, checkpoints run between commits at most this often;
+    // sqlite's own checkpoint after WAL_AUTOCHECKPOINT pages only kicks in
+    // if the writer never gets the chance
+    protected static final long CHECKPOINT_INTERVAL = 10 * 1000L;
+    protected static final int WAL_AUTOCHECKPOINT = 8192;
+    
+    // files sqlite keeps next to a database file, depending on its journal
+    // mode; they go with the file and count towards the retention caps
+    protected static final String[] JOURNAL_SUFFIXES = {"-journal", "-wal", "-shm"};
+    
+    /**
+     * Durability profiles, trading commit cost against what a crash or
+     * power loss may lose. WAL needs sqlite 3.7; older versions get the
+     * fallback journal mode instead.
+     * 
+     * SAFE: rollback journal, fsync on every commit. Nothing committed is
+     * lost, but readers on other connections hold up commits.
+     * BALANCED: WAL with synchronous=NORMAL. Readers never hold up commits;
+     * a power loss may lose the last commits but never corrupts the file.
+     * MAX_THROUGHPUT: WAL (or an in-memory journal) without fsync. An OS
+     * crash or power loss may corrupt the partition being written.
+     */
+    public enum Durability {
+        SAFE("DELETE", "DELETE", "FULL"),
+        BALANCED("WAL", "TRUNCATE", "NORMAL"),
+        MAX_THROUGHPUT("WAL", "MEMORY", "OFF");
+        
+        final String journalMode;
+        final String fallbackJournalMode;
+        final String synchronous;
+        
+        Durability(String journalMode, String fallbackJournalMode, String synchronous) {
+            this.journalMode = journalMode;
+            this.fallbackJournalMode = fallbackJournalMode;
+            this.synchronous = synchronous;
+        }
+    }
+    
+    protected static final String MANIFEST_ENC = "UTF-8";
+    
+    // folder of an export bundle holding the tiled location track, see
+    // writeTrack
+    protected static final String TRACK_DIR = "track";
+    
+    // export state of an unfinished bundle, see ExportJob, saved at most
+    // every EXPORT_CHECKPOINT_INTERVAL ms besides when a table completes
+    protected static final String EXPORT_CHECKPOINT_FILE = "export.checkpoint";
+    protected static final long EXPORT_CHECKPOINT_INTERVAL = 1000;
+    
+    // files written per exported table: CSV and columnar
+    private static final int EXPORT_FORMATS = 2;
+    private static final String[] EXPORT_EXTENSIONS = {".csv", ".wlc"};
+    
+    // a bundle exported as one archive, see newArchiveExport, is written
+    // to its name plus ARCHIVE_SUFFIX and ARCHIVE_PART_SUFFIX and renamed
+    // once complete
+    protected static final String ARCHIVE_SUFFIX = ".zip";
+    protected static final String ARCHIVE_PART_SUFFIX = ".part";
+    private static final int NO_ARCHIVE = Integer.MIN_VALUE;
+    
+    // version 1 tables are renamed on upgrade, and their rows moved into the
+    // current tables in chunks by migrateLegacyRows
+    protected static final String LEGACY_SUFFIX = "_v1";
+    protected static final String[] DATA_TABLE_NAMES = {ACCEL_DATA_TABLE_NAME, LOC_DATA_TABLE_NAME};
+    
+    // number of rows moved per transaction when migrating version 1 data
+    public static final int MIGRATION_CHUNK_SIZE = 2000;
+    
+    // session argument of queryRange selecting samples of every session
+    public static final long ALL_SESSIONS = -1;
+    
+    // a partial accelerometer block is written after this long if batching
+    // sets no flush interval
+    protected static final long DEFAULT_BLOCK_FLUSH_INTERVAL = 1000;
+    
+    // CSV export formats pages on a pool of this many threads, see
+    // ExportPipeline
+    protected static final int EXPORT_FORMAT_THREADS = Math.min(2, Runtime.getRuntime().availableProcessors());
+    
+    // a snapshot copies the database files as they are, see writeSnapshot,
+    // with their write-ahead logs if a checkpoint left them unfinished,
+    // attaching the partition being written under this prefix and its id
+    protected static final String SNAPSHOT_MANIFEST_FILE = "snapshot.txt";
+    protected static final String WAL_SUFFIX = "-wal";
+    private static final String SNAPSHOT_SCHEMA_PREFIX = "s_";
+    
+    // commits and checkpoints of every helper in the process hold the read
+    // side, and a snapshot the write side while it checkpoints, or in
+    // rollback mode while it copies the files being written; in WAL mode
+    // checkpoints then wait while CHECKPOINT_HOLDS is above 0, see
+    // writeSnapshot
+    private static final ReentrantReadWriteLock COMMIT_LOCK = new ReentrantReadWriteLock();
+    private static final AtomicInteger CHECKPOINT_HOLDS = new AtomicInteger();
+    
+    // snapshots in progress, counted under the write side; indexes are not
+    // built while one runs, since older partitions are copied unlocked
+    private static final AtomicInteger SNAPSHOTS = new AtomicInteger();
     
     private Context mContext;
     
@@ -49,8 +188,10 @@ public class DbHelper {
         public static final String X = "x";
         public static final String Y = "y";
         public static final String Z = "z";
+        public static final String SESSION_ID = "session_id";
         
         public static final String[] ALL = {RCVD_TIMESTAMP, SAMPLE_TIME, X, Y, Z};
+        public static final String[] EXPORTED = {RCVD_TIMESTAMP, SAMPLE_TIME, X, Y, Z, SESSION_ID};
     }
     
     static final class LocDataColumns {
@@ -61,233 +202,3681 @@ public class DbHelper {
         public static final String LATITUDE = "latitude";
         public static final String LONGITUDE = "longitude";
         public static final String ALTITUDE = "altitude";
+        public static final String SESSION_ID = "session_id";
         
         public static final String[] ALL = {RCVD_TIMESTAMP, SAMPLE_TIME, LATITUDE, LONGITUDE, ALTITUDE};
+        public static final String[] EXPORTED = {RCVD_TIMESTAMP, SAMPLE_TIME, LATITUDE, LONGITUDE, ALTITUDE, SESSION_ID};
+    }
+    
+    /**
+     * One row per block of consecutive accelerometer samples. Samples in a
+     * block have consecutive ids from _id to last_id, taken from the same
+     * sequence as accel_data; start_time and end_time bound their rcvd_time.
+     * data holds the samples as encoded by SampleBlockCodec.
+     */
+    static final class AccelBlockColumns {
+        public static final String _ID = "_id";
+        public static final String LAST_ID = "last_id";
+        public static final String START_TIME = "start_time";
+        public static final String END_TIME = "end_time";
+        public static final String SAMPLE_COUNT = "sample_count";
+        public static final String DATA = "data";
+        public static final String SESSION_ID = "session_id";
+    }
+    
+    /**
+     * One row per closed SummaryPyramid bucket of accelerometer or location
+     * samples: the samples of session_id received in [start_time, start_time
+     * + resolution), in ms, and the min, max and mean of each value column,
+     * NULL if every value was missing. Kept in the partitions next to the
+     * data tables, in the partition being written when the bucket closed.
+     */
+    static final class SummaryColumns {
+        public static final String _ID = "_id";
+        public static final String SESSION_ID = "session_id";
+        public static final String RESOLUTION = "resolution";
+        public static final String START_TIME = "start_time";
+        public static final String SAMPLE_COUNT = "sample_count";
+        public static final String MIN_SUFFIX = "_min";
+        public static final String MAX_SUFFIX = "_max";
+        public static final String MEAN_SUFFIX = "_mean";
+    }
+    
+    /**
+     * Catalog of partition files, one row per partition in the order they
+     * were created. A partition holds accel_data, location_data and
+     * accel_blocks tables for samples committed between start_time and
+     * end_time, with ids in (*_first_id, *_last_id], and the summary tables
+     * for buckets closed in that time.
+     */
+    static final class PartitionColumns {
+        public static final String _ID = "_id";
+        public static final String NAME = "name";
+        public static final String START_TIME = "start_time";
+        public static final String END_TIME = "end_time";
+        public static final String ACCEL_FIRST_ID = "accel_first_id";
+        public static final String ACCEL_LAST_ID = "accel_last_id";
+        public static final String LOC_FIRST_ID = "loc_first_id";
+        public static final String LOC_LAST_ID = "loc_last_id";
+    }
+    
+    /**
+     * Catalog of the tables of other recipes, one row per recipe id. Each
+     * table has _id, rcvd_time, sample_time and session_id columns like the
+     * accel_data table, and one REAL column per value key of the recipe.
+     */
+    static final class RecipeColumns {
+        public static final String _ID = "_id";
+        public static final String RECIPE_ID = "recipe_id";
+        public static final String TABLE_NAME = "table_name";
+    }
+    
+    /**
+     * One row per logging session of WaveLoggerService, see openSession.
+     * Every sample is tagged with the _id of its session in a session_id
+     * column; samples logged before sessions existed have session_id 0.
+     */
+    static final class SessionColumns {
+        public static final String _ID = "_id";
+        public static final String NAME = "name";
+        public static final String API_KEY = "api_key";
+        public static final String START_TIME = "start_time";
+        public static final String END_TIME = "end_time";
+    }
+    
+    /**
+     * One row per data table per successful export, recording the highest
+     * _id the export included
+     */
+    static final class ExportWatermarkColumns {
+        public static final String _ID = "_id";
+        public static final String BUNDLE_NAME = "bundle_name";
+        public static final String TABLE_NAME = "table_name";
+        public static final String HIGH_ID = "high_id";
+        public static final String EXPORT_TIME = "export_time";
     }
     
     private DatabaseHelper mOpenHelper;
     
-    public DbHelper(Context c) {
-        mContext = c;
-        mOpenHelper = new DatabaseHelper(c);
-        database = mOpenHelper.getWritableDatabase();
+    private boolean mHasLegacyData;
+    
+    // the main database, recipe tables and partitions still to be indexed
+    // after the version 8 upgrade, listed on first use, see indexNextTable
+    private boolean mMainUnindexed;
+    private ArrayList<String> mUnindexedTables;
+    private ArrayList<Partition> mUncheckedPartitions;
+    
+    // group-commit state: rows are buffered here and written in a single
+    // transaction once mBatchSize rows are pending for a table, or
+    // mFlushInterval ms after the first pending row, whichever comes first
+    private int mBatchSize;
+    private long mFlushInterval;
+    private long mFirstPendingTime;
+    
+    // registered recipes by recipe index, null for unregistered indices,
+    // with the rows each buffers and, for accelerometer recipes while
+    // mAccelBlockSize > 1, the block; mRowsPending and mBlocksPending count
+    // the samples buffered in all of them
+    private RecipePlan[] mPlans;
+    private PendingRows[] mRows;
+    private PendingBlock[] mBlocks;
+    private int mRowsPending;
+    private int mBlocksPending;
+    private int mAccelBlockSize;
+    
+    // summary pyramids of the accelerometer and location recipes by recipe
+    // index, and the buckets they closed since the last flush
+    private SummaryPyramid[] mPyramids;
+    private PendingSummaries mAccelSummaries;
+    private PendingSummaries mLocSummaries;
+    
+    // partition currently attached for writing, null until the first
+    // commit; statements of the accelerometer and location rows and of
+    // the blocks are only compiled while it is attached, those of other
+    // recipes against the main database when they are registered
+    private Partition mPartition;
+    private long mPartitionInterval;
+    
+    private CommitListener mCommitListener;
+    
+    // null leaves the connection's defaults alone
+    private Durability mDurability;
+    private boolean mWal;
+    private long mLastCheckpoint;
+    private boolean mCheckpointNeeded;
+    private boolean mAutoCheckpointHeld;
+    
+    // retention caps, 0 meaning no cap
+    private long mMaxBytes;
+    private long mMaxAge;
+    private long mLastRetentionCheck;
+    
+    // partitioned page sources created so far, numbering the schemas they
+    // attach partitions under so that two can read one table at once
+    private final AtomicInteger mReaders = new AtomicInteger();
+    
+    /**
+     * A row of the partitions catalog
+     */
+    static final class Partition {
+        long id;
+        String name;
+        long startTime;
+        long endTime;
+        long accelFirstId;
+        long accelLastId;
+        long locFirstId;
+        long locLastId;
+        
+        /**
+         * Schema name the partition is attached as for writing
+         */
+        String alias() {
+            return "p_" + id;
+        }
+        
+        long firstId(String table) {
+            return (ACCEL_DATA_TABLE_NAME.equals(table) ? accelFirstId : locFirstId);
+        }
+        
+        long lastId(String table) {
+            return (ACCEL_DATA_TABLE_NAME.equals(table) ? accelLastId : locLastId);
+        }
     }
     
     /**
-     * Data insertion methods
+     * A row of the sessions table
      */
-    public boolean insertAccelData(Date rcvdTime, long time, Map<String, Double> values) {
+    public static final class Session {
+        public long id;
+        public String name;
+        public String apiKey;
+        public long startTime;
         
-        ContentValues cv = new ContentValues(values.size() + 2);
-        cv.put(AccelDataColumns.RCVD_TIMESTAMP, (new Timestamp(rcvdTime.getTime())).toString());
-        cv.put(AccelDataColumns.SAMPLE_TIME, time);
-        cv.put(AccelDataColumns.X, values.get("x"));
-        cv.put(AccelDataColumns.Y, values.get("y"));
-        cv.put(AccelDataColumns.Z, values.get("z"));
+        // 0 while the session is running, or if it never stopped cleanly
+        public long endTime;
+    }
+    
+    /**
+     * Part of the logged data to export: the samples of session, or of
+     * every session if it is ALL_SESSIONS, received in [fromTime, toTime),
+     * keeping only one in every samples of each session, counted in the
+     * order they were logged, and of those at most one per period ms of
+     * each session, if period is not 0.
+     * 
+     * The session and time range are pushed into the queries through the
+     * rcvd_time indexes, so only the pages of the window are read. Sessions
+     * share one _id sequence, their rows interleaving batch by batch, so
+     * every and period count the samples of each session as they are
+     * read, see ResamplingPageSource.
+     */
+    public static final class ExportFilter {
         
-        long result;
+        public static final ExportFilter ALL = new ExportFilter(ALL_SESSIONS, 0, Long.MAX_VALUE, 1, 0);
         
-        try {
-            result = database.insertOrThrow(ACCEL_DATA_TABLE_NAME, null, cv);
-        } catch (SQLException e) {
-            Log.w(TAG, "SQLException while storing "+cv, e);
-            return false;
+        public final long session;
+        public final long fromTime;
+        public final long toTime;
+        public final long every;
+        public final long period;
+        
+        public ExportFilter(long session, long fromTime, long toTime, long every, long period) {
+            if (every < 1 || period < 0) {
+                throw new IllegalArgumentException("every " + every + ", period " + period);
+            }
+            this.session = session;
+            this.fromTime = fromTime;
+            this.toTime = toTime;
+            this.every = every;
+            this.period = period;
+        }
+        
+        /**
+         * Whether rows are selected at all, rather than every row exported
+         */
+        public boolean isSelective() {
+            return session != ALL_SESSIONS || fromTime > 0 || toTime != Long.MAX_VALUE || every > 1 || period > 0;
+        }
+        
+        Window window() {
+            return new Window(session, fromTime, toTime);
         }
         
-        return result >= 0;
+        /**
+         * Whether samples are thinned out, beyond the window
+         */
+        boolean isThinned() {
+            return every > 1 || period > 0;
+        }
     }
     
-    public boolean insertLocData(Date rcvdTime, long time, Map<String, Double> values) {
+    /**
+     * Samples of one session, or of every session if session is
+     * ALL_SESSIONS, received in [fromTime, toTime)
+     */
+    static final class Window {
+        final long session;
+        final long fromTime;
+        final long toTime;
         
-        ContentValues cv = new ContentValues(values.size() + 2);
-        cv.put(LocDataColumns.RCVD_TIMESTAMP, (new Timestamp(rcvdTime.getTime())).toString());
-        cv.put(LocDataColumns.SAMPLE_TIME, time);
-        cv.put(LocDataColumns.LATITUDE, values.get("latitude"));
-        cv.put(LocDataColumns.LONGITUDE, values.get("longitude"));
-        cv.put(LocDataColumns.ALTITUDE, values.get("altitude"));
+        Window(long session, long fromTime, long toTime) {
+            this.session = session;
+            this.fromTime = fromTime;
+            this.toTime = toTime;
+        }
         
-        long result;
+        boolean contains(long rcvdTime) {
+            return rcvdTime >= fromTime && rcvdTime < toTime;
+        }
         
-        try {
-            result = database.insertOrThrow(LOC_DATA_TABLE_NAME, null, cv);
-        } catch (SQLException e) {
-            Log.w(TAG, "SQLException while storing "+cv, e);
-            return false;
+        /**
+         * Conditions selecting the rows of a data table. Paged reads walk
+         * an _id range already narrowed by the time index, so they pass
+         * indexed false: the unary + keeps sqlite on the _id order.
+         */
+        String rowFilter(boolean indexed) {
+            String plus = (indexed ? "" : "+");
+            return sessionFilter(plus) + " AND " + plus + AccelDataColumns.RCVD_TIMESTAMP + " >= " + fromTime
+                   + " AND " + plus + AccelDataColumns.RCVD_TIMESTAMP + " < " + toTime;
+        }
+        
+        /**
+         * Conditions selecting the blocks holding samples of the window
+         */
+        String blockFilter(boolean indexed) {
+            String plus = (indexed ? "" : "+");
+            return sessionFilter(plus) + " AND " + plus + AccelBlockColumns.END_TIME + " >= " + fromTime
+                   + " AND " + plus + AccelBlockColumns.START_TIME + " < " + toTime;
         }
         
-        return result >= 0;
+        private String sessionFilter(String plus) {
+            return (session != ALL_SESSIONS ? " AND " + plus + AccelDataColumns.SESSION_ID + " = " + session : "");
+        }
     }
     
-    protected boolean writeAccelData(File f) {
-        try {
-            Writer out = new OutputStreamWriter(new FileOutputStream(f), CSV_ENC);
-            try {
-                // first write a csv header
-                out.write("rcvd_time, sample_time, x, y, z\n");
-            
-                // now write the table values
-                Cursor c = database.query(ACCEL_DATA_TABLE_NAME,
-                                          AccelDataColumns.ALL,
-                                          null, null, null, null, null);
-                                      
-                if (c.moveToFirst()) {
-                    for (int i=0; i<c.getCount(); i++) {
-                        String line = String.format("%s,%d,%f,%f,%f\n",
-                                                    c.getString(0),
-                                                    c.getLong(1),
-                                                    c.getDouble(2),
-                                                    c.getDouble(3),
-                                                    c.getDouble(4));
-                        out.write(line);
-                        c.moveToNext();
+    /**
+     * Preallocated row buffer and compiled insert statement for the rows of
+     * one session in one table. columns are rcvd_time, sample_time and then
+     * the value columns; every row is tagged with session. Rows are bound
+     * straight from the primitive arrays, so steady state inserts allocate
+     * nothing.
+     */
+    static final class PendingRows {
+        final String table;
+        final String[] columns;
+        final long session;
+        final int width;
+        SQLiteStatement insert;
+        long[] rcvdTimes;
+        long[] sampleTimes;
+        double[] values;
+        int count;
+        
+        // rows stored by the last insertAll
+        int lastInserted;
+        
+        PendingRows(String table, String[] columns, long session) {
+            this.table = table;
+            this.columns = columns;
+            this.session = session;
+            width = columns.length - 2;
+            setCapacity(1);
+        }
+        
+        /**
+         * Compile the insert for the table in the given attached schema
+         */
+        void compile(SQLiteDatabase db, String schema) {
+            close();
+            StringBuilder params = new StringBuilder("?");
+            for (int i=0; i<columns.length; i++) {
+                params.append(",?");
+            }
+            insert = db.compileStatement("INSERT INTO " + schema + "." + quote(table) + " ("
+                    + columnList(columns) + "," + AccelDataColumns.SESSION_ID + ") VALUES (" + params + ")");
+        }
+        
+        void close() {
+            if (insert != null) {
+                insert.close();
+                insert = null;
+            }
+        }
+        
+        /**
+         * Resize the buffer, keeping any rows a failed flush left in it
+         */
+        void setCapacity(int capacity) {
+            capacity = Math.max(capacity, count);
+            long[] oldRcvdTimes = rcvdTimes;
+            long[] oldSampleTimes = sampleTimes;
+            double[] oldValues = values;
+            rcvdTimes = new long[capacity];
+            sampleTimes = new long[capacity];
+            values = new double[capacity * width];
+            if (count > 0) {
+                System.arraycopy(oldRcvdTimes, 0, rcvdTimes, 0, count);
+                System.arraycopy(oldSampleTimes, 0, sampleTimes, 0, count);
+                System.arraycopy(oldValues, 0, values, 0, count * width);
+            }
+        }
+        
+        boolean isFull() {
+            return count == sampleTimes.length;
+        }
+        
+        void add(long rcvdTime, long time, double v0, double v1, double v2) {
+            rcvdTimes[count] = rcvdTime;
+            sampleTimes[count] = time;
+            int base = count * width;
+            values[base] = v0;
+            values[base + 1] = v1;
+            values[base + 2] = v2;
+            count++;
+        }
+        
+        /**
+         * Buffer a row whose values are the first width entries of v
+         */
+        void add(long rcvdTime, long time, double[] v) {
+            rcvdTimes[count] = rcvdTime;
+            sampleTimes[count] = time;
+            System.arraycopy(v, 0, values, count * width, width);
+            count++;
+        }
+        
+        /**
+         * Execute the insert for every buffered row, returning false if any
+         * row could not be stored. The caller manages the transaction, and
+         * calls committed() once it has succeeded; until then the rows stay
+         * buffered.
+         */
+        boolean insertAll() {
+            boolean success = true;
+            insert.bindLong(3 + width, session);
+            for (int i=0; i<count; i++) {
+                insert.bindLong(1, rcvdTimes[i]);
+                insert.bindLong(2, sampleTimes[i]);
+                // NaN binds as NULL, matching a missing value
+                int base = i * width;
+                for (int j=0; j<width; j++) {
+                    insert.bindDouble(3 + j, values[base + j]);
+                }
+                try {
+                    if (insert.executeInsert() < 0) {
+                        success = false;
                     }
+                } catch (SQLException e) {
+                    Log.w(TAG, "SQLException while storing row in "+table, e);
+                    success = false;
                 }
-                c.close();
-            }
-            finally {
-                out.close();
             }
-        } catch (IOException ioe) {
-            Log.w(TAG, ioe);
-            return false;
+            return success;
+        }
+        
+        /**
+         * Start a new batch once the transaction holding the rows has
+         * committed. The rcvd_times stay readable until overwritten.
+         */
+        void committed() {
+            lastInserted = count;
+            count = 0;
         }
-        return true;
     }
     
-    protected boolean writeLocData(File f) {
-        try {
-            Writer out = new OutputStreamWriter(new FileOutputStream(f), CSV_ENC);
-            try {
-                // header
-                out.write("rcvd_time, sample_time, longitude, latitude, altitude\n");
-                
-                Cursor c = database.query(LOC_DATA_TABLE_NAME,
-                                          LocDataColumns.ALL,
-                                          null, null, null, null, null);
-                
-                if (c.moveToFirst()) {
-                    for (int i=0; i<c.getCount(); i++) {
-                        String line = String.format("%s,%d,%f,%f,%f\n",
-                                                    c.getString(0),
-                                                    c.getLong(1),
-                                                    c.getDouble(2),
-                                                    c.getDouble(3),
-                                                    c.getDouble(4));
-                        out.write(line);
-                        c.moveToNext();
-                    }
-                }
-                c.close();
+    /**
+     * Accelerometer samples of one session waiting to be packed into one
+     * accel_blocks row
+     */
+    static final class PendingBlock {
+        SQLiteStatement insert;
+        final SampleBlockBuffer buffer;
+        final long session;
+        
+        // samples stored by the last insert
+        int lastInserted;
+        
+        PendingBlock(int blockSize, double quantum, long session) {
+            buffer = new SampleBlockBuffer(blockSize, quantum);
+            this.session = session;
+        }
+        
+        void compile(SQLiteDatabase db, String schema) {
+            close();
+            insert = db.compileStatement("INSERT INTO " + schema + "." + ACCEL_BLOCKS_TABLE_NAME + " ("
+                    + AccelBlockColumns._ID + "," + AccelBlockColumns.LAST_ID + ","
+                    + AccelBlockColumns.START_TIME + "," + AccelBlockColumns.END_TIME + ","
+                    + AccelBlockColumns.SAMPLE_COUNT + "," + AccelBlockColumns.DATA + ","
+                    + AccelBlockColumns.SESSION_ID + ") VALUES (?,?,?,?,?,?,?)");
+        }
+        
+        void close() {
+            if (insert != null) {
+                insert.close();
+                insert = null;
             }
-            finally {
-                out.close();
+        }
+        
+        /**
+         * Store the pending samples as one block with ids following firstId
+         * - 1. Returns false if the block could not be stored. The caller
+         * manages the transaction and the id sequence, and calls committed()
+         * once it has succeeded.
+         */
+        boolean insert(long firstId) {
+            int count = buffer.count();
+            OutputBuffer encoded = buffer.encode();
+            byte[] data = new byte[encoded.length()];
+            System.arraycopy(encoded.bytes(), 0, data, 0, data.length);
+            
+            insert.bindLong(1, firstId);
+            insert.bindLong(2, firstId + count - 1);
+            insert.bindLong(3, buffer.startTime());
+            insert.bindLong(4, buffer.endTime());
+            insert.bindLong(5, count);
+            insert.bindBlob(6, data);
+            insert.bindLong(7, session);
+            try {
+                return (insert.executeInsert() >= 0);
+            } catch (SQLException e) {
+                Log.w(TAG, "SQLException while storing block of "+count+" samples", e);
+                return false;
             }
-        } catch (IOException ioe) {
-            Log.w(TAG, ioe);
-            return false;
         }
-        return true;
+        
+        void committed() {
+            lastInserted = buffer.count();
+            buffer.clear();
+        }
     }
     
-    public File writeContentsToSdCard() {
-        // we write two files, one for accel data, and one for location data,
-        // to a folder on the sd card, named with the current date and time
+    /**
+     * Closed summary buckets waiting to be written to a summary table with
+     * the next flush. Buckets close about once a second per recipe, so they
+     * are simply copied.
+     */
+    static final class PendingSummaries implements SummaryPyramid.Listener {
+        final String table;
+        final String[] valueColumns;
+        final ArrayList<SummaryPyramid.Summary> summaries;
+        SQLiteStatement insert;
         
-        Date now = new Date();
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd 'at' HH-mm-ss", Locale.US);
-        String bundleName = mContext.getPackageName()+" Database Export "+sdf.format(now);
+        PendingSummaries(String table, String[] valueColumns) {
+            this.table = table;
+            this.valueColumns = valueColumns;
+            summaries = new ArrayList<SummaryPyramid.Summary>();
+        }
         
-        // check access to the sd card
-        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-            return null;
+        public void onSummary(SummaryPyramid.Summary summary) {
+            summaries.add(summary.copy());
         }
         
-        File root = Environment.getExternalStorageDirectory();
-        File parent = new File(root, bundleName);
-        if (parent.mkdir() && parent.canWrite()) {
-            // bundle directory created
-            File accelDataFile = new File(parent, "accelerometer.csv");
-            File locDataFile = new File(parent, "location.csv");
-            
-            // TODO: only write CSV files if there is data
-            boolean didFail = false;
-            if (!writeAccelData(accelDataFile)) {
-                didFail = true;
-                Log.d(TAG, "Failure writing accelerometer data");
+        void compile(SQLiteDatabase db, String schema) {
+            close();
+            StringBuilder columns = new StringBuilder();
+            StringBuilder params = new StringBuilder();
+            for (String c : valueColumns) {
+                columns.append(',').append(c).append(SummaryColumns.MIN_SUFFIX)
+                       .append(',').append(c).append(SummaryColumns.MAX_SUFFIX)
+                       .append(',').append(c).append(SummaryColumns.MEAN_SUFFIX);
+                params.append(",?,?,?");
             }
-            if (!writeLocData(locDataFile)) {
-                didFail = true;
-                Log.d(TAG, "Failure writing location data");
+            insert = db.compileStatement("INSERT INTO " + schema + "." + table + " ("
+                    + SummaryColumns.SESSION_ID + "," + SummaryColumns.RESOLUTION + ","
+                    + SummaryColumns.START_TIME + "," + SummaryColumns.SAMPLE_COUNT + columns
+                    + ") VALUES (?,?,?,?" + params + ")");
+        }
+        
+        void close() {
+            if (insert != null) {
+                insert.close();
+                insert = null;
             }
-            if (didFail) {
-                return null;
+        }
+        
+        /**
+         * Execute the insert for every pending bucket, returning false if
+         * any could not be stored. The caller manages the transaction, and
+         * clears the buckets once it has committed.
+         */
+        boolean insertAll() {
+            boolean success = true;
+            for (SummaryPyramid.Summary s : summaries) {
+                insert.bindLong(1, s.session);
+                insert.bindLong(2, s.resolution);
+                insert.bindLong(3, s.startTime);
+                insert.bindLong(4, s.count);
+                for (int i=0; i<valueColumns.length; i++) {
+                    // NaN binds as NULL
+                    insert.bindDouble(5 + 3*i, s.min[i]);
+                    insert.bindDouble(6 + 3*i, s.max[i]);
+                    insert.bindDouble(7 + 3*i, s.mean(i));
+                }
+                try {
+                    if (insert.executeInsert() < 0) {
+                        success = false;
+                    }
+                } catch (SQLException e) {
+                    Log.w(TAG, "SQLException while storing summary in "+table, e);
+                    success = false;
+                }
             }
-        } else {
-            Log.w(TAG, "Could not create directory "+parent+" for WaveLogger database export");
-            return null;
+            return success;
         }
+    }
+    
+    public DbHelper(Context c) {
+        mContext = c;
+        mOpenHelper = new DatabaseHelper(c);
+        database = mOpenHelper.getWritableDatabase();
         
-        return parent;
+        mBatchSize = 1;
+        mFlushInterval = 0;
+        
+        mPlans = new RecipePlan[0];
+        mRows = new PendingRows[0];
+        mBlocks = new PendingBlock[0];
+        mAccelBlockSize = 1;
+        mPyramids = new SummaryPyramid[0];
+        mAccelSummaries = new PendingSummaries(ACCEL_SUMMARY_TABLE_NAME, new String[] {
+            AccelDataColumns.X, AccelDataColumns.Y, AccelDataColumns.Z});
+        mLocSummaries = new PendingSummaries(LOC_SUMMARY_TABLE_NAME, new String[] {
+            LocDataColumns.LATITUDE, LocDataColumns.LONGITUDE, LocDataColumns.ALTITUDE});
+        
+        mPartitionInterval = DEFAULT_PARTITION_INTERVAL;
+        
+        mHasLegacyData = (legacyTableCount() > 0);
+    }
+    
+    /**
+     * Version 1 migration
+     * 
+     * Version 1 stored rcvd_time as Timestamp.toString() text, and
+     * location sample_time as text. The upgrade only renames the version 1
+     * tables, so it is quick; the rows themselves are converted here, a
+     * chunk per transaction, and deleted from the legacy table as they go.
+     * An interrupted migration therefore resumes where it stopped.
+     */
+    public synchronized boolean hasLegacyData() {
+        return mHasLegacyData;
     }
     
-    public long emptyDatabase() {
-        long accel_count = database.delete(ACCEL_DATA_TABLE_NAME, "1", null);
-        long loc_count = database.delete(LOC_DATA_TABLE_NAME, "1", null);
+    /**
+     * Move up to maxRows rows from each legacy table in a single
+     * transaction, dropping legacy tables once they are empty. Returns the
+     * number of rows moved; 0 means the migration is complete.
+     */
+    public synchronized int migrateLegacyRows(int maxRows) {
+        if (!mHasLegacyData) {
+            return 0;
+        }
         
-        Log.d(TAG, String.format("emptyDatabase deleted %d accelerometer records & %d location records", accel_count, loc_count));
+        int moved = 0;
+        database.beginTransaction();
+        try {
+            for (String table : DATA_TABLE_NAMES) {
+                moved += migrateLegacyChunk(table, maxRows);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
         
-        return (accel_count + loc_count);
+        mHasLegacyData = (legacyTableCount() > 0);
+        if (!mHasLegacyData) {
+            Log.i(TAG, "Migration of version 1 data complete");
+        }
+        return moved;
     }
     
-    public void closeDatabase() {
-        database.close();
+    /**
+     * Run the legacy migration to completion
+     */
+    public void finishMigration() {
+        while (migrateLegacyRows(MIGRATION_CHUNK_SIZE) > 0) {
+            // keep going
+        }
     }
     
     /**
-     * SQLiteOpenHelper subclass
+     * Version 8 indexes
+     * 
+     * Version 8 indexes samples on time and session. Existing tables may
+     * already hold days of samples, so the indexes are not built by the
+     * upgrade, which runs on whichever thread first opens the database,
+     * where they would take one long transaction. The writer builds them
+     * instead, a table or partition at a time while it is idle, bringing
+     * partitions written before version 7 up to date on the way. Queries
+     * work without them, only slower.
      */
-    static class DatabaseHelper extends SQLiteOpenHelper {
+    public synchronized boolean hasUnindexedTables() {
+        if (mUnindexedTables == null) {
+            mMainUnindexed = !hasIndex("main", ACCEL_BLOCKS_TABLE_NAME + "_session");
+            mUnindexedTables = new ArrayList<String>();
+            for (String table : listRecipeTables()) {
+                if (!hasIndex("main", table + "_session")) {
+                    mUnindexedTables.add(table);
+                }
+            }
+            mUncheckedPartitions = listPartitions();
+        }
+        return mMainUnindexed || !mUnindexedTables.isEmpty() || !mUncheckedPartitions.isEmpty();
+    }
+    
+    /**
+     * Build the missing indexes of the next table or partition. Nothing is
+     * built while a snapshot is being written.
+     */
+    public synchronized void indexNextTable() {
+        if (!hasUnindexedTables() || SNAPSHOTS.get() > 0) {
+            return;
+        }
         
-        DatabaseHelper(Context context) {
-            // calls the super constructor, requesting the default cursor factory.
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        COMMIT_LOCK.readLock().lock();
+        try {
+            if (SNAPSHOTS.get() > 0) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            String name;
+            if (mMainUnindexed) {
+                mMainUnindexed = false;
+                name = "main database";
+                DatabaseHelper.createTimeIndexes(database, "main");
+            } else if (!mUnindexedTables.isEmpty()) {
+                name = mUnindexedTables.remove(0);
+                DatabaseHelper.createRecipeIndexes(database, name);
+            } else {
+                Partition p = mUncheckedPartitions.remove(0);
+                name = "partition " + p.name;
+                if (!upgradePartition(p)) {
+                    return;
+                }
+            }
+            Log.i(TAG, "Indexed "+name+" in "+(System.currentTimeMillis() - start)+" ms");
+        } catch (SQLException e) {
+            // tried again the next time the database is opened
+            Log.w(TAG, "SQLException while building indexes", e);
+        } finally {
+            COMMIT_LOCK.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Add the session_id columns and indexes to a partition other than the
+     * one being written, which gets them as it is attached. Returns false
+     * if the partition had them already, or is gone.
+     */
+    private boolean upgradePartition(Partition p) {
+        File f = partitionFile(p);
+        if ((mPartition != null && mPartition.id == p.id) || !f.exists()) {
+            return false;
+        }
+        String schema = "i_" + p.id;
+        database.execSQL("ATTACH DATABASE ? AS " + schema, new Object[] {f.getPath()});
+        try {
+            if (hasIndex(schema, ACCEL_BLOCKS_TABLE_NAME + "_session")) {
+                return false;
+            }
+            database.beginTransaction();
+            try {
+                addSessionColumns(schema);
+                DatabaseHelper.createTimeIndexes(database, schema);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            return true;
+        } finally {
+            database.execSQL("DETACH DATABASE " + schema);
+        }
+    }
+    
+    private boolean hasIndex(String schema, String index) {
+        return queryLong("SELECT COUNT(*) FROM " + schema + ".sqlite_master WHERE type = 'index' AND name = ?",
+                         new String[] {index}) > 0;
+    }
+    
+    private int migrateLegacyChunk(String table, int maxRows) {
+        String legacyTable = table + LEGACY_SUFFIX;
+        if (!tableExists(legacyTable)) {
+            return 0;
         }
         
-        @Override
-        public void onCreate(SQLiteDatabase db) {
-            
-            db.execSQL("CREATE TABLE " + ACCEL_DATA_TABLE_NAME + " ("
-                    + AccelDataColumns._ID + " INTEGER PRIMARY KEY,"
-                    + AccelDataColumns.RCVD_TIMESTAMP + " TEXT NOT NULL,"
-                    + AccelDataColumns.SAMPLE_TIME + " INTEGER,"
-                    + AccelDataColumns.X + " REAL,"
-                    + AccelDataColumns.Y + " REAL,"
-                    + AccelDataColumns.Z + " REAL"
-                    + ");");
-            
-            db.execSQL("CREATE TABLE " + LOC_DATA_TABLE_NAME + " ("
-                    + LocDataColumns._ID + " INTEGER PRIMARY KEY,"
-                    + LocDataColumns.RCVD_TIMESTAMP + " TEXT NOT NULL,"
-                    + LocDataColumns.SAMPLE_TIME + " TEXT,"
-                    + LocDataColumns.LATITUDE + " REAL,"
-                    + LocDataColumns.LONGITUDE + " REAL,"
-                    + LocDataColumns.ALTITUDE + " REAL"
-                    + ");");
+        Cursor c = database.rawQuery("SELECT COUNT(*), MAX(_id) FROM (SELECT _id FROM " + legacyTable
+                                     + " ORDER BY _id LIMIT " + maxRows + ")", null);
+        long count = 0;
+        long lastId = 0;
+        try {
+            if (c.moveToFirst()) {
+                count = c.getLong(0);
+                lastId = c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+        
+        if (count == 0) {
+            database.execSQL("DROP TABLE " + legacyTable);
+            return 0;
+        }
+        
+        // Timestamp.toString() is local time, so convert through julianday
+        // with the 'utc' modifier to get epoch milliseconds
+        Object[] bound = {Long.valueOf(lastId)};
+        database.execSQL("INSERT INTO " + table + " (_id, rcvd_time, sample_time, "
+                         + dataColumns(table) + ") SELECT _id, "
+                         + "CAST(ROUND((julianday(rcvd_time, 'utc') - 2440587.5) * 86400000.0) AS INTEGER), "
+                         + "CAST(sample_time AS INTEGER), " + dataColumns(table)
+                         + " FROM " + legacyTable + " WHERE _id <= ?", bound);
+        database.execSQL("DELETE FROM " + legacyTable + " WHERE _id <= ?", bound);
+        
+        return (int)count;
+    }
+    
+    private static String dataColumns(String table) {
+        String[] all = (ACCEL_DATA_TABLE_NAME.equals(table) ? AccelDataColumns.ALL : LocDataColumns.ALL);
+        return all[2] + ", " + all[3] + ", " + all[4];
+    }
+    
+    private boolean tableExists(String table) {
+        Cursor c = database.rawQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                                     new String[] {table});
+        try {
+            return (c.moveToFirst() && c.getLong(0) > 0);
+        } finally {
+            c.close();
+        }
+    }
+    
+    private int legacyTableCount() {
+        int count = 0;
+        for (String table : DATA_TABLE_NAMES) {
+            if (tableExists(table + LEGACY_SUFFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Enable group-commit of inserted rows. Rows are committed in one
+     * transaction per batchSize rows, or flushIntervalMillis after the first
+     * uncommitted row, whichever comes first. A batchSize of 1 or less
+     * restores the default of one transaction per row.
+     * 
+     * The interval is checked as rows arrive; a caller that may go idle with
+     * rows pending should call flushIfDue() periodically.
+     */
+    public synchronized void setBatching(int batchSize, long flushIntervalMillis) {
+        flush();
+        
+        if (batchSize > 1) {
+            mBatchSize = batchSize;
+            mFlushInterval = flushIntervalMillis;
+        } else {
+            mBatchSize = 1;
+            mFlushInterval = 0;
+        }
+        
+        for (PendingRows rows : mRows) {
+            if (rows != null) {
+                rows.setCapacity(mBatchSize);
+            }
+        }
+    }
+    
+    public synchronized void setCommitListener(CommitListener listener) {
+        mCommitListener = listener;
+    }
+    
+    /**
+     * Store accelerometer samples in blocks of up to blockSize samples, one
+     * accel_blocks row per block, instead of one accel_data row per sample.
+     * A block is written once it is full, when the batch is flushed, or when
+     * the flush interval (DEFAULT_BLOCK_FLUSH_INTERVAL if batching sets none)
+     * has passed. The quantum of each recipe's plan is the precision values
+     * are expected to be multiples of, letting blocks store them as
+     * integers. A blockSize of 1 or less restores row storage.
+     */
+    public synchronized void setAccelBlockSize(int blockSize) {
+        flush();
+        
+        mAccelBlockSize = blockSize;
+        for (int i=0; i<mPlans.length; i++) {
+            if (mPlans[i] != null && mPlans[i].kind == RecipePlan.ACCELEROMETER) {
+                resetBlock(i);
+            }
+        }
+    }
+    
+    /**
+     * Replace the block of an accelerometer recipe with one matching the
+     * current block size, or none
+     */
+    private void resetBlock(int recipe) {
+        if (mBlocks[recipe] != null) {
+            mBlocks[recipe].close();
+            mBlocks[recipe] = null;
+        }
+        if (mAccelBlockSize > 1) {
+            RecipePlan plan = mPlans[recipe];
+            PendingBlock block = new PendingBlock(mAccelBlockSize, plan.quantum, plan.session);
+            if (mPartition != null) {
+                block.compile(database, mPartition.alias());
+            }
+            mBlocks[recipe] = block;
+        }
+    }
+    
+    private int pendingCount() {
+        return mRowsPending + mBlocksPending;
+    }
+    
+    /**
+     * Commit any buffered rows. Returns false if any row could not be stored.
+     */
+    public synchronized boolean flush() {
+        if (pendingCount() == 0 && mAccelSummaries.summaries.isEmpty() && mLocSummaries.summaries.isEmpty()) {
+            return true;
+        }
+        
+        // held back while a snapshot copies a database in rollback mode
+        COMMIT_LOCK.readLock().lock();
+        try {
+            return commitPending();
+        } finally {
+            COMMIT_LOCK.readLock().unlock();
+        }
+    }
+    
+    private boolean commitPending() {
+        try {
+            // attaching a partition commits too
+            holdAutoCheckpoint(mWal && CHECKPOINT_HOLDS.get() > 0);
+            openPartition();
+        } catch (SQLException e) {
+            // keep the rows buffered and try again on the next flush
+            Log.w(TAG, "SQLException while opening a partition", e);
+            return false;
+        }
+        
+        // the buffers keep their rcvd_times after the commit, for the listener
+        boolean success = true;
+        try {
+            database.beginTransaction();
+            try {
+                for (PendingRows rows : mRows) {
+                    if (rows != null) {
+                        success = rows.insertAll() && success;
+                    }
+                }
+                for (PendingBlock block : mBlocks) {
+                    if (block != null) {
+                        success = insertAccelBlock(block) && success;
+                    }
+                }
+                success = mAccelSummaries.insertAll() && success;
+                success = mLocSummaries.insertAll() && success;
+                updatePartitionIds();
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLException e) {
+            // the transaction rolled back, so every buffer is kept whole for
+            // the next flush
+            Log.w(TAG, "SQLException while committing", e);
+            return false;
+        }
+        for (PendingRows rows : mRows) {
+            if (rows != null) {
+                rows.committed();
+            }
+        }
+        for (PendingBlock block : mBlocks) {
+            if (block != null) {
+                block.committed();
+            }
+        }
+        mAccelSummaries.summaries.clear();
+        mLocSummaries.summaries.clear();
+        mCheckpointNeeded = mWal;
+        mRowsPending = 0;
+        mBlocksPending = 0;
+        
+        long now = System.currentTimeMillis();
+        if (mCommitListener != null) {
+            for (int i=0; i<mPlans.length; i++) {
+                PendingRows rows = mRows[i];
+                if (rows != null && rows.lastInserted > 0) {
+                    mCommitListener.onCommit(i, rows.rcvdTimes, rows.lastInserted, now);
+                }
+                PendingBlock block = mBlocks[i];
+                if (block != null && block.lastInserted > 0) {
+                    mCommitListener.onCommit(i, block.buffer.page().rcvdTimes, block.lastInserted, now);
+                }
+            }
+        }
+        if (now - mLastRetentionCheck >= RETENTION_CHECK_INTERVAL) {
+            enforceRetention();
+        }
+        
+        return success;
+    }
+    
+    /**
+     * Durability
+     * 
+     * Select the journal mode and synchronous setting for the main database
+     * and every partition this helper writes. Only the writing helper needs
+     * to call this; WAL mode is recorded in the database files, so other
+     * connections pick it up on their own.
+     */
+    public synchronized void setDurability(Durability durability) {
+        flush();
+        mDurability = durability;
+        applyDurability("main");
+        if (mPartition != null) {
+            applyDurability(mPartition.alias());
+        }
+    }
+    
+    public synchronized boolean isWriteAheadLogging() {
+        return mWal;
+    }
+    
+    private void applyDurability(String schema) {
+        if (mDurability == null) {
+            return;
+        }
+        
+        // journal_mode answers with the mode actually in effect
+        String mode = queryString("PRAGMA " + schema + ".journal_mode = " + mDurability.journalMode);
+        if (!mDurability.journalMode.equalsIgnoreCase(mode)) {
+            mode = queryString("PRAGMA " + schema + ".journal_mode = " + mDurability.fallbackJournalMode);
+        }
+        queryString("PRAGMA " + schema + ".synchronous = " + mDurability.synchronous);
+        
+        mWal = "wal".equalsIgnoreCase(mode);
+        if (mWal) {
+            mAutoCheckpointHeld = (CHECKPOINT_HOLDS.get() > 0);
+            queryString("PRAGMA wal_autocheckpoint = " + (mAutoCheckpointHeld ? 0 : WAL_AUTOCHECKPOINT));
+        }
+        Log.d(TAG, "Journal mode of "+schema+" is "+mode+" for "+mDurability);
+    }
+    
+    /**
+     * Checkpoint the write-ahead logs if anything was committed since the
+     * last checkpoint and CHECKPOINT_INTERVAL has passed. Meant to be called
+     * by the writer right after a commit or while idle, when nothing is
+     * waiting to be written, so checkpoints fill the gaps between batches
+     * instead of landing on a commit.
+     */
+    public synchronized void checkpointIfDue() {
+        if (!mCheckpointNeeded || pendingCount() > 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - mLastCheckpoint < CHECKPOINT_INTERVAL) {
+            return;
+        }
+        
+        COMMIT_LOCK.readLock().lock();
+        try {
+            if (CHECKPOINT_HOLDS.get() > 0) {
+                // a snapshot is copying the database files
+                return;
+            }
+            queryString("PRAGMA main.wal_checkpoint");
+            if (mPartition != null) {
+                queryString("PRAGMA " + mPartition.alias() + ".wal_checkpoint");
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "SQLException during checkpoint", e);
+        } finally {
+            COMMIT_LOCK.readLock().unlock();
+        }
+        mLastCheckpoint = now;
+        mCheckpointNeeded = false;
+    }
+    
+    /**
+     * Turn sqlite's own checkpoints after a commit off while a snapshot
+     * holds checkpoints, and back on after. Called with COMMIT_LOCK held,
+     * before each commit.
+     */
+    private void holdAutoCheckpoint(boolean hold) {
+        if (hold != mAutoCheckpointHeld) {
+            queryString("PRAGMA wal_autocheckpoint = " + (hold ? 0 : WAL_AUTOCHECKPOINT));
+            mAutoCheckpointHeld = hold;
+        }
+    }
+    
+    /**
+     * Commit buffered rows if the oldest has waited at least the flush
+     * interval
+     */
+    public synchronized boolean flushIfDue() {
+        long waited = System.currentTimeMillis() - mFirstPendingTime;
+        if (mRowsPending > 0 && waited >= mFlushInterval) {
+            return flush();
+        }
+        if (mBlocksPending > 0 && waited >= (mFlushInterval > 0 ? mFlushInterval : DEFAULT_BLOCK_FLUSH_INTERVAL)) {
+            return flush();
+        }
+        return true;
+    }
+    
+    /**
+     * Store a row, either immediately or as part of the current batch
+     */
+    protected synchronized boolean storeRow(PendingRows rows, long rcvdTime, long time, double v0, double v1, double v2) {
+        if (rows == null) {
+            return false;
+        }
+        if (rows.isFull()) {
+            // only left full by a failed commit
+            flush();
+            if (rows.isFull()) {
+                return dropSample(rows.table);
+            }
+        }
+        if (pendingCount() == 0) {
+            mFirstPendingTime = System.currentTimeMillis();
+        }
+        
+        rows.add(rcvdTime, time, v0, v1, v2);
+        mRowsPending++;
+        
+        if (rows.isFull()) {
+            return flush();
+        }
+        return flushIfDue();
+    }
+    
+    /**
+     * Data insertion methods
+     * 
+     * recipe is the index of a recipe registered with registerRecipe, whose
+     * buffers are found by index, so logging more recipes and sessions adds
+     * no cost per sample. rcvdTime is in epoch milliseconds. Missing values
+     * should be passed as Double.NaN, and are stored as NULL.
+     */
+    public synchronized boolean insertAccelData(int recipe, long rcvdTime, long time, double x, double y, double z) {
+        summarize(recipe, rcvdTime, x, y, z);
+        PendingBlock block = (recipe < mBlocks.length ? mBlocks[recipe] : null);
+        if (block == null) {
+            return storeRow(rows(recipe), rcvdTime, time, x, y, z);
+        }
+        
+        if (block.buffer.isFull()) {
+            // only left full by a failed commit
+            flush();
+            if (block.buffer.isFull()) {
+                return dropSample(ACCEL_BLOCKS_TABLE_NAME);
+            }
+        }
+        if (pendingCount() == 0) {
+            mFirstPendingTime = System.currentTimeMillis();
+        }
+        block.buffer.add(rcvdTime, time, x, y, z);
+        mBlocksPending++;
+        if (block.buffer.isFull()) {
+            return flush();
+        }
+        return flushIfDue();
+    }
+    
+    public synchronized boolean insertLocData(int recipe, long rcvdTime, long time, double latitude, double longitude, double altitude) {
+        summarize(recipe, rcvdTime, latitude, longitude, altitude);
+        return storeRow(rows(recipe), rcvdTime, time, latitude, longitude, altitude);
+    }
+    
+    /**
+     * Store a sample of a recipe with its own table, with values in the
+     * order of its plan
+     */
+    public synchronized boolean insertRecipeData(int recipe, long rcvdTime, long time, double[] values) {
+        PendingRows rows = rows(recipe);
+        if (rows == null) {
+            return false;
+        }
+        if (rows.isFull()) {
+            // only left full by a failed commit
+            flush();
+            if (rows.isFull()) {
+                return dropSample(rows.table);
+            }
+        }
+        if (pendingCount() == 0) {
+            mFirstPendingTime = System.currentTimeMillis();
+        }
+        
+        rows.add(rcvdTime, time, values);
+        mRowsPending++;
+        
+        if (rows.isFull()) {
+            return flush();
+        }
+        return flushIfDue();
+    }
+    
+    /**
+     * Give up on a sample whose buffer could not be committed to make room
+     * for it; the caller's false return counts it as an error
+     */
+    private boolean dropSample(String table) {
+        Log.w(TAG, "Dropping a sample for "+table+", its buffer could not be committed");
+        return false;
+    }
+    
+    private PendingRows rows(int recipe) {
+        return (recipe < mRows.length ? mRows[recipe] : null);
+    }
+    
+    /**
+     * Add a sample to the summary pyramid of its recipe. Buckets it closes
+     * are written with the batch it is part of.
+     */
+    private void summarize(int recipe, long rcvdTime, double v0, double v1, double v2) {
+        if (recipe < mPyramids.length && mPyramids[recipe] != null) {
+            mPyramids[recipe].add(rcvdTime, v0, v1, v2);
+        }
+    }
+    
+    /**
+     * Close the open buckets of every pyramid, so that the summaries of the
+     * samples logged so far are complete once flushed
+     */
+    private void finishSummaries() {
+        for (SummaryPyramid pyramid : mPyramids) {
+            if (pyramid != null) {
+                pyramid.finish();
+            }
+        }
+    }
+    
+    /**
+     * Recipes
+     * 
+     * Prepare the buffers of a recipe of a session, tagging its samples with
+     * the session of the plan. Accelerometer and location samples go to
+     * the partitioned tables of their own.
+     */
+    public synchronized void registerRecipe(RecipePlan plan) {
+        int i = plan.index;
+        if (i >= mPlans.length) {
+            RecipePlan[] plans = new RecipePlan[i + 1];
+            System.arraycopy(mPlans, 0, plans, 0, mPlans.length);
+            PendingRows[] rows = new PendingRows[i + 1];
+            System.arraycopy(mRows, 0, rows, 0, mRows.length);
+            PendingBlock[] blocks = new PendingBlock[i + 1];
+            System.arraycopy(mBlocks, 0, blocks, 0, mBlocks.length);
+            SummaryPyramid[] pyramids = new SummaryPyramid[i + 1];
+            System.arraycopy(mPyramids, 0, pyramids, 0, mPyramids.length);
+            mPlans = plans;
+            mRows = rows;
+            mBlocks = blocks;
+            mPyramids = pyramids;
+        } else if (mPlans[i] != null) {
+            if (mPyramids[i] != null) {
+                mPyramids[i].finish();
+                mPyramids[i] = null;
+            }
+            flush();
+            if (mRows[i] != null) {
+                mRows[i].close();
+                mRows[i] = null;
+            }
+            if (mBlocks[i] != null) {
+                mBlocks[i].close();
+                mBlocks[i] = null;
+            }
+        }
+        mPlans[i] = plan;
+        
+        switch (plan.kind) {
+            case RecipePlan.ACCELEROMETER:
+                mRows[i] = partitionRows(ACCEL_DATA_TABLE_NAME, AccelDataColumns.ALL, plan.session);
+                mPyramids[i] = new SummaryPyramid(plan.session, 3, mAccelSummaries);
+                resetBlock(i);
+                Log.i(TAG, "Logging "+plan+" to "+ACCEL_DATA_TABLE_NAME);
+                break;
+            case RecipePlan.LOCATION:
+                mRows[i] = partitionRows(LOC_DATA_TABLE_NAME, LocDataColumns.ALL, plan.session);
+                mPyramids[i] = new SummaryPyramid(plan.session, 3, mLocSummaries);
+                Log.i(TAG, "Logging "+plan+" to "+LOC_DATA_TABLE_NAME);
+                break;
+            default:
+                registerRecipeTable(plan);
+                break;
+        }
+    }
+    
+    private PendingRows partitionRows(String table, String[] columns, long session) {
+        PendingRows rows = new PendingRows(table, columns, session);
+        rows.setCapacity(mBatchSize);
+        if (mPartition != null) {
+            rows.compile(database, mPartition.alias());
+        }
+        return rows;
+    }
+    
+    /**
+     * Other recipes
+     * 
+     * Create, or reuse from an earlier run, the table of a recipe and
+     * compile its insert. A table created for an earlier run gains columns
+     * for any new value keys; columns the plan no longer has are left NULL.
+     * These tables are kept in the main database, outside the partitions,
+     * so the retention caps do not apply to them.
+     */
+    private void registerRecipeTable(RecipePlan plan) {
+        String[] columns = new String[plan.width() + 2];
+        columns[0] = AccelDataColumns.RCVD_TIMESTAMP;
+        columns[1] = AccelDataColumns.SAMPLE_TIME;
+        System.arraycopy(plan.columns, 0, columns, 2, plan.width());
+        
+        try {
+            String table = recipeTable(plan.recipeId);
+            createRecipeTable(table, plan.columns);
+            PendingRows rows = new PendingRows(table, columns, plan.session);
+            rows.setCapacity(mBatchSize);
+            rows.compile(database, "main");
+            mRows[plan.index] = rows;
+            Log.i(TAG, "Logging "+plan+" to "+table);
+        } catch (SQLException e) {
+            Log.w(TAG, "SQLException while preparing a table for "+plan.recipeId, e);
+        }
+    }
+    
+    /**
+     * Table of a recipe, adding it to the catalog if it is new
+     */
+    private String recipeTable(String recipeId) {
+        Cursor c = database.rawQuery("SELECT " + RecipeColumns.TABLE_NAME + " FROM " + RECIPES_TABLE_NAME
+                                     + " WHERE " + RecipeColumns.RECIPE_ID + " = ?", new String[] {recipeId});
+        try {
+            if (c.moveToFirst()) {
+                return c.getString(0);
+            }
+        } finally {
+            c.close();
+        }
+        
+        // different ids may sanitize to the same name
+        String base = RECIPE_TABLE_PREFIX + RecipePlan.sanitize(recipeId);
+        String table = base;
+        for (int n=2; tableExists(table) || queryLong("SELECT COUNT(*) FROM " + RECIPES_TABLE_NAME + " WHERE "
+                                                      + RecipeColumns.TABLE_NAME + " = ?", new String[] {table}) > 0; n++) {
+            table = base + "_" + n;
+        }
+        database.execSQL("INSERT INTO " + RECIPES_TABLE_NAME + " (" + RecipeColumns.RECIPE_ID + ", "
+                         + RecipeColumns.TABLE_NAME + ") VALUES (?, ?)", new Object[] {recipeId, table});
+        return table;
+    }
+    
+    private void createRecipeTable(String table, String[] valueColumns) {
+        StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS main." + quote(table) + " ("
+                + AccelDataColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + AccelDataColumns.RCVD_TIMESTAMP + " INTEGER NOT NULL,"
+                + AccelDataColumns.SAMPLE_TIME + " INTEGER,"
+                + AccelDataColumns.SESSION_ID + " INTEGER NOT NULL DEFAULT 0");
+        for (String column : valueColumns) {
+            sql.append(",").append(quote(column)).append(" REAL");
+        }
+        database.execSQL(sql.append(");").toString());
+        
+        ArrayList<String> existing = tableColumns("main", table);
+        for (String column : valueColumns) {
+            if (!existing.contains(column)) {
+                database.execSQL("ALTER TABLE main." + quote(table) + " ADD COLUMN " + quote(column) + " REAL");
+            }
+        }
+        DatabaseHelper.createRecipeIndexes(database, table);
+    }
+    
+    /**
+     * Tables of other recipes, in the order they were first logged
+     */
+    protected synchronized ArrayList<String> listRecipeTables() {
+        ArrayList<String> tables = new ArrayList<String>();
+        Cursor c = database.rawQuery("SELECT " + RecipeColumns.TABLE_NAME + " FROM " + RECIPES_TABLE_NAME
+                                     + " ORDER BY " + RecipeColumns._ID, null);
+        try {
+            while (c.moveToNext()) {
+                tables.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return tables;
+    }
+    
+    /**
+     * Column names of a table in the given schema, in order
+     */
+    private ArrayList<String> tableColumns(String schema, String table) {
+        ArrayList<String> columns = new ArrayList<String>();
+        Cursor c = database.rawQuery("PRAGMA " + schema + ".table_info(" + quote(table) + ")", null);
+        try {
+            while (c.moveToNext()) {
+                columns.add(c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return columns;
+    }
+    
+    /**
+     * table of an attached schema as readers select from it. Readers use
+     * the schema and indexes they find, since altering a partition would
+     * take its write lock; one the writer has not upgraded yet reads as
+     * session 0, the value the upgrade fills in.
+     */
+    private String readableTable(String schema, String table) {
+        String name = schema + "." + quote(table);
+        if (!"main".equals(schema) && !tableColumns(schema, table).contains(AccelDataColumns.SESSION_ID)) {
+            return "(SELECT *, 0 AS " + AccelDataColumns.SESSION_ID + " FROM " + name + ")";
+        }
+        return name;
+    }
+    
+    static String quote(String name) {
+        return "\"" + name + "\"";
+    }
+    
+    static String columnList(String[] columns) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<columns.length; i++) {
+            sb.append(i > 0 ? "," : "").append(quote(columns[i]));
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Write a pending accelerometer block, if it has any samples, allocating
+     * its ids from the accel_data sequence so that ids stay unique and
+     * increasing whichever way samples are stored. Called inside a
+     * transaction.
+     */
+    private boolean insertAccelBlock(PendingBlock block) {
+        int count = block.buffer.count();
+        if (count == 0) {
+            return true;
+        }
+        
+        String schema = mPartition.alias();
+        long lastId = queryLong("SELECT MAX(seq) FROM " + schema + ".sqlite_sequence WHERE name = ?",
+                                new String[] {ACCEL_DATA_TABLE_NAME});
+        lastId = Math.max(lastId, queryLong("SELECT MAX(_id) FROM " + schema + "." + ACCEL_DATA_TABLE_NAME, null));
+        
+        if (!block.insert(lastId + 1)) {
+            return false;
+        }
+        
+        raiseSequence(schema, ACCEL_DATA_TABLE_NAME, lastId + count);
+        return true;
+    }
+    
+    /**
+     * Make sure the AUTOINCREMENT sequence of table in schema is at least
+     * id
+     */
+    private void raiseSequence(String schema, String table, long id) {
+        Object[] bound = {Long.valueOf(id), table};
+        database.execSQL("UPDATE " + schema + ".sqlite_sequence SET seq = MAX(seq, ?) WHERE name = ?", bound);
+        database.execSQL("INSERT INTO " + schema + ".sqlite_sequence (seq, name) SELECT ?, ? WHERE changes() = 0", bound);
+    }
+    
+    /**
+     * Partitions
+     * 
+     * Samples are committed to partition files, each covering a fixed
+     * interval of commit time (so a batch straddling a boundary lands in
+     * the earlier partition), attached to the main database while they are
+     * written. The main database keeps the catalog, the export watermarks,
+     * and rows logged before partitioning. Ids continue across partitions,
+     * as every new partition's sequences start above the highest id
+     * handed out so far. Emptying the database or enforcing the retention
+     * caps deletes whole partition files.
+     */
+    public synchronized void setPartitioning(long intervalMillis) {
+        mPartitionInterval = (intervalMillis > 0 ? intervalMillis : DEFAULT_PARTITION_INTERVAL);
+    }
+    
+    /**
+     * Cap the data kept in partitions at maxBytes of partition files, with
+     * their journals or write-ahead logs, and maxAgeMillis of age,
+     * dropping the oldest partitions first. The partition being written is
+     * never dropped. A cap of 0 disables it.
+     */
+    public synchronized void setRetention(long maxBytes, long maxAgeMillis) {
+        mMaxBytes = Math.max(0, maxBytes);
+        mMaxAge = Math.max(0, maxAgeMillis);
+        enforceRetention();
+    }
+    
+    /**
+     * Partitions in the order they were created, which is also id order
+     */
+    public synchronized ArrayList<Partition> listPartitions() {
+        ArrayList<Partition> partitions = new ArrayList<Partition>();
+        Cursor c = database.rawQuery("SELECT " + PartitionColumns._ID + ", " + PartitionColumns.NAME + ", "
+                                     + PartitionColumns.START_TIME + ", " + PartitionColumns.END_TIME + ", "
+                                     + PartitionColumns.ACCEL_FIRST_ID + ", " + PartitionColumns.ACCEL_LAST_ID + ", "
+                                     + PartitionColumns.LOC_FIRST_ID + ", " + PartitionColumns.LOC_LAST_ID
+                                     + " FROM " + PARTITIONS_TABLE_NAME
+                                     + " ORDER BY " + PartitionColumns._ID, null);
+        try {
+            while (c.moveToNext()) {
+                Partition p = new Partition();
+                p.id = c.getLong(0);
+                p.name = c.getString(1);
+                p.startTime = c.getLong(2);
+                p.endTime = c.getLong(3);
+                p.accelFirstId = c.getLong(4);
+                p.accelLastId = c.getLong(5);
+                p.locFirstId = c.getLong(6);
+                p.locLastId = c.getLong(7);
+                partitions.add(p);
+            }
+        } finally {
+            c.close();
+        }
+        return partitions;
+    }
+    
+    protected File partitionFile(Partition p) {
+        return mContext.getDatabasePath(PARTITION_FILE_PREFIX + p.name + ".db");
+    }
+    
+    /**
+     * Attach the partition covering the current time, creating it if
+     * needed, and compile the insert statements against it
+     */
+    private void openPartition() {
+        long now = System.currentTimeMillis();
+        if (mPartition != null) {
+            // a clock set back keeps writing to the current partition
+            if (now < mPartition.endTime
+                    && queryLong("SELECT COUNT(*) FROM " + PARTITIONS_TABLE_NAME + " WHERE "
+                                 + PartitionColumns._ID + " = " + mPartition.id, null) > 0) {
+                return;
+            }
+            // expired, or dropped through another connection
+            closePartition();
+        }
+        
+        ArrayList<Partition> partitions = listPartitions();
+        Partition p = (partitions.isEmpty() ? null : partitions.get(partitions.size() - 1));
+        if (p != null && now >= p.endTime && partitionFile(p).exists()) {
+            // attaching brings its catalog ids up to date before they seed
+            // the next partition
+            attachPartition(p);
+            closePartition();
+        }
+        if (p == null || now >= p.endTime) {
+            p = createPartition(now, partitions.size());
+        }
+        attachPartition(p);
+        
+        String schema = p.alias();
+        for (int i=0; i<mPlans.length; i++) {
+            if (mPlans[i] != null && mPlans[i].kind != RecipePlan.OTHER && mRows[i] != null) {
+                mRows[i].compile(database, schema);
+            }
+            if (mBlocks[i] != null) {
+                mBlocks[i].compile(database, schema);
+            }
+        }
+        mAccelSummaries.compile(database, schema);
+        mLocSummaries.compile(database, schema);
+        Log.i(TAG, "Writing to partition "+p.name);
+        
+        enforceRetention();
+    }
+    
+    /**
+     * Attach p as the current partition, creating its tables if needed.
+     * Commits are not atomic across files under every durability profile,
+     * so the catalog ids and the partition's sequences may disagree after
+     * a crash; both are raised to the higher of the two.
+     */
+    private void attachPartition(Partition p) {
+        String schema = p.alias();
+        database.execSQL("ATTACH DATABASE ? AS " + schema, new Object[] {partitionFile(p).getPath()});
+        mPartition = p;
+        if (queryLong("SELECT COUNT(*) FROM " + schema + ".sqlite_master WHERE type = 'table' AND name = ?",
+                      new String[] {ACCEL_DATA_TABLE_NAME}) == 0) {
+            DatabaseHelper.createDataTables(database, schema);
+            DatabaseHelper.createBlockTables(database, schema);
+        } else {
+            addSessionColumns(schema);
+        }
+        DatabaseHelper.createTimeIndexes(database, schema);
+        DatabaseHelper.createSummaryTables(database, schema);
+        applyDurability(schema);
+        raiseSequence(schema, ACCEL_DATA_TABLE_NAME, p.accelLastId);
+        raiseSequence(schema, LOC_DATA_TABLE_NAME, p.locLastId);
+        updatePartitionIds();
+    }
+    
+    /**
+     * Add session_id columns to the tables of a partition written before
+     * sessions existed; a partition is only altered the first time the
+     * writer attaches it after the upgrade. Readers never alter a
+     * partition, see readableTable.
+     */
+    private void addSessionColumns(String schema) {
+        if (!tableColumns(schema, ACCEL_DATA_TABLE_NAME).contains(AccelDataColumns.SESSION_ID)) {
+            for (String table : new String[] {ACCEL_DATA_TABLE_NAME, LOC_DATA_TABLE_NAME, ACCEL_BLOCKS_TABLE_NAME}) {
+                DatabaseHelper.addSessionColumn(database, schema, table);
+            }
+        }
+    }
+    
+    /**
+     * Add a catalog row for a partition starting at the current interval
+     * boundary, in local time
+     */
+    private Partition createPartition(long now, int index) {
+        long offset = TimeZone.getDefault().getOffset(now);
+        long local = now + offset;
+        long start = local - (((local % mPartitionInterval) + mPartitionInterval) % mPartitionInterval) - offset;
+        
+        Partition p = new Partition();
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd-HHmm", Locale.US);
+        p.name = sdf.format(new Date(start));
+        if (queryLong("SELECT COUNT(*) FROM " + PARTITIONS_TABLE_NAME + " WHERE "
+                      + PartitionColumns.NAME + " = ?", new String[] {p.name}) > 0) {
+            // the interval changed, so names can repeat
+            p.name = p.name + "-" + index;
+        }
+        p.startTime = start;
+        p.endTime = start + mPartitionInterval;
+        p.accelFirstId = p.accelLastId = highestId(ACCEL_DATA_TABLE_NAME);
+        p.locFirstId = p.locLastId = highestId(LOC_DATA_TABLE_NAME);
+        
+        database.execSQL("INSERT INTO " + PARTITIONS_TABLE_NAME + " ("
+                         + PartitionColumns.NAME + ", " + PartitionColumns.START_TIME + ", "
+                         + PartitionColumns.END_TIME + ", "
+                         + PartitionColumns.ACCEL_FIRST_ID + ", " + PartitionColumns.ACCEL_LAST_ID + ", "
+                         + PartitionColumns.LOC_FIRST_ID + ", " + PartitionColumns.LOC_LAST_ID
+                         + ") VALUES (?, ?, ?, ?, ?, ?, ?)",
+                         new Object[] {p.name, Long.valueOf(p.startTime), Long.valueOf(p.endTime),
+                                       Long.valueOf(p.accelFirstId), Long.valueOf(p.accelLastId),
+                                       Long.valueOf(p.locFirstId), Long.valueOf(p.locLastId)});
+        p.id = queryLong("SELECT last_insert_rowid()", null);
+        return p;
+    }
+    
+    /**
+     * Highest id handed out for table, whether in the main database, a
+     * partition, or a partition since dropped
+     */
+    private long highestId(String table) {
+        String lastId = (ACCEL_DATA_TABLE_NAME.equals(table) ? PartitionColumns.ACCEL_LAST_ID : PartitionColumns.LOC_LAST_ID);
+        long id = queryLong("SELECT MAX(seq) FROM main.sqlite_sequence WHERE name = ?", new String[] {table});
+        id = Math.max(id, queryLong("SELECT MAX(" + lastId + ") FROM " + PARTITIONS_TABLE_NAME, null));
+        return Math.max(id, getMainMaxId(table));
+    }
+    
+    /**
+     * Record the ids handed out in the current partition. Called inside the
+     * flush transaction.
+     */
+    private void updatePartitionIds() {
+        String schema = mPartition.alias();
+        database.execSQL("UPDATE " + PARTITIONS_TABLE_NAME + " SET "
+                         + PartitionColumns.ACCEL_LAST_ID + " = MAX(" + PartitionColumns.ACCEL_LAST_ID
+                         + ", IFNULL((SELECT seq FROM " + schema + ".sqlite_sequence WHERE name = '"
+                         + ACCEL_DATA_TABLE_NAME + "'), 0)), "
+                         + PartitionColumns.LOC_LAST_ID + " = MAX(" + PartitionColumns.LOC_LAST_ID
+                         + ", IFNULL((SELECT seq FROM " + schema + ".sqlite_sequence WHERE name = '"
+                         + LOC_DATA_TABLE_NAME + "'), 0))"
+                         + " WHERE " + PartitionColumns._ID + " = " + mPartition.id);
+    }
+    
+    private void closePartition() {
+        if (mPartition == null) {
+            return;
+        }
+        for (int i=0; i<mPlans.length; i++) {
+            if (mPlans[i] != null && mPlans[i].kind != RecipePlan.OTHER && mRows[i] != null) {
+                mRows[i].close();
+            }
+            if (mBlocks[i] != null) {
+                mBlocks[i].close();
+            }
+        }
+        mAccelSummaries.close();
+        mLocSummaries.close();
+        try {
+            database.execSQL("DETACH DATABASE " + mPartition.alias());
+        } catch (SQLException e) {
+            Log.w(TAG, "SQLException while detaching partition "+mPartition.name, e);
+        }
+        mPartition = null;
+    }
+    
+    /**
+     * Remove a partition from the catalog and delete its file. Its ids are
+     * carried over to the main sequences so they are never handed out again.
+     */
+    private void dropPartition(Partition p) {
+        if (mPartition != null && mPartition.id == p.id) {
+            closePartition();
+        }
+        
+        database.beginTransaction();
+        try {
+            raiseSequence("main", ACCEL_DATA_TABLE_NAME, p.accelLastId);
+            raiseSequence("main", LOC_DATA_TABLE_NAME, p.locLastId);
+            database.execSQL("DELETE FROM " + PARTITIONS_TABLE_NAME + " WHERE "
+                             + PartitionColumns._ID + " = " + p.id);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        
+        File f = partitionFile(p);
+        for (String suffix : JOURNAL_SUFFIXES) {
+            new File(f.getPath() + suffix).delete();
+        }
+        if (f.exists() && !f.delete()) {
+            Log.w(TAG, "Could not delete partition file "+f);
+        }
+    }
+    
+    /**
+     * Bytes on disk of partition p, with its journal or write-ahead log
+     */
+    private long partitionSize(Partition p) {
+        File f = partitionFile(p);
+        long size = f.length();
+        for (String suffix : JOURNAL_SUFFIXES) {
+            size += new File(f.getPath() + suffix).length();
+        }
+        return size;
+    }
+    
+    /**
+     * Drop the oldest partitions while either retention cap is exceeded
+     */
+    protected synchronized void enforceRetention() {
+        long now = System.currentTimeMillis();
+        mLastRetentionCheck = now;
+        if (mMaxBytes == 0 && mMaxAge == 0) {
+            return;
+        }
+        
+        ArrayList<Partition> partitions = listPartitions();
+        long total = 0;
+        for (Partition p : partitions) {
+            total += partitionSize(p);
+        }
+        
+        for (Partition p : partitions) {
+            if (mPartition != null && mPartition.id == p.id) {
+                break;
+            }
+            boolean expired = (mMaxAge > 0 && p.endTime <= now - mMaxAge);
+            boolean oversize = (mMaxBytes > 0 && total > mMaxBytes);
+            if (!expired && !oversize) {
+                break;
+            }
+            total -= partitionSize(p);
+            Log.i(TAG, "Dropping partition "+p.name+(expired ? " past the age cap" : " over the size cap"));
+            dropPartition(p);
+        }
+    }
+    
+    /**
+     * First column of the first row of a query or pragma, or null if there
+     * is no row
+     */
+    private String queryString(String sql) {
+        Cursor c = database.rawQuery(sql, null);
+        try {
+            return (c.moveToFirst() ? c.getString(0) : null);
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+     * First column of the first row of a query, or 0 if there is no row or
+     * it is NULL
+     */
+    private long queryLong(String sql, String[] args) {
+        Cursor c = database.rawQuery(sql, args);
+        try {
+            return (c.moveToFirst() ? c.getLong(0) : 0);
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+     * PageSource reading a data table in windows of rows keyed on _id, so
+     * sqlite never has to count or materialize the whole result. columns
+     * are rcvd_time, sample_time and the value columns, exported ones
+     * ending with session_id.
+     */
+    protected class TablePageSource implements PageSource {
+        
+        private final String mSql;
+        private final int mWidth;
+        private long mLastId;
+        
+        /**
+         * Rows with fromId < _id <= toId
+         */
+        TablePageSource(String table, String[] columns, long fromId, long toId) {
+            this(table, columns, fromId, toId, "");
+        }
+        
+        /**
+         * Rows with fromId < _id <= toId also matching the conditions in
+         * filter, each starting with AND
+         */
+        TablePageSource(String table, String[] columns, long fromId, long toId, String filter) {
+            mSql = "SELECT _id, " + columnList(columns) + " FROM " + table
+                   + " WHERE _id > ? AND _id <= " + toId + filter + " ORDER BY _id LIMIT ";
+            mWidth = columns.length - 2;
+            mLastId = fromId;
+        }
+        
+        public int width() {
+            return mWidth;
+        }
+        
+        public void next(SamplePage page) throws IOException {
+            page.count = 0;
+            Cursor c;
+            try {
+                c = database.rawQuery(mSql + page.capacity(), new String[] {Long.toString(mLastId)});
+            } catch (SQLException e) {
+                throw new IOException("query failed: " + e.getMessage());
+            }
+            try {
+                double[] values = page.values;
+                while (c.moveToNext()) {
+                    int i = page.count++;
+                    page.ids[i] = c.getLong(0);
+                    page.rcvdTimes[i] = c.getLong(1);
+                    page.sampleTimes[i] = c.getLong(2);
+                    int base = i * mWidth;
+                    for (int j=0; j<mWidth; j++) {
+                        values[base + j] = c.getDouble(3 + j);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            if (page.count > 0) {
+                mLastId = page.ids[page.count - 1];
+            }
+        }
+    }
+    
+    /**
+     * PageSource unpacking the accelerometer blocks in table holding samples
+     * with fromId < id <= toId, one block per query, with the block's
+     * session_id as a fourth value. With a window, only blocks and samples
+     * in the window are read.
+     */
+    protected class BlockPageSource implements PageSource {
+        
+        private final String mSql;
+        private final long mFromId;
+        private final long mToId;
+        private final Window mWindow;
+        
+        private final InputBuffer mIn = new InputBuffer();
+        private SamplePage mBlock;
+        private long mBlockFirstId;
+        private long mBlockSession;
+        private int mPosition;
+        
+        BlockPageSource(String table, long fromId, long toId) {
+            this(table, fromId, toId, null);
+        }
+        
+        BlockPageSource(String table, long fromId, long toId, Window window) {
+            mSql = "SELECT " + AccelBlockColumns._ID + ", " + AccelBlockColumns.DATA + ", "
+                   + AccelBlockColumns.SESSION_ID + " FROM " + table + " WHERE " + AccelBlockColumns.LAST_ID
+                   + " > " + fromId + " AND " + AccelBlockColumns._ID + " > ? AND "
+                   + AccelBlockColumns._ID + " <= " + toId + (window != null ? window.blockFilter(false) : "")
+                   + " ORDER BY " + AccelBlockColumns._ID + " LIMIT 1";
+            mFromId = fromId;
+            mToId = toId;
+            mWindow = window;
+            mBlockFirstId = 0;
+        }
+        
+        public int width() {
+            return 4;
+        }
+        
+        public void next(SamplePage page) throws IOException {
+            page.count = 0;
+            while (!page.isFull()) {
+                if (mBlock == null || mPosition == mBlock.count) {
+                    if (!readBlock()) {
+                        break;
+                    }
+                }
+                long id = mBlockFirstId + mPosition;
+                if (id > mToId) {
+                    mPosition = mBlock.count;
+                    continue;
+                }
+                if (id > mFromId && (mWindow == null || mWindow.contains(mBlock.rcvdTimes[mPosition]))) {
+                    int i = page.count++;
+                    page.ids[i] = id;
+                    page.rcvdTimes[i] = mBlock.rcvdTimes[mPosition];
+                    page.sampleTimes[i] = mBlock.sampleTimes[mPosition];
+                    System.arraycopy(mBlock.values, mPosition * 3, page.values, i * 4, 3);
+                    page.values[i * 4 + 3] = mBlockSession;
+                }
+                mPosition++;
+            }
+        }
+        
+        private boolean readBlock() throws IOException {
+            Cursor c;
+            try {
+                c = database.rawQuery(mSql, new String[] {Long.toString(mBlockFirstId)});
+            } catch (SQLException e) {
+                throw new IOException("query failed: " + e.getMessage());
+            }
+            try {
+                if (!c.moveToFirst()) {
+                    return false;
+                }
+                mBlockFirstId = c.getLong(0);
+                mBlockSession = c.getLong(2);
+                byte[] data = c.getBlob(1);
+                mIn.wrap(data, 0, data.length);
+                mBlock = SampleBlockCodec.decode(mIn, mBlock);
+                mPosition = 0;
+                return true;
+            } finally {
+                c.close();
+            }
+        }
+    }
+    
+    /**
+     * PageSource reading one data table across the main database and every
+     * partition, in id order. Partitions are attached under a name of their
+     * own for the duration of their read, so the export does not disturb
+     * the partition being written. Tables of other recipes are read from
+     * the main database only.
+     * 
+     * With a window, each database is first narrowed to the _id range of the
+     * window's rows through the time indexes, which hold the _ids as well,
+     * so the range is found without reading the rows; partitions that ended
+     * before the window are skipped without being attached.
+     */
+    public class PartitionedPageSource implements PageSource {
+        
+        private final String mTable;
+        private final long mFromId;
+        private final long mToId;
+        private final Window mWindow;
+        private final ArrayList<Partition> mPartitions;
+        private final String[] mColumns;
+        private final int mReader;
+        
+        // -1 while reading the main database
+        private int mIndex;
+        private PageSource mSource;
+        private String mAttached;
+        
+        PartitionedPageSource(String table, long fromId, long toId) {
+            this(table, fromId, toId, null);
+        }
+        
+        PartitionedPageSource(String table, long fromId, long toId, Window window) {
+            mTable = table;
+            mFromId = fromId;
+            mToId = toId;
+            mWindow = window;
+            mReader = mReaders.incrementAndGet();
+            mPartitions = new ArrayList<Partition>();
+            if (isPartitioned(table)) {
+                mColumns = (ACCEL_DATA_TABLE_NAME.equals(table) ? AccelDataColumns.EXPORTED : LocDataColumns.EXPORTED);
+                for (Partition p : listPartitions()) {
+                    // skip partitions wholly outside the id range, or
+                    // committed before the window; a sample is never
+                    // committed before it is received
+                    if (p.lastId(table) > fromId && p.firstId(table) < toId
+                            && (window == null || p.endTime > window.fromTime)) {
+                        mPartitions.add(p);
+                    }
+                }
+            } else {
+                mColumns = recipeTableColumns(table);
+            }
+            mIndex = -1;
+            mSource = dataSource("main");
+        }
+        
+        public int width() {
+            return mColumns.length - 2;
+        }
+        
+        public void next(SamplePage page) throws IOException {
+            while (true) {
+                mSource.next(page);
+                if (page.count > 0 || !nextPartition()) {
+                    return;
+                }
+            }
+        }
+        
+        private PageSource dataSource(String schema) {
+            String table = readableTable(schema, mTable);
+            PageSource rows;
+            if (mWindow == null) {
+                rows = new TablePageSource(table, mColumns, mFromId, mToId);
+            } else {
+                long[] ids = idRange("SELECT MIN(_id) - 1, MAX(_id) FROM " + table + " WHERE 1" + mWindow.rowFilter(true));
+                rows = new TablePageSource(table, mColumns, ids[0], ids[1], mWindow.rowFilter(false));
+            }
+            if (!ACCEL_DATA_TABLE_NAME.equals(mTable)) {
+                return rows;
+            }
+            
+            // accelerometer samples may be stored as rows, in blocks, or both
+            String blockTable = readableTable(schema, ACCEL_BLOCKS_TABLE_NAME);
+            PageSource blocks;
+            if (mWindow == null) {
+                blocks = new BlockPageSource(blockTable, mFromId, mToId);
+            } else {
+                long[] ids = idRange("SELECT MIN(" + AccelBlockColumns._ID + ") - 1, MAX(" + AccelBlockColumns.LAST_ID
+                                     + ") FROM " + blockTable + " WHERE 1" + mWindow.blockFilter(true));
+                blocks = new BlockPageSource(blockTable, ids[0], ids[1], mWindow);
+            }
+            return new MergedPageSource(rows, blocks);
+        }
+        
+        /**
+         * The (from, to] _id range found by sql within the requested one,
+         * empty if sql finds no rows
+         */
+        private long[] idRange(String sql) {
+            Cursor c = database.rawQuery(sql, null);
+            try {
+                if (!c.moveToFirst() || c.isNull(1)) {
+                    return new long[] {mFromId, mFromId};
+                }
+                return new long[] {Math.max(mFromId, c.getLong(0)), Math.min(mToId, c.getLong(1))};
+            } finally {
+                c.close();
+            }
+        }
+        
+        private boolean nextPartition() throws IOException {
+            try {
+                detach();
+                while (++mIndex < mPartitions.size()) {
+                    Partition p = mPartitions.get(mIndex);
+                    File f = partitionFile(p);
+                    if (f.exists()) {
+                        // dropped since the export started otherwise
+                        String schema = "x_" + mTable + "_" + p.id + "_" + mReader;
+                        database.execSQL("ATTACH DATABASE ? AS " + schema, new Object[] {f.getPath()});
+                        mAttached = schema;
+                        mSource = dataSource(schema);
+                        return true;
+                    }
+                }
+                return false;
+            } catch (SQLException e) {
+                throw new IOException("could not attach partition: " + e.getMessage());
+            }
+        }
+        
+        private void detach() {
+            if (mAttached != null) {
+                database.execSQL("DETACH DATABASE " + mAttached);
+                mAttached = null;
+            }
+        }
+        
+        /**
+         * Detach any partition still attached, for a read stopped before the
+         * last page
+         */
+        public void close() {
+            mIndex = mPartitions.size();
+            detach();
+        }
+    }
+    
+    /**
+     * Time range queries
+     * 
+     * Forward-only, paged read of the samples of table received in
+     * [fromTime, toTime), for one session or ALL_SESSIONS, in _id order.
+     * table is one of the DATA_TABLE_NAMES or a table of another recipe,
+     * see listRecipeTables; values end with session_id. Each page is one
+     * indexed query, so reading the last minutes of a long log costs about
+     * as much as the rows returned. Read pages until one comes back empty,
+     * or close the source to stop early.
+     */
+    public synchronized PartitionedPageSource queryRange(String table, long session, long fromTime, long toTime) {
+        flush();
+        return new PartitionedPageSource(table, 0, Long.MAX_VALUE, new Window(session, fromTime, toTime));
+    }
+    
+    /**
+     * Every sample of a session in table, see queryRange
+     */
+    public synchronized PartitionedPageSource querySession(String table, long session) {
+        long start = queryLong("SELECT " + SessionColumns.START_TIME + " FROM " + SESSIONS_TABLE_NAME
+                               + " WHERE " + SessionColumns._ID + " = " + session, null);
+        return queryRange(table, session, start, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Summaries
+     * 
+     * The closed summary buckets of table, one of the DATA_TABLE_NAMES, at
+     * resolution ms, one of SummaryPyramid.RESOLUTIONS, starting in
+     * [fromTime, toTime), for one session or ALL_SESSIONS. Buckets are in
+     * the order they closed, which is start_time order within a session.
+     * Buckets still open are not included. The sums of the summaries read
+     * back are rebuilt from the stored means.
+     */
+    public synchronized ArrayList<SummaryPyramid.Summary> querySummaries(String table, long session, long resolution,
+                                                                      long fromTime, long toTime) {
+        flush();
+        
+        PendingSummaries columns = (ACCEL_DATA_TABLE_NAME.equals(table) ? mAccelSummaries : mLocSummaries);
+        StringBuilder sql = new StringBuilder("SELECT " + SummaryColumns.SESSION_ID + ", "
+                                              + SummaryColumns.START_TIME + ", " + SummaryColumns.SAMPLE_COUNT);
+        for (String c : columns.valueColumns) {
+            sql.append(", ").append(c).append(SummaryColumns.MIN_SUFFIX)
+               .append(", ").append(c).append(SummaryColumns.MAX_SUFFIX)
+               .append(", ").append(c).append(SummaryColumns.MEAN_SUFFIX);
+        }
+        sql.append(" FROM %s." + columns.table + " WHERE " + SummaryColumns.RESOLUTION + " = " + resolution
+                   + (session != ALL_SESSIONS ? " AND " + SummaryColumns.SESSION_ID + " = " + session : "")
+                   + " AND " + SummaryColumns.START_TIME + " >= " + fromTime
+                   + " AND " + SummaryColumns.START_TIME + " < " + toTime
+                   + " ORDER BY " + SummaryColumns._ID);
+        
+        ArrayList<SummaryPyramid.Summary> summaries = new ArrayList<SummaryPyramid.Summary>();
+        for (Partition p : listPartitions()) {
+            // a bucket closes after it starts
+            if (p.endTime <= fromTime) {
+                continue;
+            }
+            boolean writing = (mPartition != null && mPartition.id == p.id);
+            String schema = (writing ? p.alias() : "s_" + p.id);
+            File f = partitionFile(p);
+            if (!writing) {
+                if (!f.exists()) {
+                    continue;
+                }
+                database.execSQL("ATTACH DATABASE ? AS " + schema, new Object[] {f.getPath()});
+            }
+            try {
+                if (queryLong("SELECT COUNT(*) FROM " + schema + ".sqlite_master WHERE type = 'table' AND name = ?",
+                              new String[] {columns.table}) > 0) {
+                    readSummaries(String.format(sql.toString(), schema), resolution, columns.valueColumns.length, summaries);
+                }
+            } finally {
+                if (!writing) {
+                    database.execSQL("DETACH DATABASE " + schema);
+                }
+            }
+        }
+        return summaries;
+    }
+    
+    private void readSummaries(String sql, long resolution, int width, ArrayList<SummaryPyramid.Summary> out) {
+        Cursor c = database.rawQuery(sql, null);
+        try {
+            while (c.moveToNext()) {
+                SummaryPyramid.Summary s = new SummaryPyramid.Summary(width);
+                s.session = c.getLong(0);
+                s.resolution = resolution;
+                s.startTime = c.getLong(1);
+                s.count = c.getLong(2);
+                for (int i=0; i<width; i++) {
+                    int column = 3 + 3*i;
+                    if (!c.isNull(column + 2)) {
+                        s.min[i] = c.getDouble(column);
+                        s.max[i] = c.getDouble(column + 1);
+                        s.valueCounts[i] = s.count;
+                        s.sum[i] = c.getDouble(column + 2) * s.count;
+                    }
+                }
+                out.add(s);
+            }
+        } finally {
+            c.close();
+        }
+    }
+    
+    private static boolean isPartitioned(String table) {
+        return ACCEL_DATA_TABLE_NAME.equals(table) || LOC_DATA_TABLE_NAME.equals(table);
+    }
+    
+    /**
+     * Export jobs
+     * 
+     * An export of the data tables to a bundle on the sd card, as CSV files
+     * and as ColumnarFormat files, every file ending with a session_id
+     * column, plus the tiled location track. Tables are exported
+     * concurrently by an ExportPipeline. Jobs are meant to run on a
+     * background thread, see ExportService, and report their progress and
+     * can be cancelled from any thread.
+     * 
+     * A job keeps its state in the bundle's export.checkpoint as it goes:
+     * the _id ranges it exports and, per table, the _id written up to and
+     * the length of each of the table's files at that point. A job stopped
+     * by its process being killed is found again by findUnfinishedExport
+     * and resumes from its checkpoints, cutting each file back to its
+     * checkpointed length and reading each table from the next _id. The
+     * checkpoint is deleted and the manifest written only once the bundle is
+     * complete, so a bundle without a manifest is unfinished.
+     * 
+     * A job may instead write the bundle as one archive, see
+     * newArchiveExport. Zip members are written one at a time, so each
+     * file of a table is a read pass of its own. An archive cannot be
+     * resumed, and one left unfinished is deleted.
+     */
+    public class ExportJob implements ExportPipeline.CheckpointListener {
+        
+        // the bundle's directory, or its archive
+        private final File mDir;
+        private final String mBundleName;
+        private final boolean mNewDataOnly;
+        private final String mPreviousBundle;
+        private final long mExportTime;
+        private final double mAccelPrecision;
+        private final double mLocPrecision;
+        private final String[] mTables;
+        private final long[] mFromIds;
+        private final long[] mToIds;
+        private final ExportFilter mFilter;
+        
+        // archives only: the compression level, the files added before the
+        // job runs, and per table the read passes done
+        private final int mArchiveLevel;
+        private final ArrayList<String[]> mArchiveFiles;
+        private final int[] mPasses;
+        
+        // per table, the _id exported up to, the lengths of its files at
+        // that point and whether its files are finished; guarded by the job
+        private final long[] mDoneIds;
+        private final long[][] mLengths;
+        private final boolean[] mComplete;
+        private boolean mTrackComplete;
+        private long mLastSave;
+        
+        // source reading each table during run, by table index, and the
+        // partitioned source under it, if any
+        private PageSource[] mSources;
+        private PartitionedPageSource[] mTableReaders;
+        
+        private volatile boolean mCancelled;
+        private volatile Thread mThread;
+        
+        ExportJob(File dir, String bundleName, boolean newDataOnly, String previousBundle, long exportTime,
+                  double accelPrecision, double locPrecision, String[] tables, long[] fromIds, long[] toIds,
+                  ExportFilter filter, int archiveLevel) {
+            mDir = dir;
+            mBundleName = bundleName;
+            mNewDataOnly = newDataOnly;
+            mPreviousBundle = previousBundle;
+            mExportTime = exportTime;
+            mAccelPrecision = accelPrecision;
+            mLocPrecision = locPrecision;
+            mTables = tables;
+            mFromIds = fromIds;
+            mToIds = toIds;
+            mFilter = filter;
+            mDoneIds = fromIds.clone();
+            mLengths = new long[tables.length][EXPORT_FORMATS];
+            mComplete = new boolean[tables.length];
+            mArchiveLevel = archiveLevel;
+            mArchiveFiles = new ArrayList<String[]>();
+            mPasses = new int[tables.length];
+        }
+        
+        /**
+         * The bundle's directory, or its archive once complete
+         */
+        public File getBundle() {
+            return mDir;
+        }
+        
+        public boolean isArchive() {
+            return mArchiveLevel != NO_ARCHIVE;
+        }
+        
+        public ExportFilter getFilter() {
+            return mFilter;
+        }
+        
+        public String getBundleName() {
+            return mBundleName;
+        }
+        
+        /**
+         * Share of the exported rows written so far, in [0, 1]
+         */
+        public synchronized float getProgress() {
+            int passes = (isArchive() ? EXPORT_FORMATS : 1);
+            long done = 0;
+            long total = 0;
+            for (int i=0; i<mTables.length; i++) {
+                long range = mToIds[i] - mFromIds[i];
+                done += mPasses[i] * range + mDoneIds[i] - mFromIds[i];
+                total += passes * range;
+            }
+            return (total > 0 ? (float)done / total : (mTrackComplete ? 1 : 0));
+        }
+        
+        /**
+         * Stop the job and delete its bundle. run returns null once the
+         * job's threads have stopped.
+         */
+        public void cancel() {
+            mCancelled = true;
+            Thread t = mThread;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+        
+        /**
+         * Stop the job, keeping its bundle and checkpoints to be resumed,
+         * see findUnfinishedExport. run throws once the job's threads have
+         * stopped.
+         */
+        public void stop() {
+            Thread t = mThread;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+        
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+        
+        /**
+         * Add a file of text to the bundle, such as a report of the
+         * logging run
+         */
+        public void writeFile(String name, String text) throws IOException {
+            if (isArchive()) {
+                // written first thing in run
+                synchronized (this) {
+                    mArchiveFiles.add(new String[] {name, text});
+                }
+                return;
+            }
+            Writer out = new OutputStreamWriter(new FileOutputStream(new File(mDir, name)), MANIFEST_ENC);
+            try {
+                out.write(text);
+            } finally {
+                out.close();
+            }
+        }
+        
+        /**
+         * Export whatever is left, returning the bundle once it is
+         * complete, or null if the job was cancelled. Throws if the export
+         * fails, leaving the bundle to be resumed.
+         */
+        public File run() throws IOException {
+            mThread = Thread.currentThread();
+            try {
+                if (mCancelled) {
+                    throw new InterruptedException();
+                }
+                if (isArchive()) {
+                    return runArchive();
+                }
+                ExportPipeline pipeline = new ExportPipeline(EXPORT_FORMAT_THREADS);
+                pipeline.setCheckpointListener(this);
+                mSources = new PageSource[mTables.length];
+                mTableReaders = new PartitionedPageSource[mTables.length];
+                for (int i=0; i<mTables.length; i++) {
+                    if (!mComplete[i]) {
+                        addTable(pipeline, i, null, 0);
+                    }
+                }
+                pipeline.run();
+                
+                if (!mTrackComplete) {
+                    writeTrack(new File(mDir, TRACK_DIR), mFromIds[1], mToIds[1], mFilter);
+                    synchronized (this) {
+                        mTrackComplete = true;
+                    }
+                }
+                if (mCancelled) {
+                    throw new InterruptedException();
+                }
+                
+                writeFile("manifest.txt", manifest(mBundleName, mNewDataOnly, mPreviousBundle, mTables, mFromIds, mToIds,
+                                                   mFilter));
+                recordWatermarks();
+                new File(mDir, EXPORT_CHECKPOINT_FILE).delete();
+                return mDir;
+            } catch (InterruptedException e) {
+                if (!mCancelled) {
+                    throw new IOException("export interrupted");
+                }
+                return discard();
+            } catch (IOException e) {
+                // the interrupt closes any file channel being written
+                if (!mCancelled) {
+                    throw e;
+                }
+                return discard();
+            } finally {
+                closeSources();
+                mThread = null;
+                // clear an interrupt that came after the pipeline finished
+                Thread.interrupted();
+            }
+        }
+        
+        /**
+         * Write every table to the archive, one member after the other,
+         * followed by the manifest
+         */
+        private File runArchive() throws IOException, InterruptedException {
+            File part = new File(mDir.getPath() + ARCHIVE_PART_SUFFIX);
+            BundleArchive archive = new BundleArchive(part, mArchiveLevel);
+            boolean complete = false;
+            try {
+                synchronized (this) {
+                    for (String[] file : mArchiveFiles) {
+                        archive.writeText(file[0], file[1]);
+                    }
+                }
+                mSources = new PageSource[mTables.length];
+                mTableReaders = new PartitionedPageSource[mTables.length];
+                for (int i=0; i<mTables.length; i++) {
+                    for (int k=0; k<EXPORT_FORMATS; k++) {
+                        synchronized (this) {
+                            mPasses[i] = k;
+                            mDoneIds[i] = mFromIds[i];
+                        }
+                        ExportPipeline pipeline = new ExportPipeline(EXPORT_FORMAT_THREADS);
+                        pipeline.setCheckpointListener(this);
+                        addTable(pipeline, i, archive, k);
+                        try {
+                            pipeline.run();
+                        } finally {
+                            closeSources();
+                        }
+                    }
+                }
+                if (mCancelled) {
+                    throw new InterruptedException();
+                }
+                archive.writeText("manifest.txt", manifest(mBundleName, mNewDataOnly, mPreviousBundle,
+                                                           mTables, mFromIds, mToIds, mFilter));
+                archive.close();
+                complete = true;
+            } finally {
+                if (!complete) {
+                    archive.abandon();
+                }
+            }
+            if (!part.renameTo(mDir)) {
+                throw new IOException("could not rename " + part.getName());
+            }
+            Log.i(TAG, String.format("Archived %d bytes into %d", archive.getUncompressedLength(), mDir.length()));
+            recordWatermarks();
+            return mDir;
+        }
+        
+        /**
+         * Record the export, unless its filter left rows out, in which case
+         * the next export of new data still includes them
+         */
+        private void recordWatermarks() {
+            if (!mFilter.isSelective()) {
+                recordExport(mBundleName, mExportTime, mTables, mToIds);
+            }
+        }
+        
+        private File discard() {
+            Log.i(TAG, "Export to "+mBundleName+" cancelled");
+            closeSources();
+            if (isArchive()) {
+                new File(mDir.getPath() + ARCHIVE_PART_SUFFIX).delete();
+            } else {
+                deleteRecursively(mDir);
+            }
+            return null;
+        }
+        
+        /**
+         * Read table i from its checkpoint into its CSV and columnar files,
+         * or with an archive from the start into the member for the
+         * format-th of its files. A filtered table is read through its
+         * window, and resampled if the filter has a period; resampling
+         * resumed from a checkpoint starts afresh, so it may keep one
+         * sample per session closer than period to the last one before.
+         */
+        private void addTable(ExportPipeline pipeline, int i, BundleArchive archive, int format) throws IOException {
+            String table = mTables[i];
+            long from = mDoneIds[i];
+            PageSource source;
+            String[] columns;
+            double[] quanta;
+            if (mFilter.isSelective()) {
+                // recipe tables only live in the main database
+                mTableReaders[i] = new PartitionedPageSource(table, from, mToIds[i], mFilter.window());
+                source = mTableReaders[i];
+            } else if (isPartitioned(table)) {
+                mTableReaders[i] = new PartitionedPageSource(table, from, mToIds[i]);
+                source = mTableReaders[i];
+            } else {
+                source = null;
+            }
+            if (isPartitioned(table)) {
+                boolean accel = ACCEL_DATA_TABLE_NAME.equals(table);
+                columns = (accel ? AccelDataColumns.EXPORTED : LocDataColumns.EXPORTED);
+                double precision = (accel ? mAccelPrecision : mLocPrecision);
+                quanta = new double[] {precision, precision, precision, 1};
+            } else {
+                columns = recipeTableColumns(table);
+                if (source == null) {
+                    source = new TablePageSource("main." + quote(table), columns, from, mToIds[i]);
+                }
+                quanta = null;
+            }
+            if (mFilter.isThinned()) {
+                // session_id is the last value
+                source = new ResamplingPageSource(source, mFilter.every, mFilter.period, columns.length - 3);
+            }
+            mSources[i] = source;
+            
+            StringBuilder header = new StringBuilder();
+            for (int j=0; j<columns.length; j++) {
+                header.append(j > 0 ? ", " : "").append(columns[j]);
+            }
+            // the location CSV has long carried this header, whatever the
+            // column order
+            String csvHeader = (LOC_DATA_TABLE_NAME.equals(table)
+                                ? "rcvd_time, sample_time, longitude, latitude, altitude, session_id"
+                                : header.toString());
+            PageFormat[] formats = {new CsvFormat(csvHeader + "\n", columns.length - 3),
+                                    new ColumnarFormat(columns, quanta)};
+            if (archive != null) {
+                String name = exportFileName(table) + EXPORT_EXTENSIONS[format];
+                pipeline.addTable(source, archive.openMember(name), name, formats[format]);
+                return;
+            }
+            for (int k=0; k<EXPORT_FORMATS; k++) {
+                pipeline.addTable(source, new File(mDir, exportFileName(table) + EXPORT_EXTENSIONS[k]),
+                                  formats[k], mLengths[i][k]);
+            }
+        }
+        
+        private void closeSources() {
+            if (mSources == null) {
+                return;
+            }
+            for (int i=0; i<mSources.length; i++) {
+                if (mTableReaders[i] != null) {
+                    mTableReaders[i].close();
+                }
+                mSources[i] = null;
+                mTableReaders[i] = null;
+            }
+        }
+        
+        public synchronized void checkpoint(PageSource source, long lastId, long[] lengths, boolean complete) {
+            int i = 0;
+            while (mSources[i] != source) {
+                i++;
+            }
+            mLengths[i] = lengths;
+            if (complete) {
+                mDoneIds[i] = mToIds[i];
+                mComplete[i] = true;
+            } else {
+                mDoneIds[i] = lastId;
+            }
+            long now = System.currentTimeMillis();
+            if (!isArchive() && (complete || now - mLastSave >= EXPORT_CHECKPOINT_INTERVAL)) {
+                mLastSave = now;
+                try {
+                    save();
+                } catch (IOException e) {
+                    // an older checkpoint only means more to redo
+                    Log.w(TAG, "Could not save export checkpoint: "+e.getMessage());
+                }
+            }
+        }
+        
+        /**
+         * Write the job's state to the bundle's checkpoint file, replacing
+         * the previous one only once it is complete
+         */
+        synchronized void save() throws IOException {
+            Properties state = new Properties();
+            state.setProperty("bundle", mBundleName);
+            state.setProperty("mode", (mNewDataOnly ? "new_data" : "full"));
+            state.setProperty("previous", (mPreviousBundle != null ? mPreviousBundle : ""));
+            state.setProperty("export_time", Long.toString(mExportTime));
+            state.setProperty("accel_precision", Double.toString(mAccelPrecision));
+            state.setProperty("loc_precision", Double.toString(mLocPrecision));
+            state.setProperty("track_complete", Boolean.toString(mTrackComplete));
+            state.setProperty("filter.session", Long.toString(mFilter.session));
+            state.setProperty("filter.from_time", Long.toString(mFilter.fromTime));
+            state.setProperty("filter.to_time", Long.toString(mFilter.toTime));
+            state.setProperty("filter.every", Long.toString(mFilter.every));
+            state.setProperty("filter.period", Long.toString(mFilter.period));
+            StringBuilder tables = new StringBuilder();
+            for (int i=0; i<mTables.length; i++) {
+                String t = mTables[i];
+                tables.append(i > 0 ? "," : "").append(t);
+                state.setProperty(t + ".from_id", Long.toString(mFromIds[i]));
+                state.setProperty(t + ".to_id", Long.toString(mToIds[i]));
+                state.setProperty(t + ".done_id", Long.toString(mDoneIds[i]));
+                state.setProperty(t + ".complete", Boolean.toString(mComplete[i]));
+                StringBuilder lengths = new StringBuilder();
+                for (int k=0; k<mLengths[i].length; k++) {
+                    lengths.append(k > 0 ? "," : "").append(mLengths[i][k]);
+                }
+                state.setProperty(t + ".lengths", lengths.toString());
+            }
+            state.setProperty("tables", tables.toString());
+            
+            File tmp = new File(mDir, EXPORT_CHECKPOINT_FILE + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                state.store(out, "WaveLogger export in progress");
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            File file = new File(mDir, EXPORT_CHECKPOINT_FILE);
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("could not replace " + file);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Name of the files of an exported table, without extension
+     */
+    protected static String exportFileName(String table) {
+        if (ACCEL_DATA_TABLE_NAME.equals(table)) {
+            return "accelerometer";
+        } else if (LOC_DATA_TABLE_NAME.equals(table)) {
+            return "location";
+        }
+        return table;
+    }
+    
+    /**
+     * Start an export to a new bundle on the sd card, or return null if
+     * the bundle cannot be created. accelPrecision and locPrecision are the
+     * authorized output precisions, if known, and let the columnar files
+     * store values as integer multiples of them; pass 0 if unknown. If
+     * newDataOnly is set, only rows logged since the previous export are
+     * written. The rows to export are fixed here, so rows logged while the
+     * job runs are left for the next one.
+     */
+    public ExportJob newExport(double accelPrecision, double locPrecision, boolean newDataOnly) {
+        return createExport(accelPrecision, locPrecision, newDataOnly, ExportFilter.ALL, NO_ARCHIVE);
+    }
+    
+    /**
+     * Start an export of the rows selected by filter, as newExport. A
+     * filtered export is not recorded as one of the new data chain, so the
+     * next export of new data still includes the rows it left out.
+     */
+    public ExportJob newExport(double accelPrecision, double locPrecision, boolean newDataOnly, ExportFilter filter) {
+        return createExport(accelPrecision, locPrecision, newDataOnly, filter, NO_ARCHIVE);
+    }
+    
+    /**
+     * Start an export to a new bundle written as a single zip archive on
+     * the sd card, as newExport, its members deflated at level: 0 to 9,
+     * BundleArchive.FASTEST to SMALLEST, or BundleArchive.DEFAULT. The
+     * archive holds the files of a directory bundle other than the
+     * location track, whose tiles MapView reads by byte range.
+     */
+    public ExportJob newArchiveExport(double accelPrecision, double locPrecision, boolean newDataOnly,
+                                      ExportFilter filter, int level) {
+        return createExport(accelPrecision, locPrecision, newDataOnly, filter, level);
+    }
+    
+    private ExportJob createExport(double accelPrecision, double locPrecision, boolean newDataOnly,
+                                   ExportFilter filter, int archiveLevel) {
+        flush();
+        finishMigration();
+        
+        String previousBundle = getLastExportBundle();
+        String[] tables = exportTables();
+        long[] fromIds = new long[tables.length];
+        long[] toIds = new long[tables.length];
+        for (int i=0; i<tables.length; i++) {
+            fromIds[i] = (newDataOnly ? getExportWatermark(tables[i]) : 0);
+            toIds[i] = Math.max(fromIds[i], getMaxId(tables[i]));
+        }
+        
+        Date now = new Date();
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd 'at' HH-mm-ss", Locale.US);
+        String bundleName = exportBundlePrefix()+sdf.format(now);
+        
+        // check access to the sd card
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return null;
+        }
+        
+        if (archiveLevel != NO_ARCHIVE) {
+            File archive = new File(Environment.getExternalStorageDirectory(), bundleName + ARCHIVE_SUFFIX);
+            return new ExportJob(archive, bundleName, newDataOnly, previousBundle, now.getTime(),
+                                 accelPrecision, locPrecision, tables, fromIds, toIds, filter, archiveLevel);
+        }
+        
+        File parent = new File(Environment.getExternalStorageDirectory(), bundleName);
+        if (!(parent.mkdir() && parent.canWrite())) {
+            Log.w(TAG, "Could not create directory "+parent+" for WaveLogger database export");
+            return null;
+        }
+        ExportJob job = new ExportJob(parent, bundleName, newDataOnly, previousBundle, now.getTime(),
+                                      accelPrecision, locPrecision, tables, fromIds, toIds, filter, NO_ARCHIVE);
+        try {
+            job.save();
+        } catch (IOException ioe) {
+            Log.w(TAG, ioe);
+            deleteRecursively(parent);
+            return null;
+        }
+        return job;
+    }
+    
+    /**
+     * The most recent bundle left unfinished, as a job to resume, or null
+     * if there is none
+     */
+    public ExportJob findUnfinishedExport() {
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return null;
+        }
+        File[] dirs = Environment.getExternalStorageDirectory().listFiles();
+        if (dirs == null) {
+            return null;
+        }
+        // bundle names sort by date
+        File latest = null;
+        for (File dir : dirs) {
+            String name = dir.getName();
+            if (name.startsWith(exportBundlePrefix()) && name.endsWith(ARCHIVE_SUFFIX + ARCHIVE_PART_SUFFIX)) {
+                // an archive cannot be resumed
+                Log.i(TAG, "Deleting the unfinished archive "+name);
+                dir.delete();
+                continue;
+            }
+            if (dir.getName().startsWith(exportBundlePrefix()) && new File(dir, EXPORT_CHECKPOINT_FILE).isFile()
+                    && (latest == null || dir.getName().compareTo(latest.getName()) > 0)) {
+                latest = dir;
+            }
+        }
+        if (latest == null) {
+            return null;
+        }
+        try {
+            return loadExport(latest);
+        } catch (IOException ioe) {
+            Log.w(TAG, "Could not resume the export to "+latest.getName()+": "+ioe.getMessage());
+            return null;
+        } catch (RuntimeException e) {
+            // a malformed checkpoint
+            Log.w(TAG, "Could not resume the export to "+latest.getName()+": "+e);
+            return null;
+        }
+    }
+    
+    private ExportJob loadExport(File dir) throws IOException {
+        Properties state = new Properties();
+        FileInputStream in = new FileInputStream(new File(dir, EXPORT_CHECKPOINT_FILE));
+        try {
+            state.load(in);
+        } finally {
+            in.close();
+        }
+        String[] tables = state.getProperty("tables").split(",");
+        long[] fromIds = new long[tables.length];
+        long[] toIds = new long[tables.length];
+        for (int i=0; i<tables.length; i++) {
+            fromIds[i] = Long.parseLong(state.getProperty(tables[i] + ".from_id"));
+            toIds[i] = Long.parseLong(state.getProperty(tables[i] + ".to_id"));
+        }
+        String previous = state.getProperty("previous");
+        // bundles started before filters export everything
+        ExportFilter filter = ExportFilter.ALL;
+        if (state.getProperty("filter.session") != null) {
+            filter = new ExportFilter(Long.parseLong(state.getProperty("filter.session")),
+                                      Long.parseLong(state.getProperty("filter.from_time")),
+                                      Long.parseLong(state.getProperty("filter.to_time")),
+                                      Long.parseLong(state.getProperty("filter.every")),
+                                      Long.parseLong(state.getProperty("filter.period")));
+        }
+        ExportJob job = new ExportJob(dir, state.getProperty("bundle"),
+                                      "new_data".equals(state.getProperty("mode")),
+                                      (previous.length() > 0 ? previous : null),
+                                      Long.parseLong(state.getProperty("export_time")),
+                                      Double.parseDouble(state.getProperty("accel_precision")),
+                                      Double.parseDouble(state.getProperty("loc_precision")),
+                                      tables, fromIds, toIds, filter, NO_ARCHIVE);
+        job.mTrackComplete = Boolean.valueOf(state.getProperty("track_complete")).booleanValue();
+        for (int i=0; i<tables.length; i++) {
+            String[] lengths = state.getProperty(tables[i] + ".lengths").split(",");
+            for (int k=0; k<EXPORT_FORMATS; k++) {
+                job.mLengths[i][k] = Long.parseLong(lengths[k]);
+            }
+            job.mDoneIds[i] = Long.parseLong(state.getProperty(tables[i] + ".done_id"));
+            job.mComplete[i] = Boolean.valueOf(state.getProperty(tables[i] + ".complete")).booleanValue();
+        }
+        return job;
+    }
+    
+    protected String exportBundlePrefix() {
+        return mContext.getPackageName()+" Database Export ";
+    }
+    
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        f.delete();
+    }
+    
+    /**
+     * Write the location rows with _ids in (fromId, toId] selected by
+     * filter to dir as tiles of simplified track, see TrackTiler, for
+     * web/MapView.html to load piecemeal. This reads the location rows a
+     * second time, in order, which is cheap next to the accelerometer
+     * export.
+     */
+    protected void writeTrack(File dir, long fromId, long toId, ExportFilter filter) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdir()) {
+            throw new IOException("could not create " + dir);
+        }
+        PartitionedPageSource source = (filter.isSelective()
+                                        ? new PartitionedPageSource(LOC_DATA_TABLE_NAME, fromId, toId, filter.window())
+                                        : new PartitionedPageSource(LOC_DATA_TABLE_NAME, fromId, toId));
+        PageSource fixes = source;
+        if (filter.isThinned()) {
+            fixes = new ResamplingPageSource(source, filter.every, filter.period, 3);
+        }
+        TrackTiler tiler = new TrackTiler(dir, TrackTiler.DEFAULT_TILE_DURATION);
+        boolean complete = false;
+        try {
+            SamplePage page = new SamplePage(ExportPipeline.DEFAULT_PAGE_SIZE, source.width());
+            for (fixes.next(page); page.count > 0; fixes.next(page)) {
+                // latitude, longitude, altitude, session_id
+                tiler.addPage(page, 0, 1, 3);
+            }
+            complete = true;
+        } finally {
+            source.close();
+            if (complete) {
+                tiler.finish();
+            } else {
+                tiler.close();
+            }
+        }
+    }
+    
+    /**
+     * Export watermarks
+     * 
+     * Every successful export records, per data table, the highest _id it
+     * included. An export of new data only starts from those watermarks, so
+     * its cost scales with the data logged since the previous export. Ids
+     * keep increasing across emptyDatabase, so watermarks stay valid.
+     */
+    public synchronized long getExportWatermark(String table) {
+        Cursor c = database.rawQuery("SELECT MAX(" + ExportWatermarkColumns.HIGH_ID + ") FROM "
+                                     + EXPORT_WATERMARKS_TABLE_NAME + " WHERE "
+                                     + ExportWatermarkColumns.TABLE_NAME + " = ?",
+                                     new String[] {table});
+        try {
+            return (c.moveToFirst() ? c.getLong(0) : 0);
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+     * Name of the most recent export bundle, or null if there was none
+     */
+    public synchronized String getLastExportBundle() {
+        Cursor c = database.query(EXPORT_WATERMARKS_TABLE_NAME,
+                                  new String[] {ExportWatermarkColumns.BUNDLE_NAME},
+                                  null, null, null, null,
+                                  ExportWatermarkColumns._ID + " DESC", "1");
+        try {
+            return (c.moveToFirst() ? c.getString(0) : null);
+        } finally {
+            c.close();
+        }
+    }
+    
+    protected synchronized void recordExport(String bundleName, long exportTime, String[] tables, long[] highIds) {
+        database.beginTransaction();
+        try {
+            for (int i=0; i<tables.length; i++) {
+                database.execSQL("INSERT INTO " + EXPORT_WATERMARKS_TABLE_NAME + " ("
+                                 + ExportWatermarkColumns.BUNDLE_NAME + ", "
+                                 + ExportWatermarkColumns.TABLE_NAME + ", "
+                                 + ExportWatermarkColumns.HIGH_ID + ", "
+                                 + ExportWatermarkColumns.EXPORT_TIME + ") VALUES (?, ?, ?, ?)",
+                                 new Object[] {bundleName, tables[i],
+                                               Long.valueOf(highIds[i]), Long.valueOf(exportTime)});
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+    
+    protected synchronized long getMaxId(String table) {
+        if (!ACCEL_DATA_TABLE_NAME.equals(table) && !LOC_DATA_TABLE_NAME.equals(table)) {
+            // tables of other recipes are not partitioned
+            return queryLong("SELECT MAX(_id) FROM main." + quote(table), null);
+        }
+        String lastId = (ACCEL_DATA_TABLE_NAME.equals(table) ? PartitionColumns.ACCEL_LAST_ID : PartitionColumns.LOC_LAST_ID);
+        return Math.max(getMainMaxId(table),
+                        queryLong("SELECT MAX(" + lastId + ") FROM " + PARTITIONS_TABLE_NAME, null));
+    }
+    
+    /**
+     * Highest id of the rows logged to the main database before partitioning
+     */
+    private long getMainMaxId(String table) {
+        long maxId = queryLong("SELECT MAX(_id) FROM main." + table, null);
+        if (ACCEL_DATA_TABLE_NAME.equals(table)) {
+            maxId = Math.max(maxId, queryLong("SELECT MAX(" + AccelBlockColumns.LAST_ID + ") FROM main."
+                                              + ACCEL_BLOCKS_TABLE_NAME, null));
+        }
+        return maxId;
+    }
+    
+    /**
+     * Tables included in an export: the DATA_TABLE_NAMES, then the tables of
+     * other recipes
+     */
+    protected String[] exportTables() {
+        ArrayList<String> tables = listRecipeTables();
+        for (int i=DATA_TABLE_NAMES.length-1; i>=0; i--) {
+            tables.add(0, DATA_TABLE_NAMES[i]);
+        }
+        return tables.toArray(new String[tables.size()]);
+    }
+    
+    /**
+     * rcvd_time, sample_time, the value columns and session_id of a recipe
+     * table
+     */
+    private String[] recipeTableColumns(String table) {
+        ArrayList<String> columns = tableColumns("main", table);
+        columns.remove(AccelDataColumns._ID);
+        columns.remove(AccelDataColumns.SESSION_ID);
+        columns.add(AccelDataColumns.SESSION_ID);
+        return columns.toArray(new String[columns.size()]);
+    }
+    
+    /**
+     * Describe a bundle in its manifest.txt, chaining it to the previous
+     * export so a series of new data exports can be reassembled in order
+     */
+    protected String manifest(String bundleName, boolean newDataOnly, String previousBundle,
+                              String[] tables, long[] fromIds, long[] toIds, ExportFilter filter) {
+        StringBuilder out = new StringBuilder();
+        out.append("bundle=" + bundleName + "\n");
+        out.append("mode=" + (newDataOnly ? "new_data" : "full") + "\n");
+        out.append("previous=" + (previousBundle != null ? previousBundle : "") + "\n");
+        if (filter.isSelective()) {
+            // not part of the new data chain, see newExport
+            out.append("filter.session=" + (filter.session != ALL_SESSIONS ? Long.toString(filter.session) : "") + "\n");
+            out.append("filter.from_time=" + filter.fromTime + "\n");
+            out.append("filter.to_time=" + filter.toTime + "\n");
+            out.append("filter.every=" + filter.every + "\n");
+            out.append("filter.period=" + filter.period + "\n");
+        }
+        for (int i=0; i<tables.length; i++) {
+            // _id ranges are (from, to]
+            out.append(tables[i] + ".from_id=" + fromIds[i] + "\n");
+            out.append(tables[i] + ".to_id=" + toIds[i] + "\n");
+        }
+        for (Session session : listSessions()) {
+            out.append("session." + session.id + "=" + session.name + "\n");
+        }
+        return out.toString();
+    }
+    
+    public File writeContentsToSdCard() {
+        return writeContentsToSdCard(0, 0, false);
+    }
+    
+    /**
+     * Export to a new bundle on the sd card on the calling thread, see
+     * newExport, returning the bundle or null on failure
+     */
+    public File writeContentsToSdCard(double accelPrecision, double locPrecision, boolean newDataOnly) {
+        ExportJob job = newExport(accelPrecision, locPrecision, newDataOnly);
+        if (job == null) {
+            return null;
+        }
+        try {
+            return job.run();
+        } catch (IOException ioe) {
+            Log.w(TAG, ioe);
+            return null;
+        }
+    }
+    
+    /**
+     * Database snapshot
+     * 
+     * Copy the database files as they are to a new folder on the sd card,
+     * for analysis off the phone, returning the folder, or null on
+     * failure. No row is read, let alone formatted, so this costs about as
+     * much as a sequential copy of the files, and the copies open with any
+     * sqlite. Logging goes on throughout.
+     * 
+     * The commits of this process are held back (see COMMIT_LOCK) just
+     * long enough to find the partition being written and, in WAL mode, to
+     * checkpoint it and the main database. From then on, in WAL mode,
+     * commits go on but checkpoints wait, and as only checkpoints write
+     * to a database file in WAL mode, the files copied hold the state at
+     * the checkpoint. If a reader kept the checkpoint from completing, the
+     * log is copied after the file and replayed into the copy, giving the
+     * state at a commit the log copy holds whole. In rollback mode commits
+     * write to the files themselves, so they wait until the main database
+     * and the partition being written are copied. Older partitions are no
+     * longer written and are copied without holding anything up.
+     * 
+     * The catalog in the copy of the main database therefore lists the
+     * partitions copied. As after a crash, its ids may trail those of the
+     * partition being written, and are brought up to date when it is next
+     * attached.
+     */
+    public synchronized File writeSnapshot() {
+        flush();
+        
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return null;
+        }
+        Date now = new Date();
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd 'at' HH-mm-ss", Locale.US);
+        File parent = new File(Environment.getExternalStorageDirectory(),
+                               mContext.getPackageName()+" Database Snapshot "+sdf.format(now));
+        if (!(parent.mkdir() && parent.canWrite())) {
+            Log.w(TAG, "Could not create directory "+parent+" for WaveLogger database snapshot");
+            return null;
+        }
+        
+        // no index is being built once the count is raised
+        COMMIT_LOCK.writeLock().lock();
+        SNAPSHOTS.incrementAndGet();
+        COMMIT_LOCK.writeLock().unlock();
+        try {
+            boolean wal = "wal".equalsIgnoreCase(queryString("PRAGMA main.journal_mode"));
+            ArrayList<File> copies = new ArrayList<File>();
+            ArrayList<Partition> partitions = null;
+            while (partitions == null) {
+                ArrayList<Partition> listed = listPartitions();
+                Partition current = (listed.isEmpty() ? null : listed.get(listed.size() - 1));
+                partitions = copyCurrent(parent, current, wal, copies);
+            }
+            for (int i=0; i<partitions.size() - 1; i++) {
+                File f = partitionFile(partitions.get(i));
+                try {
+                    copies.add(copyDatabaseFile(f, parent, true));
+                } catch (FileNotFoundException e) {
+                    // dropped since, listed in the manifest below
+                }
+            }
+            for (File copy : copies) {
+                replayLog(copy);
+            }
+            
+            StringBuilder manifest = new StringBuilder();
+            manifest.append("snapshot_time=" + now.getTime() + "\n");
+            manifest.append("journal_mode=" + (wal ? "wal" : "rollback") + "\n");
+            for (File copy : copies) {
+                manifest.append("file." + copy.getName() + "=" + copy.length() + "\n");
+                File log = new File(copy.getPath() + WAL_SUFFIX);
+                if (log.exists()) {
+                    // left to be replayed on opening
+                    manifest.append("file." + log.getName() + "=" + log.length() + "\n");
+                }
+            }
+            for (Partition p : partitions) {
+                if (!new File(parent, partitionFile(p).getName()).exists()) {
+                    // dropped by the retention caps since
+                    manifest.append("dropped." + p.name + "=" + p.startTime + "," + p.endTime + "\n");
+                }
+            }
+            Writer out = new OutputStreamWriter(new FileOutputStream(new File(parent, SNAPSHOT_MANIFEST_FILE)), MANIFEST_ENC);
+            try {
+                out.write(manifest.toString());
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, ioe);
+            deleteRecursively(parent);
+            return null;
+        } catch (SQLException e) {
+            Log.w(TAG, "SQLException during snapshot", e);
+            deleteRecursively(parent);
+            return null;
+        } finally {
+            SNAPSHOTS.decrementAndGet();
+        }
+        return parent;
+    }
+    
+    /**
+     * Copy the main database and current, the partition being written or
+     * null if there is none, to dir, see writeSnapshot. Returns the
+     * catalog as of the copy, or null, having copied nothing, if another
+     * partition was started since current was found.
+     */
+    private ArrayList<Partition> copyCurrent(File dir, Partition current, boolean wal,
+                                             ArrayList<File> copies) throws IOException {
+        File main = mContext.getDatabasePath(DATABASE_NAME);
+        File file = (current != null ? partitionFile(current) : null);
+        // kept attached through the copy, so that the writer detaching it
+        // never checkpoints it as its last connection
+        String schema = (current != null ? attachForSnapshot(current) : null);
+        try {
+            boolean mainComplete;
+            boolean partitionComplete;
+            ArrayList<Partition> partitions;
+            COMMIT_LOCK.writeLock().lock();
+            try {
+                partitions = listPartitions();
+                Partition last = (partitions.isEmpty() ? null : partitions.get(partitions.size() - 1));
+                if (last == null ? current != null : (current == null || last.id != current.id)) {
+                    return null;
+                }
+                if (!wal) {
+                    copies.add(copyDatabaseFile(main, dir, false));
+                    if (schema != null) {
+                        copies.add(copyDatabaseFile(file, dir, false));
+                    }
+                    return partitions;
+                }
+                mainComplete = checkpoint("main");
+                partitionComplete = (schema == null || checkpoint(schema));
+                CHECKPOINT_HOLDS.incrementAndGet();
+            } finally {
+                COMMIT_LOCK.writeLock().unlock();
+            }
+            
+            try {
+                copies.add(copyDatabaseFile(main, dir, !mainComplete));
+                if (schema != null) {
+                    copies.add(copyDatabaseFile(file, dir, !partitionComplete));
+                }
+            } finally {
+                CHECKPOINT_HOLDS.decrementAndGet();
+            }
+            return partitions;
+        } finally {
+            if (schema != null) {
+                database.execSQL("DETACH DATABASE " + schema);
+            }
+        }
+    }
+    
+    /**
+     * Attach p for a snapshot, returning its schema name, or null if it
+     * was dropped
+     */
+    private String attachForSnapshot(Partition p) {
+        File f = partitionFile(p);
+        if (!f.exists()) {
+            return null;
+        }
+        String schema = SNAPSHOT_SCHEMA_PREFIX + p.id;
+        database.execSQL("ATTACH DATABASE ? AS " + schema, new Object[] {f.getPath()});
+        return schema;
+    }
+    
+    /**
+     * Checkpoint the write-ahead log of schema, returning whether all of it
+     * is now in the database file. A reader of an earlier commit keeps the
+     * checkpoint short of the end of the log. Versions of sqlite that do
+     * not report how far it got count as incomplete.
+     */
+    private boolean checkpoint(String schema) {
+        Cursor c = database.rawQuery("PRAGMA " + schema + ".wal_checkpoint", null);
+        try {
+            // busy, frames in the log, frames checkpointed
+            return (c.moveToFirst() && c.getColumnCount() >= 3
+                    && c.getInt(0) == 0 && c.getLong(1) == c.getLong(2));
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+     * Copy database file f to dir, then with withLog its write-ahead log if
+     * it has one, in that order. Returns the copy.
+     */
+    private static File copyDatabaseFile(File f, File dir, boolean withLog) throws IOException {
+        File copy = new File(dir, f.getName());
+        copyFile(f, copy);
+        File log = new File(f.getPath() + WAL_SUFFIX);
+        if (withLog && log.exists()) {
+            copyFile(log, new File(dir, log.getName()));
+        }
+        return copy;
+    }
+    
+    /**
+     * Copy from as it is now to a new file to, returning the bytes copied.
+     * A file that grows meanwhile is copied to its length at the start.
+     */
+    private static long copyFile(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                FileChannel src = in.getChannel();
+                FileChannel dst = out.getChannel();
+                long length = src.size();
+                long done = 0;
+                while (done < length) {
+                    long n = src.transferTo(done, length - done, dst);
+                    if (n <= 0) {
+                        // cut short meanwhile, as a log restarted after
+                        // its last checkpoint
+                        break;
+                    }
+                    done += n;
+                }
+                out.getFD().sync();
+                return done;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Replay the log copied with copy into it and delete the log, leaving
+     * a single file that older versions of sqlite open too. The copy is
+     * left with its log, which sqlite replays on opening, if this fails.
+     */
+    private static void replayLog(File copy) {
+        if (!new File(copy.getPath() + WAL_SUFFIX).exists()) {
+            return;
+        }
+        try {
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(copy.getPath(), null,
+                                                            SQLiteDatabase.OPEN_READWRITE
+                                                            | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            try {
+                // leaving WAL mode checkpoints the log and deletes it
+                Cursor c = db.rawQuery("PRAGMA journal_mode = DELETE", null);
+                try {
+                    c.moveToFirst();
+                } finally {
+                    c.close();
+                }
+            } finally {
+                db.close();
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Could not replay the log of "+copy.getName(), e);
+        }
+        new File(copy.getPath() + "-shm").delete();
+    }
+    
+    /**
+     * Sessions
+     * 
+     * Record the start of a logging session, returning the id its samples
+     * are tagged with
+     */
+    public synchronized long openSession(String name, String apiKey) {
+        database.execSQL("INSERT INTO " + SESSIONS_TABLE_NAME + " (" + SessionColumns.NAME + ", "
+                         + SessionColumns.API_KEY + ", " + SessionColumns.START_TIME + ") VALUES (?, ?, ?)",
+                         new Object[] {name, apiKey, Long.valueOf(System.currentTimeMillis())});
+        return queryLong("SELECT last_insert_rowid()", null);
+    }
+    
+    public synchronized void closeSession(long session) {
+        database.execSQL("UPDATE " + SESSIONS_TABLE_NAME + " SET " + SessionColumns.END_TIME + " = ? WHERE "
+                         + SessionColumns._ID + " = ?",
+                         new Object[] {Long.valueOf(System.currentTimeMillis()), Long.valueOf(session)});
+    }
+    
+    /**
+     * Every session, oldest first
+     */
+    public synchronized ArrayList<Session> listSessions() {
+        ArrayList<Session> sessions = new ArrayList<Session>();
+        Cursor c = database.rawQuery("SELECT " + SessionColumns._ID + ", " + SessionColumns.NAME + ", "
+                                     + SessionColumns.API_KEY + ", " + SessionColumns.START_TIME + ", "
+                                     + SessionColumns.END_TIME + " FROM " + SESSIONS_TABLE_NAME
+                                     + " ORDER BY " + SessionColumns._ID, null);
+        try {
+            while (c.moveToNext()) {
+                Session session = new Session();
+                session.id = c.getLong(0);
+                session.name = c.getString(1);
+                session.apiKey = c.getString(2);
+                session.startTime = c.getLong(3);
+                session.endTime = (c.isNull(4) ? 0 : c.getLong(4));
+                sessions.add(session);
+            }
+        } finally {
+            c.close();
+        }
+        return sessions;
+    }
+    
+    /**
+     * Session comparison
+     * 
+     * Pair the accelerometer and location samples of sessionA with the
+     * nearest of sessionB in sample_time, within tolerance ms, as when two
+     * sessions log one recipe at different granularities; see
+     * TimeAlignedJoin. The pairs of each table and a report of the
+     * differences are written to a new folder on the sd card, which is
+     * returned, or null on failure. Both sessions are read a page at a
+     * time, so day-long logs compare in constant memory.
+     */
+    public File compareSessions(long sessionA, long sessionB, long tolerance) {
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return null;
+        }
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd 'at' HH-mm-ss", Locale.US);
+        File parent = new File(Environment.getExternalStorageDirectory(),
+                               mContext.getPackageName()+" Comparison "+sdf.format(new Date()));
+        if (!(parent.mkdir() && parent.canWrite())) {
+            Log.w(TAG, "Could not create directory "+parent+" for WaveLogger session comparison");
+            return null;
+        }
+        
+        StringBuilder report = new StringBuilder();
+        report.append("Session ").append(sessionA).append(" (a) against session ").append(sessionB).append(" (b)\n");
+        try {
+            for (String table : DATA_TABLE_NAMES) {
+                String[] names = (ACCEL_DATA_TABLE_NAME.equals(table)
+                                  ? new String[] {"x", "y", "z"}
+                                  : new String[] {"latitude", "longitude", "altitude"});
+                PartitionedPageSource a = querySession(table, sessionA);
+                PartitionedPageSource b = querySession(table, sessionB);
+                FileOutputStream out = new FileOutputStream(new File(parent, table+"_aligned.csv"));
+                try {
+                    TimeAlignedJoin join = new TimeAlignedJoin(a, b, names, tolerance);
+                    join.run(out.getChannel());
+                    report.append('\n').append(table).append('\n').append(join.report());
+                } finally {
+                    out.close();
+                    a.close();
+                    b.close();
+                }
+            }
+            
+            Writer out = new OutputStreamWriter(new FileOutputStream(new File(parent, "comparison.txt")), MANIFEST_ENC);
+            try {
+                out.write(report.toString());
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, ioe);
+            return null;
+        }
+        return parent;
+    }
+    
+    /**
+     * Delete all logged data. Partitions are dropped as whole files, and
+     * counted from their id ranges; only rows logged before partitioning
+     * are deleted row by row.
+     */
+    public synchronized long emptyDatabase() {
+        flush();
+        
+        long accel_count = 0;
+        long loc_count = 0;
+        for (Partition p : listPartitions()) {
+            accel_count += p.accelLastId - p.accelFirstId;
+            loc_count += p.locLastId - p.locFirstId;
+            dropPartition(p);
+        }
+        
+        accel_count += database.delete(ACCEL_DATA_TABLE_NAME, "1", null);
+        accel_count += queryLong("SELECT SUM(" + AccelBlockColumns.SAMPLE_COUNT + ") FROM "
+                                 + ACCEL_BLOCKS_TABLE_NAME, null);
+        database.delete(ACCEL_BLOCKS_TABLE_NAME, "1", null);
+        loc_count += database.delete(LOC_DATA_TABLE_NAME, "1", null);
+        
+        // other recipes keep their tables, whose AUTOINCREMENT ids keep
+        // export watermarks valid
+        long other_count = 0;
+        for (String table : listRecipeTables()) {
+            other_count += database.delete(quote(table), "1", null);
+        }
+        
+        // version 1 rows not yet migrated go too
+        if (mHasLegacyData) {
+            String legacyAccel = ACCEL_DATA_TABLE_NAME + LEGACY_SUFFIX;
+            String legacyLoc = LOC_DATA_TABLE_NAME + LEGACY_SUFFIX;
+            if (tableExists(legacyAccel)) {
+                accel_count += database.delete(legacyAccel, "1", null);
+                database.execSQL("DROP TABLE " + legacyAccel);
+            }
+            if (tableExists(legacyLoc)) {
+                loc_count += database.delete(legacyLoc, "1", null);
+                database.execSQL("DROP TABLE " + legacyLoc);
+            }
+            mHasLegacyData = false;
+        }
+        
+        Log.d(TAG, String.format("emptyDatabase deleted %d accelerometer, %d location & %d other records",
+                                 accel_count, loc_count, other_count));
+        
+        return (accel_count + loc_count + other_count);
+    }
+    
+    public synchronized void closeDatabase() {
+        finishSummaries();
+        flush();
+        setBatching(1, 0);
+        setAccelBlockSize(1);
+        closePartition();
+        for (PendingRows rows : mRows) {
+            if (rows != null) {
+                rows.close();
+            }
+        }
+        mPlans = new RecipePlan[0];
+        mRows = new PendingRows[0];
+        mBlocks = new PendingBlock[0];
+        mPyramids = new SummaryPyramid[0];
+        database.close();
+    }
+    
+    /**
+     * SQLiteOpenHelper subclass
+     */
+    static class DatabaseHelper extends SQLiteOpenHelper {
+        
+        DatabaseHelper(Context context) {
+            // calls the super constructor, requesting the default cursor factory.
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+        
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            createDataTables(db, "main");
+            createExportTables(db);
+            createBlockTables(db, "main");
+            createPartitionTables(db);
+            createRecipeTables(db);
+            createSessionTables(db);
+            createTimeIndexes(db, "main");
+        }
+        
+        private void createSessionTables(SQLiteDatabase db) {
+            
+            db.execSQL("CREATE TABLE " + SESSIONS_TABLE_NAME + " ("
+                    + SessionColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + SessionColumns.NAME + " TEXT NOT NULL,"
+                    + SessionColumns.API_KEY + " TEXT NOT NULL,"
+                    + SessionColumns.START_TIME + " INTEGER NOT NULL,"
+                    + SessionColumns.END_TIME + " INTEGER"
+                    + ");");
+        }
+        
+        private void createRecipeTables(SQLiteDatabase db) {
+            
+            db.execSQL("CREATE TABLE " + RECIPES_TABLE_NAME + " ("
+                    + RecipeColumns._ID + " INTEGER PRIMARY KEY,"
+                    + RecipeColumns.RECIPE_ID + " TEXT UNIQUE NOT NULL,"
+                    + RecipeColumns.TABLE_NAME + " TEXT UNIQUE NOT NULL"
+                    + ");");
+        }
+        
+        private void createPartitionTables(SQLiteDatabase db) {
+            
+            db.execSQL("CREATE TABLE " + PARTITIONS_TABLE_NAME + " ("
+                    + PartitionColumns._ID + " INTEGER PRIMARY KEY,"
+                    + PartitionColumns.NAME + " TEXT UNIQUE NOT NULL,"
+                    + PartitionColumns.START_TIME + " INTEGER NOT NULL,"
+                    + PartitionColumns.END_TIME + " INTEGER NOT NULL,"
+                    + PartitionColumns.ACCEL_FIRST_ID + " INTEGER NOT NULL,"
+                    + PartitionColumns.ACCEL_LAST_ID + " INTEGER NOT NULL,"
+                    + PartitionColumns.LOC_FIRST_ID + " INTEGER NOT NULL,"
+                    + PartitionColumns.LOC_LAST_ID + " INTEGER NOT NULL"
+                    + ");");
+        }
+        
+        /**
+         * Create the block table in the main database or an attached
+         * partition
+         */
+        static void createBlockTables(SQLiteDatabase db, String schema) {
+            
+            db.execSQL("CREATE TABLE " + schema + "." + ACCEL_BLOCKS_TABLE_NAME + " ("
+                    + AccelBlockColumns._ID + " INTEGER PRIMARY KEY,"
+                    + AccelBlockColumns.LAST_ID + " INTEGER NOT NULL,"
+                    + AccelBlockColumns.START_TIME + " INTEGER NOT NULL,"
+                    + AccelBlockColumns.END_TIME + " INTEGER NOT NULL,"
+                    + AccelBlockColumns.SAMPLE_COUNT + " INTEGER NOT NULL,"
+                    + AccelBlockColumns.DATA + " BLOB NOT NULL,"
+                    + AccelBlockColumns.SESSION_ID + " INTEGER NOT NULL DEFAULT 0"
+                    + ");");
+        }
+        
+        /**
+         * Index the data and block tables of the main database or an
+         * attached partition on time, and on session then time. Every index
+         * also holds the _id, and those of accel_blocks the block's time
+         * bounds and last_id, so queryRange finds the _ids of a window from
+         * the index alone.
+         */
+        static void createTimeIndexes(SQLiteDatabase db, String schema) {
+            
+            for (String table : DATA_TABLE_NAMES) {
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + "." + table + "_time ON " + table + " ("
+                        + AccelDataColumns.RCVD_TIMESTAMP + ");");
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + "." + table + "_session ON " + table + " ("
+                        + AccelDataColumns.SESSION_ID + "," + AccelDataColumns.RCVD_TIMESTAMP + ");");
+            }
+            
+            String blockColumns = AccelBlockColumns.END_TIME + "," + AccelBlockColumns.START_TIME + ","
+                                  + AccelBlockColumns.LAST_ID;
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + "." + ACCEL_BLOCKS_TABLE_NAME + "_time ON "
+                    + ACCEL_BLOCKS_TABLE_NAME + " (" + blockColumns + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + "." + ACCEL_BLOCKS_TABLE_NAME + "_session ON "
+                    + ACCEL_BLOCKS_TABLE_NAME + " (" + AccelBlockColumns.SESSION_ID + "," + blockColumns + ");");
+        }
+        
+        /**
+         * Create the summary tables of an attached partition, if it does not
+         * have them yet, indexed for reading one resolution over a span of
+         * time, of one session or all
+         */
+        static void createSummaryTables(SQLiteDatabase db, String schema) {
+            
+            createSummaryTable(db, schema, ACCEL_SUMMARY_TABLE_NAME,
+                               new String[] {AccelDataColumns.X, AccelDataColumns.Y, AccelDataColumns.Z});
+            createSummaryTable(db, schema, LOC_SUMMARY_TABLE_NAME,
+                               new String[] {LocDataColumns.LATITUDE, LocDataColumns.LONGITUDE, LocDataColumns.ALTITUDE});
+        }
+        
+        private static void createSummaryTable(SQLiteDatabase db, String schema, String table, String[] valueColumns) {
+            StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS " + schema + "." + table + " ("
+                    + SummaryColumns._ID + " INTEGER PRIMARY KEY,"
+                    + SummaryColumns.SESSION_ID + " INTEGER NOT NULL,"
+                    + SummaryColumns.RESOLUTION + " INTEGER NOT NULL,"
+                    + SummaryColumns.START_TIME + " INTEGER NOT NULL,"
+                    + SummaryColumns.SAMPLE_COUNT + " INTEGER NOT NULL");
+            for (String c : valueColumns) {
+                sql.append(",").append(c).append(SummaryColumns.MIN_SUFFIX).append(" REAL")
+                   .append(",").append(c).append(SummaryColumns.MAX_SUFFIX).append(" REAL")
+                   .append(",").append(c).append(SummaryColumns.MEAN_SUFFIX).append(" REAL");
+            }
+            db.execSQL(sql.append(");").toString());
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + "." + table + "_time ON " + table + " ("
+                    + SummaryColumns.RESOLUTION + "," + SummaryColumns.START_TIME + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + "." + table + "_session ON " + table + " ("
+                    + SummaryColumns.SESSION_ID + "," + SummaryColumns.RESOLUTION + "," + SummaryColumns.START_TIME + ");");
+        }
+        
+        /**
+         * The same indexes for the table of another recipe
+         */
+        static void createRecipeIndexes(SQLiteDatabase db, String table) {
+            
+            db.execSQL("CREATE INDEX IF NOT EXISTS main." + quote(table + "_time") + " ON " + quote(table) + " ("
+                    + AccelDataColumns.RCVD_TIMESTAMP + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS main." + quote(table + "_session") + " ON " + quote(table) + " ("
+                    + AccelDataColumns.SESSION_ID + "," + AccelDataColumns.RCVD_TIMESTAMP + ");");
+        }
+        
+        /**
+         * Add the session_id column to a table created before version 7,
+         * in the main database or an attached partition
+         */
+        static void addSessionColumn(SQLiteDatabase db, String schema, String table) {
+            db.execSQL("ALTER TABLE " + schema + "." + quote(table) + " ADD COLUMN "
+                       + AccelDataColumns.SESSION_ID + " INTEGER NOT NULL DEFAULT 0");
+        }
+        
+        private void createExportTables(SQLiteDatabase db) {
+            
+            db.execSQL("CREATE TABLE " + EXPORT_WATERMARKS_TABLE_NAME + " ("
+                    + ExportWatermarkColumns._ID + " INTEGER PRIMARY KEY,"
+                    + ExportWatermarkColumns.BUNDLE_NAME + " TEXT NOT NULL,"
+                    + ExportWatermarkColumns.TABLE_NAME + " TEXT NOT NULL,"
+                    + ExportWatermarkColumns.HIGH_ID + " INTEGER NOT NULL,"
+                    + ExportWatermarkColumns.EXPORT_TIME + " INTEGER NOT NULL"
+                    + ");");
+        }
+        
+        /**
+         * Create the current data tables, in the main database or an attached
+         * partition. AUTOINCREMENT keeps new ids above those of rows still
+         * waiting to be migrated from version 1.
+         */
+        static void createDataTables(SQLiteDatabase db, String schema) {
+            
+            db.execSQL("CREATE TABLE " + schema + "." + ACCEL_DATA_TABLE_NAME + " ("
+                    + AccelDataColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + AccelDataColumns.RCVD_TIMESTAMP + " INTEGER NOT NULL,"
+                    + AccelDataColumns.SAMPLE_TIME + " INTEGER,"
+                    + AccelDataColumns.X + " REAL,"
+                    + AccelDataColumns.Y + " REAL,"
+                    + AccelDataColumns.Z + " REAL,"
+                    + AccelDataColumns.SESSION_ID + " INTEGER NOT NULL DEFAULT 0"
+                    + ");");
+            
+            db.execSQL("CREATE TABLE " + schema + "." + LOC_DATA_TABLE_NAME + " ("
+                    + LocDataColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + LocDataColumns.RCVD_TIMESTAMP + " INTEGER NOT NULL,"
+                    + LocDataColumns.SAMPLE_TIME + " INTEGER,"
+                    + LocDataColumns.LATITUDE + " REAL,"
+                    + LocDataColumns.LONGITUDE + " REAL,"
+                    + LocDataColumns.ALTITUDE + " REAL,"
+                    + LocDataColumns.SESSION_ID + " INTEGER NOT NULL DEFAULT 0"
+                    + ");");
         }
         
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             
-            // Logs that the database is being upgraded
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-
-            // Kills the table and existing data
-            db.execSQL("DROP TABLE IF EXISTS "+ACCEL_DATA_TABLE_NAME);
-            db.execSQL("DROP TABLE IF EXISTS "+LOC_DATA_TABLE_NAME);
-
-            // Recreates the database with a new version
-            onCreate(db);
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            
+            if (oldVersion < 2) {
+                // keep the version 1 tables aside; DbHelper.migrateLegacyRows
+                // moves their rows over in chunks after the upgrade
+                for (String table : DATA_TABLE_NAMES) {
+                    db.execSQL("ALTER TABLE " + table + " RENAME TO " + table + LEGACY_SUFFIX);
+                }
+                createDataTables(db, "main");
+                for (String table : DATA_TABLE_NAMES) {
+                    db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + table
+                               + "', IFNULL(MAX(_id), 0) FROM " + table + LEGACY_SUFFIX);
+                }
+            }
+            
+            if (oldVersion < 3) {
+                createExportTables(db);
+            }
+            
+            if (oldVersion < 4) {
+                createBlockTables(db, "main");
+            }
+            
+            if (oldVersion < 5) {
+                // rows logged so far stay in the main database
+                createPartitionTables(db);
+            }
+            
+            if (oldVersion < 6) {
+                createRecipeTables(db);
+            }
+            
+            if (oldVersion < 7) {
+                // tables created by the steps above already have session_id;
+                // partitions gain it as they are next attached
+                if (oldVersion >= 2) {
+                    addSessionColumn(db, "main", ACCEL_DATA_TABLE_NAME);
+                    addSessionColumn(db, "main", LOC_DATA_TABLE_NAME);
+                }
+                if (oldVersion >= 4) {
+                    addSessionColumn(db, "main", ACCEL_BLOCKS_TABLE_NAME);
+                }
+                Cursor c = db.rawQuery("SELECT " + RecipeColumns.TABLE_NAME + " FROM " + RECIPES_TABLE_NAME, null);
+                try {
+                    while (c.moveToNext()) {
+                        addSessionColumn(db, "main", c.getString(0));
+                    }
+                } finally {
+                    c.close();
+                }
+                createSessionTables(db);
+            }
+            
+            // version 8 only adds indexes, built later by the writer, see
+            // indexNextTable
         }
     }
 }
\ No newline at end of file
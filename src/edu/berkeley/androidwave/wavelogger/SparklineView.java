@@ -0,0 +1,131 @@
+//
+//  SparklineView.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger;
+
+import edu.berkeley.androidwave.wavelogger.core.RecipePlan;
+import edu.berkeley.androidwave.wavelogger.core.SampleRing;
+import edu.berkeley.androidwave.wavelogger.service.WaveLoggerService;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.View;
+
+/**
+ * SparklineView
+ *
+ * Draws the latest samples of one recipe as a line per value, each scaled
+ * to its own range over the samples shown, under the recipe's name and
+ * current sample rate. update copies the samples out of the recipe's
+ * SampleRing into a reused snapshot, so redrawing allocates next to
+ * nothing and never touches the logging path.
+ */
+public class SparklineView extends View {
+    
+    private static final int[] COLORS = {Color.RED, Color.GREEN, Color.CYAN, Color.YELLOW, Color.WHITE};
+    
+    // the rate is averaged over this many ms
+    private static final long RATE_WINDOW = 1000;
+    
+    private static final float TEXT_SIZE = 12;
+    
+    private final SampleRing.Snapshot mSnapshot;
+    private final Paint[] mLinePaints;
+    private final Paint mTextPaint;
+    private final float mDensity;
+    
+    // line segments of one value, four coordinates each
+    private final float[] mPoints;
+    
+    private String mLabel;
+    private int mWidth;
+    private double mRate;
+    
+    public SparklineView(Context context) {
+        super(context);
+        mSnapshot = new SampleRing.Snapshot(WaveLoggerService.PREVIEW_SIZE, RecipePlan.MAX_VALUES);
+        mPoints = new float[4 * WaveLoggerService.PREVIEW_SIZE];
+        mDensity = context.getResources().getDisplayMetrics().density;
+        
+        mLinePaints = new Paint[COLORS.length];
+        for (int i=0; i<COLORS.length; i++) {
+            mLinePaints[i] = new Paint(Paint.ANTI_ALIAS_FLAG);
+            mLinePaints[i].setColor(COLORS[i]);
+            mLinePaints[i].setStrokeWidth(mDensity);
+        }
+        mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mTextPaint.setColor(Color.LTGRAY);
+        mTextPaint.setTextSize(TEXT_SIZE * mDensity);
+        mLabel = "";
+    }
+    
+    public void setLabel(String label) {
+        mLabel = label;
+    }
+    
+    /**
+     * Take the latest samples of ring and redraw with them
+     */
+    public void update(SampleRing ring) {
+        ring.read(mSnapshot);
+        mWidth = Math.min(ring.width(), RecipePlan.MAX_VALUES);
+        mRate = mSnapshot.rate(System.currentTimeMillis(), RATE_WINDOW);
+        invalidate();
+    }
+    
+    @Override
+    protected void onDraw(Canvas canvas) {
+        float textHeight = TEXT_SIZE * mDensity;
+        canvas.drawText(String.format("%s  %.1f Hz", mLabel, mRate), 0, textHeight, mTextPaint);
+        
+        int count = mSnapshot.count;
+        if (count < 2) {
+            return;
+        }
+        float top = textHeight + 2 * mDensity;
+        float height = getHeight() - top - mDensity;
+        float step = (float)getWidth() / (mSnapshot.times.length - 1);
+        // newest sample at the right edge
+        float left = getWidth() - (count - 1) * step;
+        
+        for (int v=0; v<mWidth; v++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i=0; i<count; i++) {
+                double value = mSnapshot.value(i, v);
+                // NaN fails both
+                if (value < min) {
+                    min = value;
+                }
+                if (value > max) {
+                    max = value;
+                }
+            }
+            if (min > max) {
+                continue;
+            }
+            double scale = (max > min ? height / (max - min) : 0);
+            float offset = (max > min ? 0 : height / 2);
+            
+            int n = 0;
+            for (int i=1; i<count; i++) {
+                double a = mSnapshot.value(i - 1, v);
+                double b = mSnapshot.value(i, v);
+                if (a != a || b != b) {
+                    continue;
+                }
+                mPoints[n++] = left + (i - 1) * step;
+                mPoints[n++] = top + offset + (float)((max - a) * scale);
+                mPoints[n++] = left + i * step;
+                mPoints[n++] = top + offset + (float)((max - b) * scale);
+            }
+            canvas.drawLines(mPoints, 0, n, mLinePaints[v % mLinePaints.length]);
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package edu.berkeley.androidwave.wavelogger;
 
 import edu.berkeley.androidwave.waveclient.*;
+import edu.berkeley.androidwave.wavelogger.core.IngestStats;
+import edu.berkeley.androidwave.wavelogger.core.SampleRing;
+import edu.berkeley.androidwave.wavelogger.export.BundleArchive;
+import edu.berkeley.androidwave.wavelogger.service.ExportService;
 import edu.berkeley.androidwave.wavelogger.service.WaveLoggerService;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Context;
@@ -12,6 +17,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
@@ -21,29 +27,33 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.util.ArrayList;
 
 public class WaveLogger extends Activity {
     
     private static final String TAG = WaveLogger.class.getSimpleName();
-
-    private static final String CSV_ENC = "UTF-8";
-
+    
     private static final String ACTION_WAVE_SERVICE = "edu.berkeley.androidwave.intent.action.WAVE_SERVICE";
     private static final String ACTION_DID_AUTHORIZE = "edu.berkeley.androidwave.intent.action.DID_AUTHORIZE";
     private static final String ACTION_DID_DENY = "edu.berkeley.androidwave.intent.action.DID_DENY";
     private static final int REQUEST_CODE_AUTH = 1;
-
+    
+    // how often the ingest stats on screen are refreshed while logging
+    private static final long STATS_REFRESH_INTERVAL = 1000;
+    
+    // previews are redrawn at most this often, and are this tall, in dip
+    private static final long PREVIEW_FRAME_INTERVAL = 100;
+    private static final int PREVIEW_HEIGHT = 64;
+    
+    // how often the progress of a background export is refreshed
+    private static final long EXPORT_REFRESH_INTERVAL = 500;
+    
     public static final String ACCEL_RECIPE_ID = "edu.berkeley.waverecipe.passthrough.AccelerometerPassThrough";
     public static final String LOC_RECIPE_ID = "edu.berkeley.waverecipe.passthrough.LocationPassThrough";
-
+    
     // we use the package name, so clones on the WaveLogger (with different package names)
     // can simultaneously connect to the WaveService
     private String API_KEY;
@@ -51,13 +61,25 @@ public class WaveLogger extends Activity {
     private IWaveServicePublic mWaveService;
     private boolean mBound;
     
+    private WaveLoggerService mLoggerService;
+    private Handler mHandler;
+    
+    private ExportService mExportService;
+    private ProgressDialog mExportDialog;
+    // export jobs the service had finished when last checked
+    private int mExportsFinished;
+    
     protected DbHelper databaseHelper;
-
+    
     protected Button accelButton;
     protected Button locButton;
     protected Button startButton;
     protected Button stopButton;
     protected TextView messageTextView;
+    protected LinearLayout previewLayout;
+    
+    // one preview per recipe index of the logging service
+    private final ArrayList<SparklineView> mPreviews = new ArrayList<SparklineView>();
     
     // TODO: present a dialog when the connection to the service is lost
     
@@ -76,6 +98,10 @@ public class WaveLogger extends Activity {
         locButton = (Button) findViewById(R.id.loc_button);
         startButton = (Button) findViewById(R.id.start_button);
         stopButton = (Button) findViewById(R.id.stop_button);
+        messageTextView = (TextView) findViewById(R.id.message_textview);
+        previewLayout = (LinearLayout) findViewById(R.id.preview_layout);
+        
+        mHandler = new Handler();
         
         // configure UI state
         accelButton.setEnabled(false);
@@ -100,10 +126,36 @@ public class WaveLogger extends Activity {
         }
     }
     
+    @Override
+    protected void onStart() {
+        super.onStart();
+        
+        // follow the logging service while it runs, without starting it
+        Intent i = new Intent(this, WaveLoggerService.class);
+        bindService(i, mLoggerConnection, 0);
+        
+        // and any export in the background
+        bindService(new Intent(this, ExportService.class), mExportConnection, 0);
+    }
+    
     @Override
     protected void onStop() {
         super.onStop();
         
+        mHandler.removeCallbacks(mRefreshStats);
+        mHandler.removeCallbacks(mRefreshPreviews);
+        unbindService(mLoggerConnection);
+        mLoggerService = null;
+        
+        // the export goes on, and its progress is shown again on return
+        mHandler.removeCallbacks(mRefreshExport);
+        if (mExportDialog != null) {
+            mExportDialog.dismiss();
+            mExportDialog = null;
+        }
+        unbindService(mExportConnection);
+        mExportService = null;
+        
         databaseHelper.closeDatabase();
         
         if (mBound) {
@@ -170,6 +222,70 @@ public class WaveLogger extends Activity {
         checkAuthorizations();
     }
     
+    private ServiceConnection mLoggerConnection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName className, IBinder service) {
+            mLoggerService = ((WaveLoggerService.LocalBinder)service).getService();
+            previewLayout.removeAllViews();
+            mPreviews.clear();
+            mHandler.post(mRefreshStats);
+            mHandler.post(mRefreshPreviews);
+        }
+        
+        public void onServiceDisconnected(ComponentName className) {
+            mLoggerService = null;
+        }
+    };
+    
+    /**
+     * Show the logging service's ingest stats, for as long as it is bound
+     */
+    private Runnable mRefreshStats = new Runnable() {
+        public void run() {
+            WaveLoggerService service = mLoggerService;
+            if (service == null) {
+                return;
+            }
+            IngestStats stats = service.getIngestStats();
+            if (stats != null) {
+                messageTextView.setText(stats.report());
+            }
+            mHandler.postDelayed(this, STATS_REFRESH_INTERVAL);
+        }
+    };
+    
+    /**
+     * Redraw the previews of the logging service's recipes from their
+     * SampleRings, adding one for each new recipe, for as long as the
+     * service is bound. Reading the rings takes no lock, so this has no
+     * effect on logging however often it runs.
+     */
+    private Runnable mRefreshPreviews = new Runnable() {
+        public void run() {
+            WaveLoggerService service = mLoggerService;
+            if (service == null) {
+                return;
+            }
+            int count = service.getRecipeCount();
+            while (mPreviews.size() < count) {
+                SparklineView preview = new SparklineView(WaveLogger.this);
+                float density = getResources().getDisplayMetrics().density;
+                previewLayout.addView(preview, new LinearLayout.LayoutParams(LinearLayout.LayoutParams.FILL_PARENT,
+                                                                             (int)(PREVIEW_HEIGHT * density)));
+                mPreviews.add(preview);
+            }
+            for (int i=0; i<count; i++) {
+                SampleRing ring = service.getPreview(i);
+                String name = service.getRecipeName(i);
+                if (ring != null && name != null) {
+                    // the index may have passed to a recipe of a later session
+                    mPreviews.get(i).setLabel(name);
+                    mPreviews.get(i).update(ring);
+                }
+            }
+            mHandler.postDelayed(this, PREVIEW_FRAME_INTERVAL);
+        }
+    };
+    
     /**
      * OnClickListener(s)
      */
@@ -178,7 +294,7 @@ public class WaveLogger extends Activity {
             try {
                 // get an auth intent from the service
                 Intent i = mWaveService.getAuthorizationIntent(ACCEL_RECIPE_ID, API_KEY);
-            
+                
                 // then run it looking for a result
                 try {
                     startActivityForResult(i, REQUEST_CODE_AUTH);
@@ -197,7 +313,7 @@ public class WaveLogger extends Activity {
             try {
                 // get an auth intent from the service
                 Intent i = mWaveService.getAuthorizationIntent(LOC_RECIPE_ID, API_KEY);
-            
+                
                 // then run it looking for a result
                 try {
                     startActivityForResult(i, REQUEST_CODE_AUTH);
@@ -260,7 +376,17 @@ public class WaveLogger extends Activity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch  (item.getItemId()) {
             case R.id.export_database:
-                return exportDatabase();
+                return exportDatabase(false);
+            case R.id.export_new_data:
+                return exportDatabase(true);
+            case R.id.export_archive:
+                return exportArchive();
+            case R.id.export_session:
+                return exportSession();
+            case R.id.export_snapshot:
+                return exportSnapshot();
+            case R.id.compare_sessions:
+                return compareSessions();
             case R.id.empty_database:
                 return emptyDatabase();
             default:
@@ -268,49 +394,276 @@ public class WaveLogger extends Activity {
         }
     }
     
-    protected boolean exportDatabase() {
-        File f = databaseHelper.writeContentsToSdCard();
+    /**
+     * Export everything, or with newDataOnly only what was logged since the
+     * previous export
+     */
+    protected boolean exportDatabase(boolean newDataOnly) {
+        return exportDatabase(newDataOnly, false, 0, DbHelper.ExportFilter.ALL);
+    }
+    
+    /**
+     * Export everything to a single archive, asking how hard to compress
+     */
+    protected boolean exportArchive() {
+        final String[] names = {"Fastest", "Balanced", "Smallest"};
+        final int[] levels = {BundleArchive.FASTEST, BundleArchive.DEFAULT, BundleArchive.SMALLEST};
+        AlertDialog.Builder builder = new AlertDialog.Builder(WaveLogger.this);
+        builder.setTitle("Compression")
+               .setItems(names, new DialogInterface.OnClickListener() {
+                   public void onClick(DialogInterface dialog, int which) {
+                       exportDatabase(false, true, levels[which], DbHelper.ExportFilter.ALL);
+                   }
+               });
+        builder.show();
+        return true;
+    }
+    
+    /**
+     * Export one session, asking which and at what rate
+     */
+    protected boolean exportSession() {
+        final ArrayList<DbHelper.Session> sessions = databaseHelper.listSessions();
+        if (sessions.size() == 0) {
+            Toast.makeText(this, "No sessions have been logged", Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        // most recent first
+        String[] names = new String[sessions.size()];
+        for (int i=0; i<names.length; i++) {
+            names[i] = sessions.get(names.length - 1 - i).name;
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(WaveLogger.this);
+        builder.setTitle("Session")
+               .setItems(names, new DialogInterface.OnClickListener() {
+                   public void onClick(DialogInterface dialog, int which) {
+                       exportSession(sessions.get(sessions.size() - 1 - which));
+                   }
+               });
+        builder.show();
+        return true;
+    }
+    
+    private void exportSession(final DbHelper.Session session) {
+        // one in every, or at most one per period ms
+        final String[] names = {"Every sample", "1 in 10 samples", "1 sample per second", "1 sample per minute"};
+        final long[] every = {1, 10, 1, 1};
+        final long[] period = {0, 0, 1000, 60 * 1000};
+        AlertDialog.Builder builder = new AlertDialog.Builder(WaveLogger.this);
+        builder.setTitle(session.name)
+               .setItems(names, new DialogInterface.OnClickListener() {
+                   public void onClick(DialogInterface dialog, int which) {
+                       long to = (session.endTime > 0 ? session.endTime + 1 : Long.MAX_VALUE);
+                       exportDatabase(false, false, 0, new DbHelper.ExportFilter(session.id, session.startTime, to,
+                                                                                 every[which], period[which]));
+                   }
+               });
+        builder.show();
+    }
+    
+    /**
+     * Export as exportDatabase the rows selected by filter, to a directory
+     * of files or to a single archive deflated at archiveLevel
+     */
+    protected boolean exportDatabase(boolean newDataOnly, boolean archive, int archiveLevel,
+                                     DbHelper.ExportFilter filter) {
+        // the authorized precisions let the columnar export store values
+        // as integer multiples
+        double accelPrecision = 0;
+        double locPrecision = 0;
+        try {
+            if (mWaveService.isAuthorized(API_KEY, ACCEL_RECIPE_ID)) {
+                accelPrecision = mWaveService.retrieveAuthorizationInfo(API_KEY, ACCEL_RECIPE_ID).outputMaxPrecision;
+            }
+            if (mWaveService.isAuthorized(API_KEY, LOC_RECIPE_ID)) {
+                locPrecision = mWaveService.retrieveAuthorizationInfo(API_KEY, LOC_RECIPE_ID).outputMaxPrecision;
+            }
+        } catch (RemoteException e) {
+            Log.d(TAG, "lost connection to the service");
+        }
         
-        // add granularity data to f, which should be a directory
-        if (f != null && f.isDirectory()) {
-            File authFile = new File(f, "granularity.txt");
-            try {
-                Writer out = new OutputStreamWriter(new FileOutputStream(authFile), CSV_ENC);
-                try {
-                    if (mWaveService.isAuthorized(API_KEY, ACCEL_RECIPE_ID)) {
-                        WaveRecipeAuthorizationInfo authInfo = mWaveService.retrieveAuthorizationInfo(API_KEY, ACCEL_RECIPE_ID);
-                        out.write(String.format("Accelerometer %f Hz, %f units\n", authInfo.outputMaxRate, authInfo.outputMaxPrecision));
-                    }
-                    if (mWaveService.isAuthorized(API_KEY, LOC_RECIPE_ID)) {
-                        WaveRecipeAuthorizationInfo authInfo = mWaveService.retrieveAuthorizationInfo(API_KEY, LOC_RECIPE_ID);
-                        out.write(String.format("Location %f Hz, %f units\n", authInfo.outputMaxRate, authInfo.outputMaxPrecision));
+        // granularity data for the bundle
+        StringBuilder granularity = new StringBuilder();
+        try {
+            if (mWaveService.isAuthorized(API_KEY, ACCEL_RECIPE_ID)) {
+                WaveRecipeAuthorizationInfo authInfo = mWaveService.retrieveAuthorizationInfo(API_KEY, ACCEL_RECIPE_ID);
+                granularity.append(String.format("Accelerometer %f Hz, %f units\n", authInfo.outputMaxRate, authInfo.outputMaxPrecision));
+            }
+            if (mWaveService.isAuthorized(API_KEY, LOC_RECIPE_ID)) {
+                WaveRecipeAuthorizationInfo authInfo = mWaveService.retrieveAuthorizationInfo(API_KEY, LOC_RECIPE_ID);
+                granularity.append(String.format("Location %f Hz, %f units\n", authInfo.outputMaxRate, authInfo.outputMaxPrecision));
+            }
+        } catch (RemoteException e) {
+            Log.d(TAG, "lost connection to the service");
+        }
+        
+        // and the granularity observed in the current logging run, per
+        // recipe of each session, with its ingest stats
+        WaveLoggerService loggerService = mLoggerService;
+        IngestStats stats = (loggerService != null ? loggerService.getIngestStats() : null);
+        if (stats != null) {
+            granularity.append("\nObserved\n");
+            granularity.append(stats.granularityReport());
+        }
+        String ingest = (stats != null ? stats.report() : "Not logging\n");
+        
+        // the export runs in the background, see ExportService
+        Intent i = new Intent(this, ExportService.class);
+        i.putExtra(ExportService.ACCEL_PRECISION_EXTRA, accelPrecision);
+        i.putExtra(ExportService.LOC_PRECISION_EXTRA, locPrecision);
+        i.putExtra(ExportService.NEW_DATA_ONLY_EXTRA, newDataOnly);
+        if (archive) {
+            i.putExtra(ExportService.ARCHIVE_LEVEL_EXTRA, archiveLevel);
+        }
+        if (filter.isSelective()) {
+            i.putExtra(ExportService.SESSION_EXTRA, filter.session);
+            i.putExtra(ExportService.FROM_TIME_EXTRA, filter.fromTime);
+            i.putExtra(ExportService.TO_TIME_EXTRA, filter.toTime);
+            i.putExtra(ExportService.EVERY_EXTRA, filter.every);
+            i.putExtra(ExportService.PERIOD_EXTRA, filter.period);
+        }
+        i.putExtra(ExportService.FILE_NAMES_EXTRA, new String[] {"granularity.txt", "ingest_stats.txt"});
+        i.putExtra(ExportService.FILE_CONTENTS_EXTRA, new String[] {granularity.toString(), ingest});
+        ExportService service = mExportService;
+        mExportsFinished = (service != null ? service.getFinishedCount() : 0);
+        if (startService(i) == null) {
+            Toast.makeText(this, "Could not start the export", Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        showExportProgress();
+        return true;
+    }
+    
+    /**
+     * Copy the database files as they are, see DbHelper.writeSnapshot
+     */
+    protected boolean exportSnapshot() {
+        Intent i = new Intent(this, ExportService.class);
+        i.putExtra(ExportService.SNAPSHOT_EXTRA, true);
+        ExportService service = mExportService;
+        mExportsFinished = (service != null ? service.getFinishedCount() : 0);
+        if (startService(i) == null) {
+            Toast.makeText(this, "Could not start the snapshot", Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        showExportProgress();
+        return true;
+    }
+    
+    private ServiceConnection mExportConnection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName className, IBinder service) {
+            mExportService = ((ExportService.LocalBinder)service).getService();
+            // unless waiting on an export just requested
+            if (mExportDialog == null) {
+                mExportsFinished = mExportService.getFinishedCount();
+            }
+            if (mExportService.getCurrentJob() != null) {
+                showExportProgress();
+            }
+        }
+        
+        public void onServiceDisconnected(ComponentName className) {
+            mExportService = null;
+        }
+    };
+    
+    private void showExportProgress() {
+        if (mExportDialog == null) {
+            mExportDialog = new ProgressDialog(this);
+            mExportDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mExportDialog.setMax(100);
+            mExportDialog.setMessage("Exporting");
+            mExportDialog.setCancelable(false);
+            mExportDialog.setButton("Cancel", new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int id) {
+                    ExportService service = mExportService;
+                    DbHelper.ExportJob job = (service != null ? service.getCurrentJob() : null);
+                    if (job != null) {
+                        job.cancel();
                     }
-                } catch (RemoteException e) {
-                    Log.d(TAG, "lost connection to the service");
-                } finally {
-                    out.close();
+                    mExportDialog = null;
                 }
-            } catch (IOException ioe) {
-                Log.w(TAG, ioe);
+            });
+        }
+        if (!mExportDialog.isShowing()) {
+            mExportDialog.setProgress(0);
+            mExportDialog.show();
+        }
+        mHandler.removeCallbacks(mRefreshExport);
+        mHandler.post(mRefreshExport);
+    }
+    
+    /**
+     * Follow the export service's job until it finishes, then report how
+     * it did
+     */
+    private Runnable mRefreshExport = new Runnable() {
+        public void run() {
+            ExportService service = mExportService;
+            if (mExportDialog == null) {
+                return;
+            }
+            if (service == null) {
+                // not bound yet
+                mHandler.postDelayed(this, EXPORT_REFRESH_INTERVAL);
+                return;
+            }
+            DbHelper.ExportJob job = service.getCurrentJob();
+            if (job != null) {
+                mExportDialog.setMessage("Exporting to "+job.getBundleName());
+                mExportDialog.setProgress((int)(100 * job.getProgress()));
             }
+            if (service.getFinishedCount() == mExportsFinished || job != null) {
+                mHandler.postDelayed(this, EXPORT_REFRESH_INTERVAL);
+                return;
+            }
+            mExportsFinished = service.getFinishedCount();
+            mExportDialog.dismiss();
+            mExportDialog = null;
+            
+            AlertDialog.Builder builder = new AlertDialog.Builder(WaveLogger.this);
+            builder.setMessage(service.getLastResult())
+                   .setCancelable(true)
+                   .setPositiveButton("OK", new DialogInterface.OnClickListener() {
+                       public void onClick(DialogInterface dialog, int id) {
+                           // nothing
+                       }
+                   });
+            builder.show();
+        }
+    };
+    
+    /**
+     * Compare the two most recent sessions, such as two granularities of
+     * one recipe logged side by side. The comparison reads both sessions
+     * whole, so it is queued with the export service like an export.
+     */
+    protected boolean compareSessions() {
+        ArrayList<DbHelper.Session> sessions = databaseHelper.listSessions();
+        if (sessions.size() < 2) {
+            AlertDialog.Builder builder = new AlertDialog.Builder(WaveLogger.this);
+            builder.setMessage("Log at least two sessions to compare them")
+                   .setCancelable(true)
+                   .setPositiveButton("OK", new DialogInterface.OnClickListener() {
+                       public void onClick(DialogInterface dialog, int id) {
+                           // nothing
+                       }
+                   });
+            builder.show();
+            return true;
         }
         
-        String message;
-        if (f != null) {
-            message = "Data has been exported to "+f.getName();
-        } else {
-            message = "Errors were encountered during export";
+        Intent i = new Intent(this, ExportService.class);
+        i.putExtra(ExportService.COMPARE_SESSION_A_EXTRA, sessions.get(sessions.size() - 2).id);
+        i.putExtra(ExportService.COMPARE_SESSION_B_EXTRA, sessions.get(sessions.size() - 1).id);
+        ExportService service = mExportService;
+        mExportsFinished = (service != null ? service.getFinishedCount() : 0);
+        if (startService(i) == null) {
+            Toast.makeText(this, "Could not start the comparison", Toast.LENGTH_SHORT).show();
+            return false;
         }
-        AlertDialog.Builder builder = new AlertDialog.Builder(WaveLogger.this);
-        builder.setMessage(message)
-               .setCancelable(true)
-               .setPositiveButton("OK", new DialogInterface.OnClickListener() {
-                   public void onClick(DialogInterface dialog, int id) {
-                       // nothing
-                   }
-               });
-        AlertDialog alert = builder.show();
-        return (f != null);
+        showExportProgress();
+        return true;
     }
     
     protected boolean emptyDatabase() {
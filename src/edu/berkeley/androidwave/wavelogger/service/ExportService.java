@@ -0,0 +1,308 @@
+//
+//  ExportService.java
+//  WaveLogger
+//
+//  Copyright 2011 University of California, Berkeley. All rights reserved.
+//
+
+package edu.berkeley.androidwave.wavelogger.service;
+
+import edu.berkeley.androidwave.wavelogger.DbHelper;
+import edu.berkeley.androidwave.wavelogger.export.BundleArchive;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExportService
+ *
+ * Runs database exports on a background thread, one at a time, so that
+ * large exports never hold up the Activity. Each start intent queues an
+ * export, to a directory bundle or, with ARCHIVE_LEVEL_EXTRA, to a single
+ * archive, or with SNAPSHOT_EXTRA a copy of the database files, or with
+ * COMPARE_SESSION_A_EXTRA a comparison of two sessions. When the
+ * service is created it first resumes the latest export left unfinished,
+ * e.g. by the process being killed, from its checkpoints; see
+ * DbHelper.ExportJob. Activities bind to follow the running job and to
+ * cancel it. The service stops itself once its queue is empty.
+ */
+public class ExportService extends Service {
+    
+    private static final String TAG = ExportService.class.getSimpleName();
+    
+    public static final String NEW_DATA_ONLY_EXTRA = "new_data_only";
+    public static final String ACCEL_PRECISION_EXTRA = "accel_precision";
+    public static final String LOC_PRECISION_EXTRA = "loc_precision";
+    
+    // if set, the bundle is written as one zip archive deflated at this
+    // level, see DbHelper.newArchiveExport
+    public static final String ARCHIVE_LEVEL_EXTRA = "archive_level";
+    
+    // if set, the database files are copied as they are instead, see
+    // DbHelper.writeSnapshot; the other extras are ignored
+    public static final String SNAPSHOT_EXTRA = "snapshot";
+    
+    // if set, along with COMPARE_SESSION_B_EXTRA, the two sessions are
+    // compared instead, pairing samples up to COMPARE_TOLERANCE_EXTRA ms
+    // apart, see DbHelper.compareSessions; the other extras are ignored
+    public static final String COMPARE_SESSION_A_EXTRA = "compare_session_a";
+    public static final String COMPARE_SESSION_B_EXTRA = "compare_session_b";
+    public static final String COMPARE_TOLERANCE_EXTRA = "compare_tolerance_ms";
+    public static final long DEFAULT_COMPARE_TOLERANCE = 50;
+    
+    // optional selection of the rows exported, see DbHelper.ExportFilter:
+    // a session id, a [from_time, to_time) range of rcvd_time in ms, and
+    // of each session one sample in every, in logging order, and at most
+    // one sample per period_ms
+    public static final String SESSION_EXTRA = "session";
+    public static final String FROM_TIME_EXTRA = "from_time";
+    public static final String TO_TIME_EXTRA = "to_time";
+    public static final String EVERY_EXTRA = "every";
+    public static final String PERIOD_EXTRA = "period_ms";
+    
+    // text files added to the bundle as it is started, such as reports of
+    // the logging run at the time of the request; names and contents in
+    // the same order
+    public static final String FILE_NAMES_EXTRA = "file_names";
+    public static final String FILE_CONTENTS_EXTRA = "file_contents";
+    
+    // how long onDestroy waits for the running task to stop before closing
+    // the database
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+    
+    private DbHelper mDbHelper;
+    private ExecutorService mWorker;
+    
+    // tasks queued and not yet done, and the latest start id
+    private int mPending;
+    private int mLastStartId;
+    
+    private volatile DbHelper.ExportJob mJob;
+    private volatile String mLastResult;
+    private volatile int mFinished;
+    
+    private final IBinder mBinder = new LocalBinder();
+    
+    @Override
+    public void onCreate() {
+        mDbHelper = new DbHelper(this);
+        mWorker = Executors.newSingleThreadExecutor();
+        
+        queue(new Runnable() {
+            public void run() {
+                DbHelper.ExportJob job = mDbHelper.findUnfinishedExport();
+                if (job != null) {
+                    Log.i(TAG, "Resuming the export to "+job.getBundleName());
+                    runJob(job);
+                }
+            }
+        });
+    }
+    
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        synchronized(this) {
+            mLastStartId = startId;
+        }
+        // restarted after being killed otherwise, with nothing new to do
+        if (intent != null) {
+            queue(new Runnable() {
+                public void run() {
+                    export(intent);
+                }
+            });
+        }
+        // resumed in onCreate if killed
+        return START_STICKY;
+    }
+    
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+    
+    /**
+     * Binder for activities in this process. Bind without BIND_AUTO_CREATE
+     * to follow exports already requested.
+     */
+    public class LocalBinder extends Binder {
+        public ExportService getService() {
+            return ExportService.this;
+        }
+    }
+    
+    /**
+     * The job being run, or null between jobs
+     */
+    public DbHelper.ExportJob getCurrentJob() {
+        return mJob;
+    }
+    
+    /**
+     * Number of jobs finished, successfully or not, since the service
+     * started
+     */
+    public int getFinishedCount() {
+        return mFinished;
+    }
+    
+    /**
+     * Message describing how the last job finished, or null if none has
+     */
+    public String getLastResult() {
+        return mLastResult;
+    }
+    
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy");
+        // a job still running stops here and resumes when next started
+        DbHelper.ExportJob job = mJob;
+        if (job != null) {
+            Log.i(TAG, "Stopping the export to "+job.getBundleName()+" until the next start");
+            job.stop();
+        }
+        mWorker.shutdownNow();
+        
+        // the task and the job's reader threads use the database until
+        // they have stopped
+        boolean stopped = false;
+        try {
+            stopped = mWorker.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (stopped) {
+            mDbHelper.closeDatabase();
+        } else {
+            Log.w(TAG, "Export task still running, leaving the database open");
+        }
+    }
+    
+    private synchronized void queue(final Runnable task) {
+        mPending++;
+        mWorker.execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // such as an SQLException, or the database closed
+                    // under a task that outlived onDestroy
+                    Log.w(TAG, "Export task failed", e);
+                    finish("Errors were encountered during export: "+e.getMessage());
+                } finally {
+                    done();
+                }
+            }
+        });
+    }
+    
+    private synchronized void done() {
+        if (--mPending == 0) {
+            // ignored if another start came in meanwhile
+            stopSelf(mLastStartId);
+        }
+    }
+    
+    private void export(Intent intent) {
+        if (intent.getBooleanExtra(SNAPSHOT_EXTRA, false)) {
+            File f = mDbHelper.writeSnapshot();
+            finish(f != null ? "A snapshot of the database has been written to "+f.getName()
+                             : "Errors were encountered during the snapshot");
+            return;
+        }
+        if (intent.hasExtra(COMPARE_SESSION_A_EXTRA)) {
+            compare(intent.getLongExtra(COMPARE_SESSION_A_EXTRA, 0),
+                    intent.getLongExtra(COMPARE_SESSION_B_EXTRA, 0),
+                    intent.getLongExtra(COMPARE_TOLERANCE_EXTRA, DEFAULT_COMPARE_TOLERANCE));
+            return;
+        }
+        
+        double accelPrecision = intent.getDoubleExtra(ACCEL_PRECISION_EXTRA, 0);
+        double locPrecision = intent.getDoubleExtra(LOC_PRECISION_EXTRA, 0);
+        boolean newDataOnly = intent.getBooleanExtra(NEW_DATA_ONLY_EXTRA, false);
+        DbHelper.ExportFilter filter;
+        try {
+            filter = new DbHelper.ExportFilter(intent.getLongExtra(SESSION_EXTRA, DbHelper.ALL_SESSIONS),
+                                               intent.getLongExtra(FROM_TIME_EXTRA, 0),
+                                               intent.getLongExtra(TO_TIME_EXTRA, Long.MAX_VALUE),
+                                               intent.getLongExtra(EVERY_EXTRA, 1),
+                                               intent.getLongExtra(PERIOD_EXTRA, 0));
+        } catch (IllegalArgumentException e) {
+            finish("Invalid export filter: "+e.getMessage());
+            return;
+        }
+        DbHelper.ExportJob job;
+        if (intent.hasExtra(ARCHIVE_LEVEL_EXTRA)) {
+            job = mDbHelper.newArchiveExport(accelPrecision, locPrecision, newDataOnly, filter,
+                                             intent.getIntExtra(ARCHIVE_LEVEL_EXTRA, BundleArchive.DEFAULT));
+        } else {
+            job = mDbHelper.newExport(accelPrecision, locPrecision, newDataOnly, filter);
+        }
+        if (job == null) {
+            finish("Errors were encountered during export");
+            return;
+        }
+        
+        String[] names = intent.getStringArrayExtra(FILE_NAMES_EXTRA);
+        String[] contents = intent.getStringArrayExtra(FILE_CONTENTS_EXTRA);
+        if (names != null && contents != null) {
+            for (int i=0; i<names.length && i<contents.length; i++) {
+                try {
+                    job.writeFile(names[i], contents[i]);
+                } catch (IOException ioe) {
+                    Log.w(TAG, ioe);
+                }
+            }
+        }
+        runJob(job);
+    }
+    
+    private void compare(long sessionA, long sessionB, long tolerance) {
+        String nameA = Long.toString(sessionA);
+        String nameB = Long.toString(sessionB);
+        for (DbHelper.Session session : mDbHelper.listSessions()) {
+            if (session.id == sessionA) {
+                nameA = session.name;
+            } else if (session.id == sessionB) {
+                nameB = session.name;
+            }
+        }
+        File f = mDbHelper.compareSessions(sessionA, sessionB, tolerance);
+        finish(f != null ? "Sessions "+nameA+" and "+nameB+" have been compared in "+f.getName()
+                         : "Errors were encountered during the comparison");
+    }
+    
+    private void runJob(DbHelper.ExportJob job) {
+        mJob = job;
+        String result;
+        try {
+            File f = job.run();
+            if (f != null) {
+                result = "Data has been exported to "+f.getName();
+            } else {
+                result = "The export to "+job.getBundleName()+" was cancelled";
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, ioe);
+            result = "Errors were encountered during export; it will resume from where it stopped when next started";
+        } finally {
+            mJob = null;
+        }
+        finish(result);
+    }
+    
+    private void finish(String result) {
+        Log.i(TAG, result);
+        mLastResult = result;
+        mFinished++;
+    }
+}
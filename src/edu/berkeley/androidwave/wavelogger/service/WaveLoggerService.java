@@ -10,6 +10,7 @@ package edu.berkeley.androidwave.wavelogger.service;
 
 import edu.berkeley.androidwave.waveclient.*;
 import edu.berkeley.androidwave.wavelogger.*;
+import edu.berkeley.androidwave.wavelogger.core.*;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -19,12 +20,15 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Binder;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 import android.widget.Toast;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * WaveLoggerService
@@ -34,6 +38,11 @@ import java.util.Date;
  * This is not a binding service, but a stop/start service. It should run in
  * the foreground so the android system does not shut it down when attempting
  * to reclaim memory.
+ * 
+ * Each start intent opens a logging session, with its own API key and
+ * recipes. Sessions run side by side in this one process, sharing the
+ * writer thread and the database, and every sample is tagged with the id
+ * of its session.
  */
 public class WaveLoggerService extends Service {
     
@@ -41,34 +50,132 @@ public class WaveLoggerService extends Service {
     
     private static final String ACTION_WAVE_SERVICE = "edu.berkeley.androidwave.intent.action.WAVE_SERVICE";
     
+    // stops the session named in SESSION_EXTRA; the service stops with its
+    // last session
+    public static final String ACTION_STOP_SESSION = "edu.berkeley.androidwave.wavelogger.action.STOP_SESSION";
+    
+    public static final String SESSION_EXTRA = "session";
+    public static final String API_KEY_EXTRA = "api_key";
     public static final String RECIPE_IDS_EXTRA = "recipe_ids";
+    public static final String BATCH_SIZE_EXTRA = "batch_size";
+    public static final String FLUSH_INTERVAL_EXTRA = "flush_interval";
+    public static final String QUEUE_CAPACITY_EXTRA = "queue_capacity";
+    public static final String OVERFLOW_POLICY_EXTRA = "overflow_policy";
+    public static final String ACCEL_BLOCK_SIZE_EXTRA = "accel_block_size";
+    public static final String PARTITION_HOURS_EXTRA = "partition_hours";
+    public static final String MAX_STORAGE_MB_EXTRA = "max_storage_mb";
+    public static final String MAX_AGE_DAYS_EXTRA = "max_age_days";
+    public static final String DURABILITY_EXTRA = "durability";
+    
+    // a session is named by SESSION_EXTRA, and logs under API_KEY_EXTRA,
+    // which defaults to the package name. The writer and database settings
+    // below are taken from the intent starting the first session.
+    public static final String DEFAULT_SESSION = "default";
+    
+    // recipe indices shared by the recipes of the running sessions; those
+    // of a stopped session are reused once its queued samples are stored
+    public static final int MAX_RECIPES = 32;
+    
+    // samples of each recipe kept for previews, see getPreview
+    public static final int PREVIEW_SIZE = 256;
+    
+    // samples are committed to sqlite in groups, see DbHelper.setBatching
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    
+    // samples are handed from the binder threads to a writer thread, see
+    // SampleQueue. OVERFLOW_POLICY_EXTRA takes the name of a
+    // SampleQueue.OverflowPolicy; by default a full queue drops its oldest
+    // samples, so binder threads never wait on a writer that falls behind
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    public static final SampleQueue.OverflowPolicy DEFAULT_OVERFLOW_POLICY = SampleQueue.OverflowPolicy.DROP_OLDEST;
+    
+    // accelerometer samples are packed this many to a row, see
+    // DbHelper.setAccelBlockSize; 1 stores a row per sample
+    public static final int DEFAULT_ACCEL_BLOCK_SIZE = 256;
+    
+    // samples go to a new partition file every PARTITION_HOURS_EXTRA hours,
+    // and the oldest partitions are dropped beyond MAX_STORAGE_MB_EXTRA or
+    // MAX_AGE_DAYS_EXTRA, see DbHelper.setRetention; 0 means no cap
+    public static final int DEFAULT_PARTITION_HOURS = 24;
+    public static final int DEFAULT_MAX_STORAGE_MB = 0;
+    public static final int DEFAULT_MAX_AGE_DAYS = 0;
+    
+    // DURABILITY_EXTRA takes the name of a DbHelper.Durability, such as
+    // "safe" or "max-throughput"
+    public static final DbHelper.Durability DEFAULT_DURABILITY = DbHelper.Durability.BALANCED;
     
     private static final int NOTIFICATION_ID = 1;
     
+    // recipe output value keys
+    private static final String X_KEY = "x";
+    private static final String Y_KEY = "y";
+    private static final String Z_KEY = "z";
+    private static final String LATITUDE_KEY = "latitude";
+    private static final String LONGITUDE_KEY = "longitude";
+    private static final String ALTITUDE_KEY = "altitude";
+    
     private String API_KEY;
-
+    
     private IWaveServicePublic mWaveService;
     private boolean mBound;
     
     protected DbHelper databaseHelper;
     
-    private boolean mLogging;
+    protected SampleQueue sampleQueue;
+    protected SampleWriter sampleWriter;
+    protected volatile IngestStats ingestStats;
+    
+    // running sessions, in the order they were started
+    protected final ArrayList<Session> sessions = new ArrayList<Session>();
+    
+    // names of the recipe indices handed out so far, null for those given
+    // back by stopped sessions, see newRecipeIndex
+    protected final ArrayList<String> recipeNames = new ArrayList<String>();
+    
+    // latest samples of each recipe index, once its plan is known
+    protected final AtomicReferenceArray<SampleRing> previews = new AtomicReferenceArray<SampleRing>(MAX_RECIPES);
+    
+    private final IBinder mBinder = new LocalBinder();
+    
+    /**
+     * The recipes requested by one start intent, logged under one API key
+     * and tagged with one session id
+     */
+    protected static class Session {
+        final String name;
+        final String apiKey;
+        final ArrayList<String> recipeIds;
+        
+        // row in the sessions table, once started
+        long id;
+        boolean started;
+        
+        // recipes with a registered output listener
+        final ArrayList<String> listeningIds = new ArrayList<String>();
+        
+        // listeners holding a recipe index, registered or not
+        final ArrayList<RecipeOutputListener> listeners = new ArrayList<RecipeOutputListener>();
+        
+        Session(String name, String apiKey, ArrayList<String> recipeIds) {
+            this.name = name;
+            this.apiKey = apiKey;
+            this.recipeIds = (recipeIds != null ? recipeIds : new ArrayList<String>());
+        }
+    }
     
-    protected Intent startIntent;
-
     @Override
     public void onCreate() {
         API_KEY = this.getPackageName();
         
         mWaveService = null;
         mBound = false;
-        mLogging = false;
         
         databaseHelper = new DbHelper(this);
         
         // we cannot bind to the WaveService in onCreate, so we must wait
         // until onStartCommand
-
+        
         // move this service into the foreground
         NotificationManager notificationManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
         int icon = R.drawable.cal;
@@ -94,19 +201,57 @@ public class WaveLoggerService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         synchronized(this) {
-            if (!mLogging) {
-                startIntent = intent;
-                // bind to WaveService
-                Intent i = new Intent(ACTION_WAVE_SERVICE);
-                if (bindService(i, mConnection, Context.BIND_AUTO_CREATE)) {
-                    mBound = true;
-                } else {
-                    Log.d(getClass().getSimpleName(), "Could not bind with "+i);
-                    Toast.makeText(this, "Could not connect to the WaveService!", Toast.LENGTH_SHORT).show();
+            if (intent == null) {
+                // restarted after being killed; the sessions went with the
+                // process, so there is nothing to resume
+                if (sessions.isEmpty()) {
+                    stopSelf();
+                }
+                return START_STICKY;
+            }
+            
+            String name = intent.getStringExtra(SESSION_EXTRA);
+            if (name == null) {
+                name = DEFAULT_SESSION;
+            }
+            
+            if (ACTION_STOP_SESSION.equals(intent.getAction())) {
+                Session session = findSession(name);
+                if (session != null) {
+                    stopSession(session);
+                }
+                if (sessions.isEmpty()) {
+                    stopSelf();
+                }
+            } else if (findSession(name) == null) {
+                String apiKey = intent.getStringExtra(API_KEY_EXTRA);
+                Session session = new Session(name, (apiKey != null ? apiKey : API_KEY),
+                                              intent.getStringArrayListExtra(RECIPE_IDS_EXTRA));
+                if (sampleWriter == null) {
+                    databaseHelper.setBatching(intent.getIntExtra(BATCH_SIZE_EXTRA, DEFAULT_BATCH_SIZE),
+                                               intent.getLongExtra(FLUSH_INTERVAL_EXTRA, DEFAULT_FLUSH_INTERVAL));
+                    databaseHelper.setDurability(durability(intent));
+                    databaseHelper.setPartitioning(intent.getIntExtra(PARTITION_HOURS_EXTRA, DEFAULT_PARTITION_HOURS) * 3600000L);
+                    databaseHelper.setRetention(intent.getIntExtra(MAX_STORAGE_MB_EXTRA, DEFAULT_MAX_STORAGE_MB) * 1048576L,
+                                                intent.getIntExtra(MAX_AGE_DAYS_EXTRA, DEFAULT_MAX_AGE_DAYS) * 86400000L);
+                    databaseHelper.setAccelBlockSize(intent.getIntExtra(ACCEL_BLOCK_SIZE_EXTRA, DEFAULT_ACCEL_BLOCK_SIZE));
+                    startWriter(intent);
+                    // bind to WaveService
+                    Intent i = new Intent(ACTION_WAVE_SERVICE);
+                    if (bindService(i, mConnection, Context.BIND_AUTO_CREATE)) {
+                        mBound = true;
+                    } else {
+                        Log.d(getClass().getSimpleName(), "Could not bind with "+i);
+                        Toast.makeText(this, "Could not connect to the WaveService!", Toast.LENGTH_SHORT).show();
+                    }
+                }
+                sessions.add(session);
+                // otherwise started once the WaveService is bound
+                if (isBound()) {
+                    startSession(session);
                 }
             } else {
-                Toast.makeText(this, "WaveLoggerService is already logging.", Toast.LENGTH_SHORT);
-                stopSelf();
+                Toast.makeText(this, "WaveLoggerService is already logging session "+name+".", Toast.LENGTH_SHORT);
             }
         }
         
@@ -115,8 +260,54 @@ public class WaveLoggerService extends Service {
     
     @Override
     public IBinder onBind(Intent intent) {
-        // Binding is not provided
-        return null;
+        // only local binding is provided, see LocalBinder
+        return mBinder;
+    }
+    
+    /**
+     * Binder for activities in this process, giving access to the running
+     * service. Bind without BIND_AUTO_CREATE, so the binding neither starts
+     * logging nor keeps the service alive after stopService.
+     */
+    public class LocalBinder extends Binder {
+        public WaveLoggerService getService() {
+            return WaveLoggerService.this;
+        }
+    }
+    
+    /**
+     * Counters for the current logging run, or null before it starts
+     */
+    public IngestStats getIngestStats() {
+        return ingestStats;
+    }
+    
+    /**
+     * Previews
+     * 
+     * The latest PREVIEW_SIZE samples of a recipe index, as they arrive
+     * from the WaveService, or null until its plan is known. Samples are
+     * published by the recipe's listener before they are queued for the
+     * writer, and reading them takes no lock, so previews can be drawn as
+     * often as wanted without holding up logging.
+     */
+    public SampleRing getPreview(int recipe) {
+        return (recipe < MAX_RECIPES ? previews.get(recipe) : null);
+    }
+    
+    /**
+     * Number of recipe indices handed out so far, including those given
+     * back by stopped sessions
+     */
+    public synchronized int getRecipeCount() {
+        return recipeNames.size();
+    }
+    
+    /**
+     * Name of a recipe index, or null while it is not in use
+     */
+    public synchronized String getRecipeName(int recipe) {
+        return recipeNames.get(recipe);
     }
     
     @Override
@@ -125,20 +316,22 @@ public class WaveLoggerService extends Service {
         
         // stop logging if we are logging
         synchronized(this) {
-            if (mLogging) {
-                if (mWaveService != null) {
-                    Toast.makeText(this, "WaveLogger stopping logging", Toast.LENGTH_SHORT);
-                    Log.d(TAG, "WaveLogger stopping logging");
-                    try {
-                        mWaveService.unregisterRecipeOutputListener(API_KEY, WaveLogger.ACCEL_RECIPE_ID);
-                        mWaveService.unregisterRecipeOutputListener(API_KEY, WaveLogger.LOC_RECIPE_ID);
-                    } catch (RemoteException e) {
-                        Log.d(TAG, "lost connection to the service");
-                    }
+            if (!sessions.isEmpty()) {
+                Toast.makeText(this, "WaveLogger stopping logging", Toast.LENGTH_SHORT);
+                Log.d(TAG, "WaveLogger stopping logging");
+                while (!sessions.isEmpty()) {
+                    stopSession(sessions.get(0));
                 }
             }
         }
         
+        // commit any queued and buffered samples before the database is closed
+        if (sampleWriter != null) {
+            sampleWriter.shutdown();
+            logDropCounts();
+            Log.i(TAG, "Ingest stats\n" + ingestStats.report());
+        }
+        databaseHelper.flush();
         databaseHelper.closeDatabase();
         
         // disconnect from the WaveService
@@ -148,34 +341,188 @@ public class WaveLoggerService extends Service {
         }
     }
     
-    protected void afterWaveServiceBound() {
-        synchronized(this) {
-            // extract the recipe ids from the intent extras, and begin listening
-            // and logging
-            ArrayList<String> recipeIds = startIntent.getStringArrayListExtra(RECIPE_IDS_EXTRA);
-            Toast.makeText(this, "Logging data for the following recipes: "+recipeIds, Toast.LENGTH_SHORT);
-            Log.d(TAG, "Logging data for the following recipes: "+recipeIds);
-            for (String id : recipeIds) {
-                IWaveRecipeOutputDataListener outputListener;
-                if (id.equals(WaveLogger.ACCEL_RECIPE_ID)) {
-                    outputListener = accelOutputListener;
+    protected DbHelper.Durability durability(Intent intent) {
+        DbHelper.Durability durability = DEFAULT_DURABILITY;
+        String name = intent.getStringExtra(DURABILITY_EXTRA);
+        if (name != null) {
+            try {
+                durability = DbHelper.Durability.valueOf(name.toUpperCase(Locale.US).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown durability profile "+name+", using "+durability);
+            }
+        }
+        return durability;
+    }
+    
+    protected void startWriter(Intent intent) {
+        int capacity = intent.getIntExtra(QUEUE_CAPACITY_EXTRA, DEFAULT_QUEUE_CAPACITY);
+        SampleQueue.OverflowPolicy policy = DEFAULT_OVERFLOW_POLICY;
+        String policyName = intent.getStringExtra(OVERFLOW_POLICY_EXTRA);
+        if (policyName != null) {
+            try {
+                policy = SampleQueue.OverflowPolicy.valueOf(policyName.toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown overflow policy "+policyName+", using "+policy);
+            }
+        }
+        
+        // slots are wide enough for any recipe a later session may bring
+        sampleQueue = new SampleQueue(capacity, policy, MAX_RECIPES, RecipePlan.MAX_VALUES);
+        
+        IngestStats stats = new IngestStats(MAX_RECIPES);
+        stats.setQueue(sampleQueue);
+        sampleWriter = new SampleWriter(sampleQueue, databaseHelper, stats);
+        ingestStats = stats;
+        sampleWriter.start();
+    }
+    
+    protected Session findSession(String name) {
+        for (Session session : sessions) {
+            if (session.name.equals(name)) {
+                return session;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Record a session and begin listening to its recipes. Called with the
+     * WaveService bound.
+     */
+    protected void startSession(Session session) {
+        session.id = databaseHelper.openSession(session.name, session.apiKey);
+        session.started = true;
+        Toast.makeText(this, "Logging data for the following recipes: "+session.recipeIds, Toast.LENGTH_SHORT);
+        Log.d(TAG, "Logging session "+session.name+" ("+session.id+") for the following recipes: "+session.recipeIds);
+        for (String id : session.recipeIds) {
+            if (session.listeningIds.contains(id)) {
+                continue;
+            }
+            
+            RecipeOutputListener listener = outputListener(session, id);
+            if (listener == null) {
+                Log.w(TAG, "Not logging recipe "+id+", all "+MAX_RECIPES+" recipe slots are taken");
+                continue;
+            }
+            session.listeners.add(listener);
+            try {
+                if (mWaveService.registerRecipeOutputListener(session.apiKey, id, listener)) {
+                    session.listeningIds.add(id);
                 } else {
-                    outputListener = locOutputListener;
+                    Toast.makeText(this, "Error requesting data for recipe "+id, Toast.LENGTH_SHORT);
+                    Log.d(TAG, "Error requesting data for recipe "+id);
                 }
-            
-                try {
-                    if (!mWaveService.registerRecipeOutputListener(API_KEY, id, outputListener)) {
-                        Toast.makeText(this, "Error requesting data for recipe "+id, Toast.LENGTH_SHORT);
-                        Log.d(TAG, "Error requesting data for recipe "+id);
-                    }
-                } catch (RemoteException e) {
-                    Log.d(TAG, "lost connection to the service");
+            } catch (RemoteException e) {
+                Log.d(TAG, "lost connection to the service");
+            }
+        }
+    }
+    
+    /**
+     * Stop listening to the recipes of a session and record its end.
+     * Samples already queued are still written.
+     */
+    protected void stopSession(Session session) {
+        if (mWaveService != null) {
+            try {
+                for (String id : session.listeningIds) {
+                    mWaveService.unregisterRecipeOutputListener(session.apiKey, id);
                 }
+            } catch (RemoteException e) {
+                Log.d(TAG, "lost connection to the service");
             }
-            mLogging = true;
         }
+        session.listeningIds.clear();
+        for (RecipeOutputListener listener : session.listeners) {
+            listener.stop();
+            releaseRecipeIndex(listener.mIndex);
+        }
+        session.listeners.clear();
+        if (session.started) {
+            databaseHelper.closeSession(session.id);
+        }
+        sessions.remove(session);
+        Log.d(TAG, "Stopped session "+session.name);
     }
-
+    
+    /**
+     * Hand out a recipe index, naming it in the ingest stats, or return -1
+     * once all MAX_RECIPES are taken. An index given back by a stopped
+     * session is reused, with its counters cleared, once the writer has
+     * stored the samples queued under it.
+     */
+    protected synchronized int newRecipeIndex(String name) {
+        for (int i=0; i<recipeNames.size(); i++) {
+            if (recipeNames.get(i) == null && !sampleWriter.isRemoving(i)) {
+                recipeNames.set(i, name);
+                ingestStats.reset(i);
+                sampleQueue.resetDropCount(i);
+                ingestStats.setRecipeName(i, name);
+                return i;
+            }
+        }
+        if (recipeNames.size() >= MAX_RECIPES) {
+            return -1;
+        }
+        recipeNames.add(name);
+        int index = recipeNames.size() - 1;
+        ingestStats.setRecipeName(index, name);
+        return index;
+    }
+    
+    /**
+     * Give back the index of a stopped recipe, whose listener no longer
+     * queues samples. Its counters stay in the ingest stats until the
+     * index is reused.
+     */
+    protected synchronized void releaseRecipeIndex(int index) {
+        logDropCount(index);
+        recipeNames.set(index, null);
+        previews.set(index, null);
+        sampleWriter.removeRecipe(index);
+    }
+    
+    /**
+     * Rate and precision the WaveService releases a recipe's output at for
+     * apiKey, or null if unknown
+     */
+    protected WaveRecipeAuthorizationInfo authorization(String apiKey, String recipeId) {
+        try {
+            if (mWaveService.isAuthorized(apiKey, recipeId)) {
+                return mWaveService.retrieveAuthorizationInfo(apiKey, recipeId);
+            }
+        } catch (RemoteException e) {
+            Log.d(TAG, "lost connection to the service");
+        }
+        return null;
+    }
+    
+    protected void logDropCounts() {
+        for (int i=0; i<recipeNames.size(); i++) {
+            if (recipeNames.get(i) != null) {
+                logDropCount(i);
+            }
+        }
+    }
+    
+    protected void logDropCount(int recipe) {
+        long drops = sampleQueue.getDropCount(recipe);
+        if (drops > 0) {
+            Log.w(TAG, String.format("Writer queue (%s) dropped %d samples of %s",
+                                     sampleQueue.getPolicy(), drops, recipeNames.get(recipe)));
+        }
+    }
+    
+    protected void afterWaveServiceBound() {
+        synchronized(this) {
+            for (Session session : sessions) {
+                if (!session.started) {
+                    startSession(session);
+                }
+            }
+        }
+    }
+    
     // Nested ServiceConnection subclass
     private ServiceConnection mConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName className, IBinder service) {
@@ -190,22 +537,119 @@ public class WaveLoggerService extends Service {
         }
     };
     
-    // Recipe output listeners
-    private IWaveRecipeOutputDataListener accelOutputListener = new IWaveRecipeOutputDataListener.Stub() {
-        public void receiveWaveRecipeOutputData(ParcelableWaveRecipeOutputData wrOutput) {
-            // log the received data to the appropriate SQLite table
-            databaseHelper.insertAccelData(new Date(), wrOutput.getTime(), wrOutput.valuesAsMap());
-            // Log.v(TAG, "wrOutput => " + wrOutput);
+    /**
+     * A new listener for a recipe of a session, or null if no recipe index
+     * is left. The accelerometer and location recipes have fixed plans,
+     * storing values as multiples of the session's authorized precision;
+     * others are planned from their first output. Every recipe's outputs
+     * are checked against its authorization as they arrive, see
+     * GranularityStats.
+     */
+    protected RecipeOutputListener outputListener(Session session, String recipeId) {
+        String label = recipeId;
+        if (recipeId.equals(WaveLogger.ACCEL_RECIPE_ID)) {
+            label = "Accelerometer";
+        } else if (recipeId.equals(WaveLogger.LOC_RECIPE_ID)) {
+            label = "Location";
         }
-    };
+        int index = newRecipeIndex(label+" ("+session.name+")");
+        if (index < 0) {
+            return null;
+        }
+        
+        WaveRecipeAuthorizationInfo authInfo = authorization(session.apiKey, recipeId);
+        double maxRate = (authInfo != null ? authInfo.outputMaxRate : 0);
+        double maxPrecision = (authInfo != null ? authInfo.outputMaxPrecision : 0);
+        
+        RecipePlan plan;
+        if (recipeId.equals(WaveLogger.ACCEL_RECIPE_ID)) {
+            plan = new RecipePlan(recipeId, index, session.id, RecipePlan.ACCELEROMETER,
+                                  new String[] {X_KEY, Y_KEY, Z_KEY}, maxPrecision);
+        } else if (recipeId.equals(WaveLogger.LOC_RECIPE_ID)) {
+            plan = new RecipePlan(recipeId, index, session.id, RecipePlan.LOCATION,
+                                  new String[] {LATITUDE_KEY, LONGITUDE_KEY, ALTITUDE_KEY}, maxPrecision);
+        } else {
+            return new RecipeOutputListener(recipeId, index, session.id, maxRate, maxPrecision);
+        }
+        sampleWriter.addRecipe(plan);
+        return new RecipeOutputListener(plan, maxRate);
+    }
     
-    private IWaveRecipeOutputDataListener locOutputListener = new IWaveRecipeOutputDataListener.Stub() {
-        public void receiveWaveRecipeOutputData(ParcelableWaveRecipeOutputData wrOutput) {
-            // log the received data to the appropriate SQLite table
-            databaseHelper.insertLocData(new Date(), wrOutput.getTime(), wrOutput.valuesAsMap());
+    /**
+     * Recipe output listener, one instance per recipe of a session, queueing
+     * outputs for the writer thread under the recipe's index. Values are
+     * unpacked by the recipe's plan into a reused array, so each output
+     * costs one map lookup per logged value and no allocation. The values
+     * go to the recipe's preview and granularity stats as received, before
+     * any rounding by the writer.
+     */
+    protected class RecipeOutputListener extends IWaveRecipeOutputDataListener.Stub {
+        
+        private final String mRecipeId;
+        private final int mIndex;
+        private final long mSession;
+        private final double mMaxRate;
+        private final double mMaxPrecision;
+        
+        private RecipePlan mPlan;
+        private double[] mValues;
+        private SampleRing mPreview;
+        private GranularityStats mGranularity;
+        
+        // set when the session stops; outputs still in flight are ignored,
+        // so nothing more is queued under the index
+        private boolean mStopped;
+        
+        RecipeOutputListener(RecipePlan plan, double maxRate) {
+            this(plan.recipeId, plan.index, plan.session, maxRate, plan.quantum);
+            setPlan(plan);
+        }
+        
+        RecipeOutputListener(String recipeId, int index, long session, double maxRate, double maxPrecision) {
+            mRecipeId = recipeId;
+            mIndex = index;
+            mSession = session;
+            mMaxRate = maxRate;
+            mMaxPrecision = maxPrecision;
+        }
+        
+        public synchronized void receiveWaveRecipeOutputData(ParcelableWaveRecipeOutputData wrOutput) {
+            if (mStopped) {
+                return;
+            }
+            long rcvdTime = System.currentTimeMillis();
+            ingestStats.received(mIndex);
+            Map<String, Double> values = wrOutput.valuesAsMap();
+            if (mPlan == null) {
+                RecipePlan plan = RecipePlan.fromKeys(mRecipeId, mIndex, mSession, values.keySet());
+                if (plan.width() < values.size()) {
+                    Log.w(TAG, "Recipe "+mRecipeId+" has "+values.size()+" values, logging only "+plan);
+                }
+                setPlan(plan);
+                sampleWriter.addRecipe(plan);
+            }
+            long sampleTime = wrOutput.getTime();
+            mPlan.extract(values, mValues);
+            mPreview.publish(rcvdTime, mValues);
+            mGranularity.add(sampleTime, mValues);
+            sampleQueue.put(mIndex, rcvdTime, sampleTime, mValues);
             // Log.v(TAG, "wrOutput => " + wrOutput);
         }
-    };
+        
+        synchronized void stop() {
+            mStopped = true;
+        }
+        
+        private void setPlan(RecipePlan plan) {
+            mPlan = plan;
+            mValues = new double[plan.width()];
+            // this listener is the only one publishing to the ring
+            mPreview = new SampleRing(PREVIEW_SIZE, plan.width());
+            previews.set(mIndex, mPreview);
+            mGranularity = new GranularityStats(plan.keys, mMaxRate, mMaxPrecision);
+            ingestStats.setGranularity(mIndex, mGranularity);
+        }
+    }
     
     public synchronized boolean isBound() {
         return (mBound && (mWaveService != null));